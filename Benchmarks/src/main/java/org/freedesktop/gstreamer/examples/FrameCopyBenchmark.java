@@ -0,0 +1,256 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+import org.freedesktop.gstreamer.Buffer;
+import org.freedesktop.gstreamer.Gst;
+import org.freedesktop.gstreamer.Pipeline;
+import org.freedesktop.gstreamer.Sample;
+import org.freedesktop.gstreamer.Version;
+import org.freedesktop.gstreamer.elements.AppSink;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the ways the examples access video frames - the
+ * Buffer.map(true) / asIntBuffer() / unmap() sequence used by the BufferProbe
+ * Renderer and the archived SimpleVideoComponent, and what is done with the
+ * mapped pixels in between.
+ * <p>
+ * Each benchmark maps a BGRx / xRGB frame, accesses it using one strategy, and
+ * unmaps it.
+ * <ul>
+ * <li>noCopy : map and unmap only, reading a single pixel.
+ * <li>bulkGetPut : read the whole frame into an int[] and write it back.
+ * <li>rowCopy : read and write back a region row by row, as the Renderer does
+ * for the region the animation draws over.
+ * <li>copyRaster : rowCopy with a Java2D fill of the region in between.
+ * <li>directRaster : the same Java2D fill straight into the mapped memory via a
+ * custom DataBuffer, with no copy.
+ * </ul>
+ * The region is the centre quarter of the frame.
+ * <p>
+ * Frames are either standalone Buffer allocations, or (with the source
+ * parameter set to PIPELINE) pulled from a videotestsrc pipeline so that the
+ * memory comes from the pipeline's buffer pool. Run with
+ * <code>./gradlew run</code>, or pass JMH options - eg. to benchmark only 1080p
+ * <code>./gradlew run --args="-p resolution=1920x1080"</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCopyBenchmark {
+
+    /**
+     * Frame size.
+     */
+    @Param({"1280x720", "1920x1080", "3840x2160"})
+    public String resolution;
+
+    /**
+     * Frame source - ALLOCATED or PIPELINE.
+     */
+    @Param({"ALLOCATED", "PIPELINE"})
+    public String source;
+
+    private Buffer buffer;
+    private int[] data;
+    private Rectangle region;
+    private BufferedImage image;
+    private Graphics2D imageGraphics;
+    private MappedDataBuffer mappedData;
+    private Graphics2D mappedGraphics;
+    private int width;
+
+    @Setup
+    public void setup() {
+        if (!Gst.isInitialized()) {
+            Utils.configurePaths();
+            Gst.init(Version.BASELINE, "FrameCopyBenchmark");
+        }
+        String[] size = resolution.split("x");
+        width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        buffer = "PIPELINE".equals(source)
+                ? pullBuffer(width, height)
+                : new Buffer(width * height * 4);
+        if (!buffer.isWritable()) {
+            throw new IllegalStateException("Buffer is not writable");
+        }
+        region = new Rectangle(width / 4, height / 4, width / 2, height / 2);
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        imageGraphics = image.createGraphics();
+        imageGraphics.setColor(Color.ORANGE);
+        mappedData = new MappedDataBuffer(width * height);
+        DirectColorModel cm = (DirectColorModel) image.getColorModel();
+        BufferedImage mappedImage = new BufferedImage(cm,
+                Raster.createPackedRaster(mappedData, width, height, width,
+                        cm.getMasks(), null),
+                false, null);
+        mappedGraphics = mappedImage.createGraphics();
+        mappedGraphics.setColor(Color.ORANGE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        imageGraphics.dispose();
+        mappedGraphics.dispose();
+        buffer.dispose();
+    }
+
+    @Benchmark
+    public int noCopy() {
+        IntBuffer ib = buffer.map(true).asIntBuffer();
+        int pixel = ib.get(0);
+        buffer.unmap();
+        return pixel;
+    }
+
+    @Benchmark
+    public int[] bulkGetPut() {
+        IntBuffer ib = buffer.map(true).asIntBuffer();
+        ib.get(data);
+        ib.rewind();
+        ib.put(data);
+        buffer.unmap();
+        return data;
+    }
+
+    @Benchmark
+    public int[] rowCopy() {
+        IntBuffer ib = buffer.map(true).asIntBuffer();
+        read(ib);
+        write(ib);
+        buffer.unmap();
+        return data;
+    }
+
+    @Benchmark
+    public int[] copyRaster() {
+        IntBuffer ib = buffer.map(true).asIntBuffer();
+        read(ib);
+        imageGraphics.fill(region);
+        write(ib);
+        buffer.unmap();
+        return data;
+    }
+
+    @Benchmark
+    public void directRaster() {
+        IntBuffer ib = buffer.map(true).asIntBuffer();
+        mappedData.attach(ib);
+        try {
+            mappedGraphics.fill(region);
+        } finally {
+            mappedData.detach();
+        }
+        buffer.unmap();
+    }
+
+    private void read(IntBuffer ib) {
+        for (int y = region.y; y < region.y + region.height; y++) {
+            int offset = y * width + region.x;
+            ib.position(offset);
+            ib.get(data, offset, region.width);
+        }
+    }
+
+    private void write(IntBuffer ib) {
+        for (int y = region.y; y < region.y + region.height; y++) {
+            int offset = y * width + region.x;
+            ib.position(offset);
+            ib.put(data, offset, region.width);
+        }
+    }
+
+    /**
+     * Pull a single frame from a videotestsrc pipeline. The Sample is disposed
+     * so that the returned Buffer holds the only reference and is writable.
+     */
+    private static Buffer pullBuffer(int width, int height) {
+        Pipeline pipeline = (Pipeline) Gst.parseLaunch(
+                "videotestsrc num-buffers=1 ! video/x-raw, width=" + width
+                + ", height=" + height + ", "
+                + (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
+                ? "format=BGRx" : "format=xRGB")
+                + " ! appsink name=sink");
+        AppSink sink = (AppSink) pipeline.getElementByName("sink");
+        pipeline.play();
+        Sample sample = sink.pullSample();
+        if (sample == null) {
+            throw new IllegalStateException("No sample received from pipeline");
+        }
+        Buffer buffer = sample.getBuffer();
+        sample.dispose();
+        pipeline.stop();
+        pipeline.dispose();
+        return buffer;
+    }
+
+    /**
+     * A DataBuffer that reads and writes pixels in the mapped memory of a
+     * Buffer. See BufferProbe.
+     */
+    static class MappedDataBuffer extends DataBuffer {
+
+        private IntBuffer pixels;
+
+        private MappedDataBuffer(int size) {
+            super(TYPE_INT, size);
+        }
+
+        private void attach(IntBuffer pixels) {
+            this.pixels = pixels;
+        }
+
+        private void detach() {
+            this.pixels = null;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return pixels.get(i);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            pixels.put(i, val);
+        }
+
+    }
+
+}
@@ -12,18 +12,28 @@
 package org.freedesktop.gstreamer.examples;
 
 import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.GradientPaint;
 import java.awt.Graphics2D;
 import java.awt.Paint;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
-import java.awt.geom.AffineTransform;
-import java.awt.geom.GeneralPath;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import org.freedesktop.gstreamer.Buffer;
 import org.freedesktop.gstreamer.Bus;
+import org.freedesktop.gstreamer.ClockTime;
 import org.freedesktop.gstreamer.Element;
 import org.freedesktop.gstreamer.Gst;
 import org.freedesktop.gstreamer.Pad;
@@ -41,8 +51,61 @@ import org.freedesktop.gstreamer.Version;
  */
 public class BufferProbe {
 
-    private static final int WIDTH = 800;
-    private static final int HEIGHT = 600;
+    /**
+     * The frame size. Can be set using the bufferprobe.width and
+     * bufferprobe.height system properties.
+     */
+    private static final int WIDTH = Integer.getInteger("bufferprobe.width", 800);
+    private static final int HEIGHT = Integer.getInteger("bufferprobe.height", 600);
+
+    /**
+     * The Renderer mode - COPY, DIRECT, LAYER, AUTO or ASYNC. Can be set using
+     * the bufferprobe.mode system property. See Renderer for details.
+     */
+    private static final Renderer.Mode MODE = Renderer.Mode.valueOf(
+            System.getProperty("bufferprobe.mode", "AUTO").toUpperCase(Locale.ROOT));
+
+    /**
+     * The number of overlay layers that may be rendered ahead of the stream in
+     * ASYNC mode. Can be set using the bufferprobe.depth system property.
+     */
+    private static final int DEPTH = Integer.getInteger("bufferprobe.depth", 2);
+
+    /**
+     * The number of row bands to composite overlay layers on to the frame in
+     * parallel in ASYNC mode. Useful for large (eg. 4K) frames. Only used in
+     * ASYNC mode with the RGB format - the other modes render on the streaming
+     * thread, where the composite is a small part of the frame cost, and the
+     * YuvCompositor blends chroma per 2x2 block across rows. Can be set using
+     * the bufferprobe.bands system property.
+     */
+    private static final int BANDS = Integer.getInteger("bufferprobe.bands", 1);
+
+    /**
+     * The memory budget in bytes for cached overlay sprites. Can be set using
+     * the bufferprobe.spritecache system property.
+     */
+    private static final long SPRITE_CACHE = Long.getLong("bufferprobe.spritecache", 1 << 20);
+
+    /**
+     * The raw video format the Renderer draws on - RGB (the default), I420 or
+     * NV12. For the YUV formats the overlay is blended on to the planes (see
+     * YuvCompositor) without converting the frames to RGB and back. Can be set
+     * using the bufferprobe.format system property.
+     */
+    private static final String FORMAT = System.getProperty("bufferprobe.format", "RGB")
+            .toUpperCase(Locale.ROOT);
+
+    /**
+     * Run the Renderer on this number of frames without GStreamer, after a
+     * warm up, and fail if any of them allocate on the rendering thread.
+     * Applies to the mode and format set above - only the LAYER and ASYNC
+     * modes (and any mode with a YUV format) are expected to pass. Can be set
+     * using the bufferprobe.check system property.
+     */
+    private static final int CHECK = Integer.getInteger("bufferprobe.check", 0);
+
+    private static final String TITLE = "GStreamer Java";
 
     /**
      * Use a Pad.PROBE and Java2D to draw on to the buffers passing through the
@@ -55,6 +118,14 @@ public class BufferProbe {
      */
     public static void main(String[] args) {
 
+        /**
+         * Run the allocation check instead of the pipeline if requested. See
+         * AllocationCheck.
+         */
+        if (CHECK > 0) {
+            System.exit(check(CHECK) ? 0 : 1);
+        }
+
         /**
          * Set up paths to native GStreamer libraries - see adjacent file.
          */
@@ -71,12 +142,16 @@ public class BufferProbe {
 
         /**
          * Set up a Caps string with the width, height and buffer format
-         * required for reading and writing into the BufferedImage.
+         * required for reading and writing into the BufferedImage, or for
+         * blending directly on to YUV planes.
          */
+        YuvCompositor yuv = "RGB".equals(FORMAT) ? null
+                : new YuvCompositor(YuvCompositor.Format.valueOf(FORMAT), WIDTH, HEIGHT);
         String caps = "video/x-raw, width=" + WIDTH + ", height=" + HEIGHT
                 + ", pixel-aspect-ratio=1/1, "
-                + (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
-                ? "format=BGRx" : "format=xRGB");
+                + (yuv != null ? "format=" + yuv.getFormat()
+                        : ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
+                        ? "format=BGRx" : "format=xRGB");
 
         /**
          * Use Gst.parseLaunch() to create a pipeline from a GStreamer string
@@ -85,12 +160,27 @@ public class BufferProbe {
          *
          * The named Identity element can be acquired from the pipeline by name
          * and the probe attached to its sink pad.
+         *
+         * The final videoconvert is passthrough if the video sink accepts the
+         * format directly, which most do for I420.
          */
         pipeline = (Pipeline) Gst.parseLaunch("autovideosrc ! videoconvert ! videoscale ! "
                 + caps + " ! identity name=identity ! videoconvert ! autovideosink");
         Element identity = pipeline.getElementByName("identity");
+        ProbeStats stats = new ProbeStats("Renderer");
+        SpriteCache sprites = new SpriteCache(SPRITE_CACHE);
         identity.getStaticPad("sink")
-                .addProbe(PadProbeType.BUFFER, new Renderer(WIDTH, HEIGHT));
+                .addProbe(PadProbeType.BUFFER, stats.wrap(
+                        new Renderer(WIDTH, HEIGHT, MODE, DEPTH, BANDS, yuv,
+                                sprites, stats)));
+
+        /**
+         * The Renderer is wrapped by ProbeStats to record callback times.
+         * Print a report, and the sprite cache statistics, every 10 seconds.
+         */
+        Gst.getExecutor().scheduleAtFixedRate(
+                () -> System.out.println(stats.report() + "\n" + sprites),
+                10, 10, TimeUnit.SECONDS);
 
         /**
          * Start the pipeline. Attach a bus listener to call Gst.quit on EOS or
@@ -107,61 +197,588 @@ public class BufferProbe {
     }
 
     /**
-     * A Pad.PROBE implementation that acquires the Buffer, reads it into the
-     * data array of a BufferedImage, renders an animation on top, and writes
-     * back into the Buffer.
+     * Render frames into a direct buffer in the configured mode and format,
+     * measuring the allocation of each frame after the warm up.
+     *
+     * @param frames number of frames to check
+     * @return true if no checked frame allocated
+     */
+    private static boolean check(int frames) {
+        YuvCompositor yuv = "RGB".equals(FORMAT) ? null
+                : new YuvCompositor(YuvCompositor.Format.valueOf(FORMAT), WIDTH, HEIGHT);
+        int size = yuv != null ? yuv.getFrameSize() : WIDTH * HEIGHT * 4;
+        ByteBuffer bytes = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        IntBuffer ib = yuv == null ? bytes.asIntBuffer() : null;
+        Renderer renderer = new Renderer(WIDTH, HEIGHT, MODE, DEPTH, BANDS, yuv,
+                new SpriteCache(SPRITE_CACHE), new ProbeStats("Renderer"));
+        AllocationCheck check = new AllocationCheck();
+        long duration = ClockTime.fromSeconds(1) / 30;
+        long pts = 0;
+        do {
+            renderer.render(bytes, ib, pts, duration);
+            pts += duration;
+        } while (check.warmUp());
+        do {
+            for (int i = 0; i < frames; i++) {
+                check.begin();
+                renderer.render(bytes, ib, pts, duration);
+                check.end();
+                pts += duration;
+            }
+        } while (check.retry());
+        renderer.dispose();
+        System.out.println("Renderer " + MODE + " " + FORMAT + " " + WIDTH + "x"
+                + HEIGHT + " : " + check.report());
+        return check.passed();
+    }
+
+    /**
+     * A Pad.PROBE implementation that acquires the Buffer and renders an
+     * animation on top of it using Java2D.
+     * <p>
+     * In COPY mode the region of the Buffer the animation will draw over is
+     * read into the data array of a BufferedImage, the animation drawn on top,
+     * and the same region written back into the Buffer.
+     * <p>
+     * In DIRECT mode Java2D draws straight on to the mapped Buffer memory,
+     * through a WritableRaster backed by a MappedDataBuffer, avoiding both
+     * copies.
+     * <p>
+     * In LAYER mode the animation is rendered into a premultiplied ARGB layer
+     * the size of the frame (see paintLayer()), and only the region it covers
+     * is composited straight on to the mapped Buffer memory (see Compositor).
+     * <p>
+     * Which is fastest depends on the platform, frame size and amount of
+     * drawing. AUTO mode times each in turn for a number of frames and then
+     * continues with the fastest.
+     * <p>
+     * In ASYNC mode the animation is rendered into overlay layers on a worker
+     * thread ahead of the stream (see AsyncOverlay), and the probe only
+     * composites the layer matching each Buffer's timestamp. For large RGB
+     * frames the composite can be split into row bands processed in parallel
+     * (see TiledCompositor). Bands are only used in this mode.
+     * <p>
+     * If a YuvCompositor is passed in, the Buffer is in a YUV format and the
+     * COPY, DIRECT and AUTO modes do not apply. The animation layer (rendered
+     * on a worker thread in ASYNC mode) and sprites are blended on to the
+     * planes by the YuvCompositor.
+     * <p>
+     * In all modes, a static title and a running time clock are blitted on to
+     * the frame from pre-rasterized sprites in a SpriteCache. The clock is
+     * made up of a badge and a sprite per character, so that it does not
+     * allocate when the time changes. The sprites are rasterized when the
+     * Renderer is created, rather than on the streaming thread.
+     * <p>
+     * Steady state frames in LAYER and ASYNC modes, and with YUV formats, do
+     * not allocate on the streaming thread. COPY and DIRECT fill the curve
+     * with a GradientPaint, for which Java2D creates a paint context every
+     * frame. Use the bufferprobe.check property to verify in each mode and
+     * format.
      */
     static class Renderer implements Pad.PROBE {
 
+        enum Mode {
+            COPY, DIRECT, LAYER, AUTO, ASYNC
+        }
+
+        private static final Mode[] CALIBRATION_MODES = {Mode.COPY, Mode.DIRECT, Mode.LAYER};
+        private static final int CALIBRATION_FRAMES = 99;
+        private static final int CLOCK_GLYPHS = 8;
+        private static final int COLON = 10;
+        private static final int GRADIENT_TILE = 400;
+        private static final Color BADGE = new Color(0, 0, 0, 160);
+
         private final BufferedImage image;
+        private final Graphics2D imageGraphics;
         private final int[] data;
+        private final MappedDataBuffer mappedData;
+        private final Graphics2D mappedGraphics;
         private final Point[] points;
         private final Paint fill;
+        private final int[] gradient;
+        private final Rectangle frame;
+        private final Rectangle dirty;
+        private final Rectangle layerBounds;
+        private final Curve curve;
+        private final AsyncOverlay<IntBuffer> overlay;
+        private final AsyncOverlay<ByteBuffer> yuvOverlay;
+        private final TiledCompositor compositor;
+        private final YuvCompositor yuv;
+        private final Graphics2D layerGraphics;
+        private final int[] layerData;
+        private final SpriteCache sprites;
+        private final ProbeStats stats;
+        private final SpriteCache.Key title;
+        private final SpriteCache.Key clock;
+        private final SpriteCache.Key[] glyphs;
+        private final int badgeHeight;
+        private final int glyphWidth;
+        private final Font font;
+        private final SpriteCache.Rasterizer badgeRasterizer;
+        private final SpriteCache.Rasterizer glyphRasterizer;
+        private final long[] calibrationTimes;
 
-        private Renderer(int width, int height) {
+        private Mode mode;
+        private int calibrationFrame;
+
+        private Renderer(int width, int height, Mode mode, int depth, int bands,
+                YuvCompositor yuv, SpriteCache sprites, ProbeStats stats) {
             image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
             data = ((DataBufferInt) (image.getRaster().getDataBuffer())).getData();
+            mappedData = new MappedDataBuffer(width * height);
+            DirectColorModel cm = (DirectColorModel) image.getColorModel();
+            BufferedImage mappedImage = new BufferedImage(cm,
+                    Raster.createPackedRaster(mappedData, width, height, width,
+                            cm.getMasks(), null),
+                    false, null);
+            imageGraphics = image.createGraphics();
+            mappedGraphics = mappedImage.createGraphics();
             points = new Point[18];
             for (int i = 0; i < points.length; i++) {
                 points[i] = new Point();
             }
             fill = new GradientPaint(0, 0, new Color(1.0f, 0.3f, 0.5f, 0.9f),
                     60, 20, new Color(0.3f, 1.0f, 0.7f, 0.8f), true);
+            BufferedImage tile = new BufferedImage(GRADIENT_TILE, GRADIENT_TILE,
+                    BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g2d = tile.createGraphics();
+            // the cyclic gradient repeats every 400 pixels in x and y
+            g2d.setPaint(fill);
+            g2d.fillRect(0, 0, GRADIENT_TILE, GRADIENT_TILE);
+            g2d.dispose();
+            gradient = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+            frame = new Rectangle(width, height);
+            dirty = new Rectangle();
+            layerBounds = new Rectangle();
+            curve = new Curve(points.length);
+            compositor = mode == Mode.ASYNC && yuv == null && bands > 1
+                    ? new TiledCompositor(bands, 300) : null;
+            if (mode != Mode.ASYNC || yuv != null) {
+                overlay = null;
+            } else if (compositor != null) {
+                overlay = new AsyncOverlay<>(width, height, depth, this::renderLayer,
+                        compositor::blend);
+            } else {
+                overlay = new AsyncOverlay<>(width, height, depth, this::renderLayer,
+                        Compositor::blend);
+            }
+            yuvOverlay = mode == Mode.ASYNC && yuv != null
+                    ? new AsyncOverlay<>(width, height, depth, this::renderLayer,
+                            yuv::blend)
+                    : null;
+            this.yuv = yuv;
+            BufferedImage layer = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_ARGB_PRE);
+            layerGraphics = layer.createGraphics();
+            layerData = ((DataBufferInt) layer.getRaster().getDataBuffer()).getData();
+            this.mode = mode;
+            calibrationTimes = new long[CALIBRATION_MODES.length];
+            this.sprites = sprites;
+            this.stats = stats;
+            badgeHeight = height / 15;
+            title = new SpriteCache.Key(TITLE, badgeHeight * 6, badgeHeight);
+            clock = new SpriteCache.Key("", badgeHeight * 4, badgeHeight);
+            glyphWidth = badgeHeight * 3 / 8;
+            glyphs = new SpriteCache.Key[COLON + 1];
+            for (int i = 0; i < glyphs.length; i++) {
+                glyphs[i] = new SpriteCache.Key(i == COLON ? ':' : (char) ('0' + i),
+                        glyphWidth, badgeHeight);
+            }
+            font = new Font(Font.SANS_SERIF, Font.BOLD, badgeHeight * 3 / 5);
+            badgeRasterizer = this::paintBadge;
+            glyphRasterizer = this::paintGlyph;
+            // rasterize the sprites now rather than on the streaming thread
+            sprites.get(title, badgeRasterizer);
+            sprites.get(clock, badgeRasterizer);
+            for (SpriteCache.Key glyph : glyphs) {
+                sprites.get(glyph, glyphRasterizer);
+            }
         }
 
         @Override
         public PadProbeReturn probeCallback(Pad pad, PadProbeInfo info) {
             Buffer buffer = info.getBuffer();
             if (buffer.isWritable()) {
-                IntBuffer ib = buffer.map(true).asIntBuffer();
-                ib.get(data);
-                render();
-                ib.rewind();
-                ib.put(data);
+                long mapStart = System.nanoTime();
+                ByteBuffer bytes = buffer.map(true);
+                IntBuffer ib = yuv == null ? bytes.asIntBuffer() : null;
+                long mapTime = System.nanoTime() - mapStart;
+                render(bytes, ib, buffer.getPresentationTimestamp(),
+                        buffer.getDuration());
+                long unmapStart = System.nanoTime();
                 buffer.unmap();
+                stats.recordMapping(mapTime, System.nanoTime() - unmapStart);
             }
             return PadProbeReturn.OK;
         }
 
-        private void render() {
-            Graphics2D g2d = image.createGraphics();
+        /**
+         * Render on to the mapped bytes of a frame, and the int view of them
+         * if the format is RGB.
+         */
+        private void render(ByteBuffer bytes, IntBuffer ib, long pts, long duration) {
+            if (yuv != null) {
+                renderYuv(bytes, pts, duration);
+            } else {
+                switch (mode) {
+                    case COPY:
+                        renderCopy(ib);
+                        break;
+                    case DIRECT:
+                        renderDirect(ib);
+                        break;
+                    case LAYER:
+                        renderLayer(ib);
+                        break;
+                    case ASYNC:
+                        overlay.composite(ib, pts, duration);
+                        break;
+                    default:
+                        calibrate(ib);
+                }
+            }
+            renderSprites(bytes, ib, pts);
+        }
+
+        /**
+         * Stop any worker threads.
+         */
+        private void dispose() {
+            if (overlay != null) {
+                overlay.dispose();
+            }
+            if (yuvOverlay != null) {
+                yuvOverlay.dispose();
+            }
+            if (compositor != null) {
+                compositor.dispose();
+            }
+        }
+
+        private void renderCopy(IntBuffer ib) {
+            update(dirty);
+            read(ib, dirty);
+            paintFrame(imageGraphics);
+            write(ib, dirty);
+        }
+
+        private void renderDirect(IntBuffer ib) {
+            update(dirty);
+            mappedData.attach(ib);
+            try {
+                paintFrame(mappedGraphics);
+            } finally {
+                mappedData.detach();
+            }
+        }
+
+        private void renderLayer(IntBuffer ib) {
+            renderLayer();
+            Compositor.blend(layerData, frame.width, layerBounds, ib);
+        }
+
+        /**
+         * Render the animation into the layer and blend it on to the YUV
+         * planes, or composite the layer rendered ahead in ASYNC mode.
+         */
+        private void renderYuv(ByteBuffer bytes, long pts, long duration) {
+            if (yuvOverlay != null) {
+                yuvOverlay.composite(bytes, pts, duration);
+            } else {
+                renderLayer();
+                yuv.blend(layerData, frame.width, layerBounds, bytes);
+            }
+        }
+
+        /**
+         * Clear the region of the layer painted for the previous frame, and
+         * paint the next frame of the animation into it.
+         */
+        private void renderLayer() {
+            for (int y = layerBounds.y; y < layerBounds.y + layerBounds.height; y++) {
+                int offset = y * frame.width + layerBounds.x;
+                Arrays.fill(layerData, offset, offset + layerBounds.width, 0);
+            }
+            paintLayer(layerGraphics, layerData, layerBounds);
+        }
+
+        /**
+         * Render the next frame of the animation into an overlay layer. Called
+         * on the AsyncOverlay worker thread.
+         */
+        private void renderLayer(Graphics2D layer, int[] layerData, Rectangle bounds, long pts) {
+            paintLayer(layer, layerData, bounds);
+        }
+
+        /**
+         * Cycle through COPY, DIRECT and LAYER rendering, timing each, until
+         * enough frames have been rendered to choose between them.
+         */
+        private void calibrate(IntBuffer ib) {
+            int index = calibrationFrame % CALIBRATION_MODES.length;
+            long start = System.nanoTime();
+            switch (CALIBRATION_MODES[index]) {
+                case COPY:
+                    renderCopy(ib);
+                    break;
+                case DIRECT:
+                    renderDirect(ib);
+                    break;
+                default:
+                    renderLayer(ib);
+            }
+            calibrationTimes[index] += System.nanoTime() - start;
+            if (++calibrationFrame == CALIBRATION_FRAMES) {
+                int fastest = 0;
+                for (int i = 1; i < calibrationTimes.length; i++) {
+                    if (calibrationTimes[i] < calibrationTimes[fastest]) {
+                        fastest = i;
+                    }
+                }
+                mode = CALIBRATION_MODES[fastest];
+                int frames = CALIBRATION_FRAMES / CALIBRATION_MODES.length;
+                StringBuilder sb = new StringBuilder("Renderer using " + mode + " mode.");
+                for (int i = 0; i < calibrationTimes.length; i++) {
+                    sb.append(i == 0 ? " " : ", ").append(CALIBRATION_MODES[i])
+                            .append(" : ").append(calibrationTimes[i] / frames / 1000)
+                            .append("us");
+                }
+                System.out.println(sb);
+            }
+        }
+
+        /**
+         * Read the rows (or part rows) of the Buffer within the region into
+         * the image data.
+         */
+        private void read(IntBuffer ib, Rectangle region) {
+            int width = frame.width;
+            if (region.width == width) {
+                int offset = region.y * width;
+                ib.position(offset);
+                ib.get(data, offset, region.height * width);
+            } else {
+                for (int y = region.y; y < region.y + region.height; y++) {
+                    int offset = y * width + region.x;
+                    ib.position(offset);
+                    ib.get(data, offset, region.width);
+                }
+            }
+        }
+
+        /**
+         * Write the rows (or part rows) of the image data within the region
+         * back into the Buffer.
+         */
+        private void write(IntBuffer ib, Rectangle region) {
+            int width = frame.width;
+            if (region.width == width) {
+                int offset = region.y * width;
+                ib.position(offset);
+                ib.put(data, offset, region.height * width);
+            } else {
+                for (int y = region.y; y < region.y + region.height; y++) {
+                    int offset = y * width + region.x;
+                    ib.position(offset);
+                    ib.put(data, offset, region.width);
+                }
+            }
+        }
+
+        /**
+         * Blit the title and running time clock on to the frame from the
+         * sprite cache. The clock is an empty badge with a sprite blitted on
+         * top for each character of HH:MM:SS. Hours wrap at 100.
+         */
+        private void renderSprites(ByteBuffer bytes, IntBuffer ib, long pts) {
+            int margin = badgeHeight / 2;
+            SpriteCache.Sprite sprite = sprites.get(title, badgeRasterizer);
+            blit(sprite, margin, margin, bytes, ib);
+            if (ClockTime.isValid(pts)) {
+                long seconds = ClockTime.toSeconds(pts);
+                long digits = (seconds / 3600) % 100 * 10000
+                        + (seconds / 60) % 60 * 100 + seconds % 60;
+                sprite = sprites.get(clock, badgeRasterizer);
+                int x = frame.width - sprite.width - margin;
+                int y = frame.height - sprite.height - margin;
+                blit(sprite, x, y, bytes, ib);
+                x += (sprite.width - CLOCK_GLYPHS * glyphWidth) / 2;
+                for (int i = CLOCK_GLYPHS - 1; i >= 0; i--) {
+                    int glyph;
+                    if (i == 2 || i == 5) {
+                        glyph = COLON;
+                    } else {
+                        glyph = (int) (digits % 10);
+                        digits /= 10;
+                    }
+                    blit(sprites.get(glyphs[glyph], glyphRasterizer),
+                            x + i * glyphWidth, y, bytes, ib);
+                }
+            }
+        }
+
+        /**
+         * Blend a sprite on to the frame - on to the YUV planes of the mapped
+         * bytes if a YuvCompositor is in use, otherwise on to the RGB pixels.
+         */
+        private void blit(SpriteCache.Sprite sprite, int x, int y,
+                ByteBuffer bytes, IntBuffer ib) {
+            if (yuv != null) {
+                yuv.blend(sprite.data, sprite.width, sprite.height, x, y, bytes);
+            } else {
+                Compositor.blend(sprite.data, sprite.width, sprite.height,
+                        x, y, ib, frame.width, frame.height);
+            }
+        }
+
+        /**
+         * Rasterize text content on a translucent rounded badge.
+         */
+        private void paintBadge(Graphics2D g2d, Object content, int width, int height) {
             g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                     RenderingHints.VALUE_ANTIALIAS_ON);
-            for (Point point : points) {
+            g2d.setColor(BADGE);
+            g2d.fillRoundRect(0, 0, width, height, height / 2, height / 2);
+            paintGlyph(g2d, content, width, height);
+        }
+
+        /**
+         * Rasterize text content centred in white, without a background.
+         */
+        private void paintGlyph(Graphics2D g2d, Object content, int width, int height) {
+            g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2d.setColor(Color.WHITE);
+            g2d.setFont(font);
+            FontMetrics metrics = g2d.getFontMetrics();
+            String text = content.toString();
+            g2d.drawString(text, (width - metrics.stringWidth(text)) / 2,
+                    (height - metrics.getHeight()) / 2 + metrics.getAscent());
+        }
+
+        /**
+         * Paint the animation, already advanced by update(), on to the frame
+         * pixels of the image or mapped Buffer.
+         */
+        private void paintFrame(Graphics2D g2d) {
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.setPaint(fill);
+            g2d.fill(curve);
+            g2d.setColor(Color.BLACK);
+            g2d.draw(curve);
+        }
+
+        /**
+         * Advance the animation and paint it into a cleared, premultiplied
+         * ARGB layer, setting the region painted. The curve is filled in white
+         * so that the layer holds its antialiased coverage, each covered pixel
+         * replaced by the gradient tile pixel scaled to the coverage, and the
+         * outline drawn on top. The gradient is only rendered once, so no
+         * Paint context is created per frame.
+         */
+        private void paintLayer(Graphics2D g2d, int[] layer, Rectangle region) {
+            update(region);
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.setColor(Color.WHITE);
+            g2d.fill(curve);
+            int width = frame.width;
+            for (int y = region.y; y < region.y + region.height; y++) {
+                int offset = y * width;
+                int tileOffset = (y % GRADIENT_TILE) * GRADIENT_TILE;
+                for (int x = region.x; x < region.x + region.width; x++) {
+                    int coverage = layer[offset + x] >>> 24;
+                    if (coverage != 0) {
+                        layer[offset + x] = scale(
+                                gradient[tileOffset + x % GRADIENT_TILE], coverage);
+                    }
+                }
+            }
+            g2d.setColor(Color.BLACK);
+            g2d.draw(curve);
+        }
+
+        /**
+         * Advance the animation, and set the curve and the region of the frame
+         * it will draw over, allowing for the stroke and antialiasing.
+         */
+        private void update(Rectangle region) {
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            int width = frame.width;
+            int height = frame.height;
+            for (int i = 0; i < points.length; i++) {
+                Point point = points[i];
                 point.tick();
+                minX = Math.min(minX, point.x);
+                minY = Math.min(minY, point.y);
+                maxX = Math.max(maxX, point.x);
+                maxY = Math.max(maxY, point.y);
+                curve.set(i, point.x * width, point.y * height);
             }
-            GeneralPath path = new GeneralPath();
-            path.moveTo(points[0].x, points[0].y);
-            for (int i = 2; i < points.length; i += 2) {
-                path.quadTo(points[i - 1].x, points[i - 1].y,
-                        points[i].x, points[i].y);
+            // a quadratic curve lies within the hull of its control points
+            int x = (int) Math.floor(minX * width);
+            int y = (int) Math.floor(minY * height);
+            region.setBounds(x, y,
+                    (int) Math.ceil(maxX * width) - x,
+                    (int) Math.ceil(maxY * height) - y);
+            region.grow(2, 2);
+            Rectangle2D.intersect(region, frame, region);
+            if (region.isEmpty()) {
+                region.setSize(0, 0);
             }
-            path.closePath();
-            path.transform(AffineTransform.getScaleInstance(image.getWidth(), image.getHeight()));
-            g2d.setPaint(fill);
-            g2d.fill(path);
-            g2d.setColor(Color.BLACK);
-            g2d.draw(path);
+        }
+
+        /**
+         * Scale a premultiplied ARGB pixel by an alpha value.
+         */
+        private static int scale(int argb, int alpha) {
+            if (alpha == 255) {
+                return argb;
+            }
+            return (mul(argb >>> 24, alpha) << 24)
+                    | (mul((argb >> 16) & 0xff, alpha) << 16)
+                    | (mul((argb >> 8) & 0xff, alpha) << 8)
+                    | mul(argb & 0xff, alpha);
+        }
+
+        private static int mul(int value, int alpha) {
+            int x = value * alpha + 128;
+            return (x + (x >> 8)) >> 8;
+        }
+
+    }
+
+    /**
+     * A DataBuffer that reads and writes pixels in the mapped memory of a
+     * Buffer. The IntBuffer must be attached before rendering and detached
+     * before the Buffer is unmapped.
+     */
+    static class MappedDataBuffer extends DataBuffer {
+
+        private IntBuffer pixels;
+
+        private MappedDataBuffer(int size) {
+            super(TYPE_INT, size);
+        }
+
+        private void attach(IntBuffer pixels) {
+            this.pixels = pixels;
+        }
+
+        private void detach() {
+            this.pixels = null;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return pixels.get(i);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            pixels.put(i, val);
         }
 
     }
@@ -0,0 +1,170 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.freedesktop.gstreamer.Buffer;
+import org.freedesktop.gstreamer.Caps;
+import org.freedesktop.gstreamer.ClockTime;
+import org.freedesktop.gstreamer.Fraction;
+import org.freedesktop.gstreamer.Pad;
+import org.freedesktop.gstreamer.PadProbeInfo;
+import org.freedesktop.gstreamer.PadProbeReturn;
+import org.freedesktop.gstreamer.Structure;
+
+/**
+ * Timing statistics for a buffer Pad.PROBE. Use wrap() to instrument any probe
+ * - the duration of every callback is recorded into a lock-free Histogram, and
+ * callbacks taking longer than the frame budget are counted. The budget is the
+ * frame interval from the negotiated framerate of the pad, or the buffer
+ * duration if the framerate is variable.
+ * <p>
+ * Probes that map buffers can report the time taken to map and unmap with
+ * recordMapping(), so that it is reported separately from render time (the
+ * remainder of the callback).
+ */
+class ProbeStats {
+
+    private final String name;
+    private final Histogram callback;
+    private final Histogram map;
+    private final Histogram render;
+    private final Histogram unmap;
+    private final AtomicLong overBudget;
+
+    private volatile long budget;
+    private long pendingMap;
+    private long pendingUnmap;
+
+    /**
+     * Create a ProbeStats.
+     *
+     * @param name name for reports
+     */
+    ProbeStats(String name) {
+        this.name = name;
+        callback = new Histogram();
+        map = new Histogram();
+        render = new Histogram();
+        unmap = new Histogram();
+        overBudget = new AtomicLong();
+        budget = -1;
+    }
+
+    /**
+     * Wrap a probe so that its callbacks are timed by this ProbeStats.
+     *
+     * @param probe probe to wrap
+     * @return instrumented probe
+     */
+    Pad.PROBE wrap(Pad.PROBE probe) {
+        return (pad, info) -> {
+            if (budget < 0) {
+                budget = findBudget(pad, info);
+            }
+            pendingMap = 0;
+            pendingUnmap = 0;
+            long start = System.nanoTime();
+            PadProbeReturn ret = probe.probeCallback(pad, info);
+            long time = System.nanoTime() - start;
+            callback.record(time);
+            if (pendingMap > 0 || pendingUnmap > 0) {
+                map.record(pendingMap);
+                unmap.record(pendingUnmap);
+            }
+            render.record(time - pendingMap - pendingUnmap);
+            long b = budget;
+            if (b > 0 && time > b) {
+                overBudget.incrementAndGet();
+            }
+            return ret;
+        };
+    }
+
+    /**
+     * Record the time taken to map and unmap the buffer in the current
+     * callback. Must be called from inside the wrapped probe.
+     *
+     * @param mapNanos time to map
+     * @param unmapNanos time to unmap
+     */
+    void recordMapping(long mapNanos, long unmapNanos) {
+        pendingMap = mapNanos;
+        pendingUnmap = unmapNanos;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Histogram getCallback() {
+        return callback;
+    }
+
+    Histogram getMap() {
+        return map;
+    }
+
+    Histogram getRender() {
+        return render;
+    }
+
+    Histogram getUnmap() {
+        return unmap;
+    }
+
+    /**
+     * @return frame budget in nanoseconds, or zero if not known
+     */
+    long getBudget() {
+        return Math.max(0, budget);
+    }
+
+    /**
+     * @return number of callbacks that exceeded the frame budget
+     */
+    long getOverBudget() {
+        return overBudget.get();
+    }
+
+    /**
+     * Format a multi-line report of all statistics.
+     */
+    String report() {
+        long b = budget;
+        return name + " : " + overBudget.get() + " of " + callback.getCount()
+                + " buffers over " + (b > 0 ? String.format("%.2fms", b / 1e6) : "unknown")
+                + " budget\n"
+                + "  callback : " + callback.summary() + "\n"
+                + "  map      : " + map.summary() + "\n"
+                + "  render   : " + render.summary() + "\n"
+                + "  unmap    : " + unmap.summary();
+    }
+
+    private static long findBudget(Pad pad, PadProbeInfo info) {
+        Caps caps = pad.getCurrentCaps();
+        if (caps != null && caps.size() > 0) {
+            Structure s = caps.getStructure(0);
+            if (s.hasField("framerate")) {
+                Fraction rate = s.getFraction("framerate");
+                if (rate.getNumerator() > 0 && rate.getDenominator() > 0) {
+                    return ClockTime.fromSeconds(1) * rate.getDenominator()
+                            / rate.getNumerator();
+                }
+            }
+        }
+        Buffer buffer = info.getBuffer();
+        long duration = buffer == null ? ClockTime.NONE : buffer.getDuration();
+        return ClockTime.isValid(duration) ? duration : 0;
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.awt.Rectangle;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Composites overlay regions on to frames in parallel, splitting the region
+ * into bands of rows that are blended on a ForkJoinPool. The blend method only
+ * returns once all bands are complete, so it can be called from a pad probe
+ * in place of Compositor.blend.
+ * <p>
+ * BufferProbe only uses bands in ASYNC mode with the RGB format, where the
+ * composite is all the work left on the streaming thread.
+ * <p>
+ * The band tasks are allocated once and reinitialized for each frame. The
+ * average and maximum per-band cost, the wall clock time per frame, and the
+ * achieved speedup (total band time / wall clock time) are printed every
+ * report interval.
+ */
+class TiledCompositor {
+
+    private static final int MIN_BAND_ROWS = 16;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private final ForkJoinPool pool;
+    private final Band[] bands;
+    private final RecursiveAction root;
+    private final int reportInterval;
+
+    private int[] overlay;
+    private int width;
+    private int x;
+    private int w;
+    private IntBuffer frame;
+
+    private long frames;
+    private long wallTime;
+    private long bandTime;
+    private long maxBandTime;
+    private int bandCount;
+
+    /**
+     * Create a TiledCompositor.
+     *
+     * @param bands maximum number of bands (and pool threads)
+     * @param reportInterval number of frames between reports, or zero for
+     * none
+     */
+    TiledCompositor(int bands, int reportInterval) {
+        if (bands < 1) {
+            throw new IllegalArgumentException("Bands must be at least 1");
+        }
+        this.pool = new ForkJoinPool(bands);
+        this.bands = new Band[bands];
+        for (int i = 0; i < bands; i++) {
+            this.bands[i] = new Band();
+        }
+        this.root = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                for (int i = 1; i < bandCount; i++) {
+                    TiledCompositor.this.bands[i].fork();
+                }
+                TiledCompositor.this.bands[0].invoke();
+                for (int i = 1; i < bandCount; i++) {
+                    TiledCompositor.this.bands[i].join();
+                }
+            }
+        };
+        this.reportInterval = reportInterval;
+    }
+
+    /**
+     * Composite the region of the overlay on to the same region of the frame,
+     * blocking until complete. See Compositor.blend.
+     *
+     * @param overlay premultiplied ARGB overlay pixels
+     * @param width width of overlay and frame
+     * @param region region to composite
+     * @param frame mapped frame pixels
+     */
+    void blend(int[] overlay, int width, Rectangle region, IntBuffer frame) {
+        long start = System.nanoTime();
+        int count = Math.max(1,
+                Math.min(bands.length, region.height / MIN_BAND_ROWS));
+        int rows = region.height / count;
+        int y = region.y;
+        for (int i = 0; i < count; i++) {
+            Band band = bands[i];
+            band.reinitialize();
+            band.y0 = y;
+            y = i == count - 1 ? region.y + region.height : y + rows;
+            band.y1 = y;
+        }
+        this.overlay = overlay;
+        this.width = width;
+        this.x = region.x;
+        this.w = region.width;
+        this.frame = frame;
+        this.bandCount = count;
+        root.reinitialize();
+        pool.invoke(root);
+        this.overlay = null;
+        this.frame = null;
+        wallTime += System.nanoTime() - start;
+        for (int i = 0; i < count; i++) {
+            long time = bands[i].time;
+            bandTime += time;
+            maxBandTime = Math.max(maxBandTime, time);
+        }
+        frames++;
+        if (reportInterval > 0 && frames % reportInterval == 0) {
+            report();
+        }
+    }
+
+    /**
+     * Shut down the pool threads.
+     */
+    void dispose() {
+        pool.shutdown();
+    }
+
+    private void report() {
+        long bandsRun = 0;
+        for (int i = 0; i < bands.length; i++) {
+            bandsRun += bands[i].runs;
+            bands[i].runs = 0;
+        }
+        System.out.println("TiledCompositor : " + bands.length + " bands, band avg "
+                + (bandTime / Math.max(1, bandsRun) / 1000) + "us, band max "
+                + (maxBandTime / 1000) + "us, frame avg "
+                + (wallTime / reportInterval / 1000) + "us, speedup "
+                + String.format("%.2fx", (double) bandTime / Math.max(1, wallTime)));
+        wallTime = 0;
+        bandTime = 0;
+        maxBandTime = 0;
+    }
+
+    /**
+     * Per-band cost is measured in thread CPU time where supported, so that
+     * time a band spends descheduled is not counted as work.
+     */
+    private static long now() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private final class Band extends RecursiveAction {
+
+        // never serialized, but RecursiveAction is Serializable
+        private static final long serialVersionUID = 1L;
+
+        private int y0;
+        private int y1;
+        private long time;
+        private long runs;
+
+        @Override
+        protected void compute() {
+            long start = now();
+            Compositor.blendRows(overlay, width, x, w, y0, y1, frame);
+            time = now() - start;
+            runs++;
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+/**
+ * Chooses an overlay quality level from the measured per-frame rendering cost,
+ * so that a slow overlay degrades gracefully rather than stalling the
+ * pipeline.
+ * <p>
+ * The cost is tracked as an exponential moving average. When it rises above
+ * half the frame interval the quality steps down a level. When it stays below
+ * a fifth of the frame interval for a few seconds the quality steps back up.
+ * A step up that has to be reverted doubles the time before the next attempt.
+ * <p>
+ * Level changes are counted rather than printed, as record() is called on the
+ * streaming thread. Use report() to print them from another thread.
+ */
+class AdaptiveQuality {
+
+    /**
+     * Quality levels, from best to cheapest.
+     */
+    enum Level {
+
+        FULL(true, true, 1),
+        NO_ANTIALIAS(false, true, 1),
+        NO_STROKE(false, false, 1),
+        HALF_RATE(false, false, 2),
+        QUARTER_RATE(false, false, 4);
+
+        /**
+         * Whether to antialias drawing.
+         */
+        final boolean antialias;
+        /**
+         * Whether to stroke paths as well as fill them.
+         */
+        final boolean stroke;
+        /**
+         * Update the overlay every interval frames. The last overlay is
+         * reused for the frames in between.
+         */
+        final int interval;
+
+        private Level(boolean antialias, boolean stroke, int interval) {
+            this.antialias = antialias;
+            this.stroke = stroke;
+            this.interval = interval;
+        }
+
+    }
+
+    private static final Level[] LEVELS = Level.values();
+    private static final double HIGH_WATER = 0.5;
+    private static final double LOW_WATER = 0.2;
+    private static final int SETTLE_FRAMES = 15;
+    private static final long MAX_HOLD_SECONDS = 60;
+
+    private final long frameInterval;
+    private final boolean enabled;
+    private final long minHoldFrames;
+    private final long maxHoldFrames;
+
+    private volatile Level level;
+    private double average;
+    private long frames;
+    private long framesAtLevel;
+    private long holdFrames;
+    private boolean steppedUp;
+    private volatile int changes;
+    private volatile long changeCost;
+    private int reportedChanges;
+
+    /**
+     * Create an AdaptiveQuality.
+     *
+     * @param frameInterval frame interval in nanoseconds
+     * @param enabled false to always stay at FULL quality
+     */
+    AdaptiveQuality(long frameInterval, boolean enabled) {
+        this.frameInterval = frameInterval;
+        this.enabled = enabled;
+        long fps = Math.max(1, 1_000_000_000L / frameInterval);
+        minHoldFrames = 3 * fps;
+        maxHoldFrames = MAX_HOLD_SECONDS * fps;
+        holdFrames = minHoldFrames;
+        level = Level.FULL;
+    }
+
+    /**
+     * The current quality level. May be read from any thread.
+     */
+    Level level() {
+        return level;
+    }
+
+    /**
+     * Whether the overlay should be updated on this frame, according to the
+     * update interval of the current level. Call once per frame, before
+     * record().
+     */
+    boolean isUpdateFrame() {
+        return frames % level.interval == 0;
+    }
+
+    /**
+     * Record the rendering cost of the current frame, and adjust the quality
+     * level if required.
+     *
+     * @param nanos rendering cost in nanoseconds
+     */
+    void record(long nanos) {
+        frames++;
+        framesAtLevel++;
+        average += (nanos - average) / 16;
+        if (!enabled || framesAtLevel < SETTLE_FRAMES) {
+            return;
+        }
+        int index = level.ordinal();
+        if (average > HIGH_WATER * frameInterval && index < LEVELS.length - 1) {
+            if (steppedUp && framesAtLevel < holdFrames) {
+                holdFrames = Math.min(holdFrames * 2, maxHoldFrames);
+            }
+            change(LEVELS[index + 1], false);
+        } else if (average < LOW_WATER * frameInterval && index > 0
+                && framesAtLevel >= holdFrames) {
+            change(LEVELS[index - 1], true);
+        } else if (framesAtLevel == maxHoldFrames) {
+            holdFrames = minHoldFrames;
+        }
+    }
+
+    private void change(Level next, boolean up) {
+        changeCost = (long) average;
+        level = next;
+        framesAtLevel = 0;
+        steppedUp = up;
+        changes++;
+    }
+
+    /**
+     * Format the current level and the number of level changes since the
+     * last report. Call from a single reporting thread.
+     */
+    String report() {
+        int count = changes;
+        StringBuilder sb = new StringBuilder(String.format(
+                "%s, %d changes", level, count - reportedChanges));
+        if (count != reportedChanges) {
+            sb.append(String.format(" (cost %.2fms of %.2fms frame at last change)",
+                    changeCost / 1e6, frameInterval / 1e6));
+        }
+        reportedChanges = count;
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the heap allocated by the current thread between begin() and end()
+ * for each of a series of frames, using the HotSpot ThreadMXBean extension.
+ * The cost of reading the allocated bytes, if any, is measured once and
+ * subtracted.
+ * <p>
+ * Frames should be rendered until warmUp() returns false before checking, so
+ * that one-off allocation (eg. sprite rasterization and calibration) is not
+ * counted. Until JIT compilation settles, HotSpot can also allocate briefly on
+ * the thread when switching between interpreted and compiled code, so warm up
+ * continues until no compilation happens over a whole period. Code paths first
+ * taken after the warm up (eg. a change of quality level) are compiled later,
+ * so a frame that allocates while JIT compilation completes is counted
+ * separately rather than failing the check. HotSpot can also allocate once in
+ * a frame when compiled code is deoptimized, which does not recur, so checked
+ * frames should be measured again while retry() returns true - allocation by
+ * the frame code itself is measured again on the second run.
+ */
+class AllocationCheck {
+
+    private static final int WARMUP_PERIOD = 1000;
+
+    private final com.sun.management.ThreadMXBean threads;
+    private final CompilationMXBean compiler;
+    private final long thread;
+    private final long overhead;
+
+    private long warmUpFrames;
+    private long warmUpCompilation = -1;
+    private long start;
+    private long startCompilation;
+    private long frames;
+    private long compiling;
+    private long allocating;
+    private long total;
+    private long max;
+    private boolean retried;
+    private long retriedAllocating;
+    private long retriedTotal;
+
+    /**
+     * Create an AllocationCheck for the current thread.
+     *
+     * @throws UnsupportedOperationException if allocation cannot be measured
+     */
+    AllocationCheck() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException("Thread allocation not supported");
+        }
+        threads = (com.sun.management.ThreadMXBean) bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        thread = Thread.currentThread().getId();
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < 100; i++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            min = Math.min(min, threads.getThreadAllocatedBytes(thread) - before);
+        }
+        overhead = min;
+        compiler = ManagementFactory.getCompilationMXBean();
+    }
+
+    /**
+     * Count a warm up frame, and return whether to keep warming up. Warm up
+     * ends after a period of frames without JIT compilation, or after a fixed
+     * period if compilation time is not available.
+     */
+    boolean warmUp() {
+        if (++warmUpFrames % WARMUP_PERIOD != 0) {
+            return true;
+        }
+        long time = compilationTime();
+        if (time < 0) {
+            return warmUpFrames < WARMUP_PERIOD * 10;
+        }
+        boolean compiled = time != warmUpCompilation;
+        warmUpCompilation = time;
+        return compiled;
+    }
+
+    /**
+     * Start measuring a frame.
+     */
+    void begin() {
+        startCompilation = compilationTime();
+        start = threads.getThreadAllocatedBytes(thread);
+    }
+
+    /**
+     * Finish measuring a frame.
+     */
+    void end() {
+        long bytes = threads.getThreadAllocatedBytes(thread) - start - overhead;
+        frames++;
+        if (bytes > 0 && startCompilation >= 0
+                && compilationTime() != startCompilation) {
+            compiling++;
+        } else if (bytes > 0) {
+            allocating++;
+            total += bytes;
+            max = Math.max(max, bytes);
+        }
+    }
+
+    /**
+     * Return whether to measure the frames again, which is true once if any
+     * measured frame allocated. The counts of the first run are kept for the
+     * report.
+     */
+    boolean retry() {
+        if (passed() || retried) {
+            return false;
+        }
+        retried = true;
+        retriedAllocating = allocating;
+        retriedTotal = total;
+        frames = 0;
+        compiling = 0;
+        allocating = 0;
+        total = 0;
+        max = 0;
+        return true;
+    }
+
+    /**
+     * Whether no measured frame allocated.
+     */
+    boolean passed() {
+        return frames > 0 && allocating == 0;
+    }
+
+    /**
+     * Format a summary of the measured frames.
+     */
+    String report() {
+        return (passed() ? "PASSED" : "FAILED") + ", " + allocating + " of " + frames
+                + " frames allocated, " + total + " bytes total, " + max + " bytes max ("
+                + warmUpFrames + " warm up frames, " + compiling
+                + " frames allocated during JIT compilation"
+                + (retried ? ", measured again after " + retriedAllocating
+                        + " frames allocated " + retriedTotal + " bytes" : "")
+                + ")";
+    }
+
+    /**
+     * The total JIT compilation time, or -1 if not available.
+     */
+    private long compilationTime() {
+        if (compiler == null || !compiler.isCompilationTimeMonitoringSupported()) {
+            return -1;
+        }
+        return compiler.getTotalCompilationTime();
+    }
+
+}
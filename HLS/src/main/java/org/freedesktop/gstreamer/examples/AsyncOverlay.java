@@ -0,0 +1,336 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import org.freedesktop.gstreamer.ClockTime;
+
+/**
+ * Renders overlay layers on a worker thread ahead of the video buffers they
+ * will be composited on to, so that only the composite happens on the
+ * streaming thread.
+ * <p>
+ * Each layer is rendered for a presentation timestamp. The worker renders up
+ * to depth layers ahead of the stream, one frame duration apart. A layer is
+ * composited on to the buffer whose timestamp it matches to within half a
+ * frame. If the stream gets ahead of the worker (or timestamps jump), out of
+ * date layers are discarded and the worker is resynchronized to the next
+ * frame.
+ * <p>
+ * The frame type depends on the Blender used to composite layers - eg. an
+ * IntBuffer for RGB (see Compositor) or a ByteBuffer for YUV (see
+ * YuvCompositor) formats.
+ * <p>
+ * Layers are passed between the threads on lock-free rings, and the worker
+ * parks while waiting for a free layer, so compositing never allocates or
+ * contends for a lock on the streaming thread.
+ *
+ * @param <F> mapped frame type
+ */
+class AsyncOverlay<F> {
+
+    private static final long DEFAULT_FRAME_DURATION = ClockTime.fromSeconds(1) / 30;
+
+    /**
+     * Paints the overlay for a timestamp into a cleared, premultiplied ARGB
+     * layer, through its Graphics2D or directly into its pixels (the same
+     * width as the frame). The bounds must be set to the region painted. The
+     * same Graphics2D is passed in each time a layer is reused.
+     */
+    @FunctionalInterface
+    interface Painter {
+
+        void paint(Graphics2D layer, int[] data, Rectangle bounds, long pts);
+
+    }
+
+    /**
+     * Composites the region of a premultiplied ARGB layer on to the same
+     * region of the mapped frame. See Compositor.blend.
+     *
+     * @param <F> mapped frame type
+     */
+    @FunctionalInterface
+    interface Blender<F> {
+
+        void blend(int[] layer, int width, Rectangle region, F frame);
+
+    }
+
+    private final int width;
+    private final int height;
+    private final Painter painter;
+    private final Blender<F> blender;
+    private final Ring free;
+    private final Ring ready;
+    private final AtomicLong resync;
+
+    private volatile long frameDuration;
+    private Thread worker;
+    private long lastPts;
+    private long composited;
+    private long missed;
+
+    /**
+     * Create an AsyncOverlay.
+     *
+     * @param width frame width
+     * @param height frame height
+     * @param depth number of layers that may be rendered ahead
+     * @param painter overlay painter, called on the worker thread
+     * @param blender layer compositor, called on the streaming thread
+     */
+    AsyncOverlay(int width, int height, int depth, Painter painter,
+            Blender<F> blender) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Depth must be at least 1");
+        }
+        this.width = width;
+        this.height = height;
+        this.painter = painter;
+        this.blender = blender;
+        free = new Ring(depth);
+        ready = new Ring(depth);
+        for (int i = 0; i < depth; i++) {
+            free.offer(new Layer(width, height));
+        }
+        resync = new AtomicLong(ClockTime.NONE);
+        frameDuration = DEFAULT_FRAME_DURATION;
+        lastPts = ClockTime.NONE;
+    }
+
+    /**
+     * Composite the layer rendered for the buffer timestamp on to the mapped
+     * buffer, if one is ready. Must be called on the streaming thread.
+     *
+     * @param frame mapped buffer pixels
+     * @param pts buffer presentation timestamp
+     * @param duration buffer duration, or ClockTime.NONE
+     * @return true if a matching layer was composited
+     */
+    boolean composite(F frame, long pts, long duration) {
+        updateFrameDuration(pts, duration);
+        if (worker == null) {
+            start(pts);
+        }
+        Layer layer;
+        if (!ClockTime.isValid(pts)) {
+            // no timestamps to match against - use whatever is ready
+            layer = ready.poll();
+            if (layer != null) {
+                blend(layer, frame);
+                return true;
+            }
+            missed++;
+            return false;
+        }
+        long tolerance = frameDuration / 2;
+        boolean stale = false;
+        while ((layer = ready.peek()) != null && layer.pts < pts - tolerance) {
+            release(ready.poll());
+            stale = true;
+        }
+        if (layer != null && layer.pts <= pts + tolerance) {
+            blend(ready.poll(), frame);
+            return true;
+        }
+        if (layer != null) {
+            // timestamps have gone backwards - discard everything ahead
+            while ((layer = ready.poll()) != null) {
+                release(layer);
+            }
+            stale = true;
+        }
+        if (stale) {
+            resync.set(pts + frameDuration);
+        }
+        missed++;
+        return false;
+    }
+
+    /**
+     * Number of buffers a layer has been composited on to.
+     */
+    long getComposited() {
+        return composited;
+    }
+
+    /**
+     * Number of buffers for which no matching layer was ready.
+     */
+    long getMissed() {
+        return missed;
+    }
+
+    /**
+     * Stop the worker thread.
+     */
+    void dispose() {
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    private void blend(Layer layer, F frame) {
+        blender.blend(layer.data, width, layer.bounds, frame);
+        release(layer);
+        composited++;
+    }
+
+    private void release(Layer layer) {
+        free.offer(layer);
+        LockSupport.unpark(worker);
+    }
+
+    private void updateFrameDuration(long pts, long duration) {
+        if (ClockTime.isValid(duration) && duration > 0) {
+            frameDuration = duration;
+        } else if (ClockTime.isValid(pts) && ClockTime.isValid(lastPts)
+                && pts > lastPts) {
+            frameDuration = pts - lastPts;
+        }
+        lastPts = pts;
+    }
+
+    private void start(long pts) {
+        if (ClockTime.isValid(pts)) {
+            resync.set(pts + frameDuration);
+        }
+        worker = new Thread(this::render, "AsyncOverlay");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void render() {
+        long next = ClockTime.NONE;
+        while (!Thread.currentThread().isInterrupted()) {
+            Layer layer = free.poll();
+            if (layer == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            long target = resync.getAndSet(ClockTime.NONE);
+            if (target != ClockTime.NONE) {
+                next = target;
+            }
+            layer.clear();
+            painter.paint(layer.graphics, layer.data, layer.bounds, next);
+            layer.clip();
+            layer.pts = next;
+            if (ClockTime.isValid(next)) {
+                next += frameDuration;
+            }
+            // every layer fits in the ring, so this always succeeds
+            ready.offer(layer);
+        }
+    }
+
+    /**
+     * A bounded queue of layers for a single producer and a single consumer
+     * thread, without locks or allocation.
+     */
+    private static class Ring {
+
+        private final AtomicReferenceArray<Layer> slots;
+        private final AtomicLong head;
+        private final AtomicLong tail;
+
+        private Ring(int capacity) {
+            slots = new AtomicReferenceArray<>(capacity);
+            head = new AtomicLong();
+            tail = new AtomicLong();
+        }
+
+        /**
+         * Add a layer if there is space. Producer thread only.
+         */
+        private boolean offer(Layer layer) {
+            long t = tail.get();
+            if (t - head.get() == slots.length()) {
+                return false;
+            }
+            slots.set((int) (t % slots.length()), layer);
+            tail.set(t + 1);
+            return true;
+        }
+
+        /**
+         * The oldest layer, or null if empty. Consumer thread only.
+         */
+        private Layer peek() {
+            long h = head.get();
+            return h == tail.get() ? null : slots.get((int) (h % slots.length()));
+        }
+
+        /**
+         * Remove the oldest layer, or return null if empty. Consumer thread
+         * only.
+         */
+        private Layer poll() {
+            long h = head.get();
+            if (h == tail.get()) {
+                return null;
+            }
+            int slot = (int) (h % slots.length());
+            Layer layer = slots.get(slot);
+            slots.set(slot, null);
+            head.set(h + 1);
+            return layer;
+        }
+
+    }
+
+    private static class Layer {
+
+        private final BufferedImage image;
+        private final Graphics2D graphics;
+        private final int[] data;
+        private final Rectangle bounds;
+        private final Rectangle frame;
+
+        private long pts;
+
+        private Layer(int width, int height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+            graphics = image.createGraphics();
+            data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            bounds = new Rectangle();
+            frame = new Rectangle(width, height);
+        }
+
+        private void clear() {
+            int width = image.getWidth();
+            for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+                int offset = y * width + bounds.x;
+                Arrays.fill(data, offset, offset + bounds.width, 0);
+            }
+            bounds.setBounds(0, 0, 0, 0);
+        }
+
+        private void clip() {
+            Rectangle2D.intersect(bounds, frame, bounds);
+            if (bounds.isEmpty()) {
+                bounds.setBounds(0, 0, 0, 0);
+            }
+        }
+
+    }
+
+}
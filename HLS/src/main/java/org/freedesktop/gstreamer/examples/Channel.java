@@ -0,0 +1,622 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import io.javalin.http.Context;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import org.freedesktop.gstreamer.Bus;
+import org.freedesktop.gstreamer.ClockTime;
+import org.freedesktop.gstreamer.Element;
+import org.freedesktop.gstreamer.Gst;
+import org.freedesktop.gstreamer.Pad;
+import org.freedesktop.gstreamer.PadProbeReturn;
+import org.freedesktop.gstreamer.PadProbeType;
+import org.freedesktop.gstreamer.Pipeline;
+import org.freedesktop.gstreamer.State;
+import org.freedesktop.gstreamer.elements.AppSink;
+
+/**
+ * A live channel - its own capture, overlay and encode pipeline, and the
+ * renditions serving its playlists and segments under /hls/{channel}. A
+ * single rendition is served directly under /hls/{channel}, multiple
+ * renditions under /hls/{channel}/{rendition} with a master playlist.
+ * <p>
+ * The Java CPU time spent rendering the overlay on the streaming thread,
+ * and an estimate of the heap used by the overlay images and segments,
+ * are accounted per channel. Native memory and encoder CPU time are not.
+ * <p>
+ * Viewers are tracked from live playlist requests. If there are none for
+ * the idle time the pipeline is paused. Pausing a live pipeline keeps its
+ * running time, so timestamps continue without a gap on resume. The
+ * playlist request that resumes it is held until a segment with new
+ * content is available. On resume every encoder is asked for a keyframe
+ * and a new segment started, marked as a discontinuity in the playlists
+ * generated or harvested in memory.
+ * <p>
+ * If a standby source is configured, failure of the channel source
+ * switches the input to the standby rather than stopping the channel (see
+ * FailoverInput). Every switch of input is marked as a discontinuity in
+ * the same way.
+ */
+class Channel {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final String name;
+    private final String source;
+    private final List<Rendition> renditions;
+    private final Pipeline pipeline;
+    private final HLS.Renderer renderer;
+    private final ProbeStats stats;
+    private final AdaptiveQuality quality;
+    private final LongAdder cpu;
+    private final Path dir;
+    private final HttpCache.Entry master;
+    private final DashManifest dash;
+    private final PlaylistGate ready;
+    private final long[] muxed;
+    private final long[] encoded;
+    private final ViewerTracker viewers;
+    private final AtomicLong suspensions;
+    private final ThumbnailTrack thumbnails;
+    private final FailoverInput failover;
+
+    private boolean suspended;
+    private boolean disposed;
+    private PlaylistGate resuming;
+
+    /**
+     * Create a channel.
+     *
+     * @param name channel name
+     * @param source pipeline description of the video source
+     * @param root directory for files on disk, or null for memory
+     * @param dvrRoot DVR archive directory, or null if not archiving
+     * @param lowLatency low latency mode
+     * @param sprites shared sprite cache
+     */
+    Channel(String name, String source, Path root, Path dvrRoot,
+            boolean lowLatency, SpriteCache sprites) throws IOException {
+        this.name = name;
+        this.source = source;
+
+        /**
+         * Set up the renditions to encode. The capture size is that of
+         * the largest.
+         */
+        renditions = Rendition.parse(HLS.RENDITIONS);
+        int width = renditions.get(0).width;
+        int height = renditions.get(0).height;
+
+        /**
+         * Set up a Caps string with the width, height and buffer format
+         * required for compositing the overlay on to RGB pixels in native
+         * int order, or for blending directly on to YUV planes.
+         */
+        YuvCompositor yuv = "RGB".equals(HLS.FORMAT) ? null
+                : new YuvCompositor(YuvCompositor.Format.valueOf(HLS.FORMAT), width, height);
+        String caps = "video/x-raw, width=" + width + ", height=" + height
+                + ", pixel-aspect-ratio=1/1, framerate=" + HLS.FPS + "/1, "
+                + (yuv != null ? "format=" + yuv.getFormat()
+                        : ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
+                        ? "format=BGRx" : "format=xRGB");
+
+        /**
+         * Use Gst.parseLaunch() to create a pipeline from a GStreamer
+         * string definition. This method returns Pipeline when more than
+         * one element is specified.
+         *
+         * The named Identity element can be acquired from the pipeline by
+         * name and the probe attached to its sink pad.
+         *
+         * The named HLSSink2 elements (one per rendition) can be acquired
+         * from the pipeline and configured to place files in memory or a
+         * temporary directory to be served by Javalin. In CMAF mode each
+         * rendition ends in an mp4mux producing fragmented MP4, and an
+         * AppSink passing it to a CmafPackager.
+         *
+         * The conversion back from RGB is only needed if not drawing on
+         * YUV. With multiple renditions or thumbnails, it happens once
+         * before a tee, and every encoder branch has a leaky queue so that
+         * each branch runs on its own thread, and a slow encoder drops
+         * frames rather than stalling the others.
+         *
+         * Thumbnails are taken from the same raw frames on another branch
+         * of the tee, ending in an AppSink passing them to a
+         * ThumbnailTrack.
+         *
+         * With a standby source, the source is in a bin linked to an
+         * input-selector, with the standby source linked to the other
+         * selector input, both converted to the same caps.
+         */
+        String standby = HLS.STANDBY == null ? null : ChannelRegistry.source(HLS.STANDBY);
+        String input = source + " ! videorate name=videorate ! videoconvert ! videoscale ! "
+                + caps;
+        StringBuilder launch = new StringBuilder(
+                (standby != null ? FailoverInput.branch(input) : input)
+                + " ! identity name=identity ! "
+                + (yuv != null ? "" : "videoconvert ! video/x-raw, format=I420 ! "));
+        if (renditions.size() == 1 && HLS.THUMBNAILS <= 0) {
+            launch.append(renditions.get(0).branch(lowLatency));
+        } else {
+            launch.append("tee name=tee");
+            for (Rendition rendition : renditions) {
+                launch.append(" tee. ! queue name=").append(rendition.queueName())
+                        .append(" leaky=downstream max-size-buffers=")
+                        .append(HLS.FPS).append(" max-size-bytes=0 max-size-time=0 ! ")
+                        .append(rendition.branch(lowLatency));
+            }
+        }
+        if (HLS.THUMBNAILS > 0) {
+            launch.append(" tee. ! ").append(ThumbnailTrack.branch("thumbnails",
+                    HLS.THUMBNAIL_WIDTH, HLS.THUMBNAIL_HEIGHT, HLS.THUMBNAILS));
+        }
+        if (standby != null) {
+            launch.append(FailoverInput.standby(standby
+                    + " ! videorate ! videoconvert ! videoscale ! " + caps));
+        }
+        pipeline = (Pipeline) Gst.parseLaunch(launch.toString());
+
+        /**
+         * The Renderer is wrapped by ProbeStats to record callback times
+         * against the frame budget, and the thread CPU time of each
+         * callback is added to the channel account.
+         */
+        stats = new ProbeStats("Renderer " + name);
+        quality = new AdaptiveQuality(ClockTime.fromSeconds(1) / HLS.FPS, HLS.ADAPTIVE);
+        renderer = new HLS.Renderer(width, height, HLS.DEPTH, yuv, HLS.TITLE + " : " + name,
+                sprites, stats, quality);
+        cpu = new LongAdder();
+        Pad.PROBE probe = stats.wrap(renderer);
+        boolean cpuTime = THREADS.isCurrentThreadCpuTimeSupported();
+        pipeline.getElementByName("identity").getStaticPad("sink")
+                .addProbe(PadProbeType.BUFFER, (pad, info) -> {
+                    long start = cpuTime ? THREADS.getCurrentThreadCpuTime() : 0;
+                    PadProbeReturn ret = probe.probeCallback(pad, info);
+                    if (cpuTime) {
+                        cpu.add(THREADS.getCurrentThreadCpuTime() - start);
+                    }
+                    return ret;
+                });
+
+        /**
+         * Keep the playlist and video files in memory if root is null,
+         * otherwise in a directory for this channel.
+         */
+        dir = root == null ? null : Files.createDirectory(root.resolve(name));
+        for (Rendition rendition : renditions) {
+            Element encoder = pipeline.getElementByName(rendition.encoderName());
+            rendition.encoder.attach(encoder);
+            rendition.configure(encoder, pipeline.getElementByName(rendition.sinkName()),
+                    pipeline.getBus(), dir, lowLatency, renderer::captureTime);
+            if (dvrRoot != null) {
+                rendition.archive(pipeline.getElementByName(rendition.sinkName()),
+                        pipeline.getBus(), dvrRoot.resolve(name).resolve(
+                                rendition.name == null ? "video" : rendition.name));
+            }
+        }
+        master = renditions.size() == 1 ? null
+                : new HttpCache.Entry(Rendition.master(renditions, lowLatency,
+                        "playlist.m3u8"));
+        if (HLS.CMAF) {
+            dash = new DashManifest(renditions.size() > 1, HLS.FPS);
+            for (Rendition rendition : renditions) {
+                dash.add(rendition.name == null ? "video" : rendition.name,
+                        rendition.width, rendition.height,
+                        (rendition.bitrate > 0 ? rendition.bitrate : HLS.DEFAULT_BITRATE) * 1100,
+                        rendition.getPackager());
+            }
+        } else {
+            dash = null;
+        }
+        List<PlaylistGate> gates = new ArrayList<>();
+        for (Rendition rendition : renditions) {
+            gates.add(rendition.gate);
+        }
+        ready = PlaylistGate.all(gates, HLS.READY_TIMEOUT);
+        muxed = new long[renditions.size()];
+        encoded = new long[renditions.size()];
+        viewers = new ViewerTracker(ClockTime.fromSeconds(HLS.IDLE > 0 ? HLS.IDLE : 30));
+        suspensions = new AtomicLong();
+        if (HLS.THUMBNAILS > 0) {
+            int sheetSeconds = HLS.THUMBNAILS * HLS.THUMBNAIL_GRID * HLS.THUMBNAIL_GRID;
+            thumbnails = new ThumbnailTrack(HLS.THUMBNAIL_WIDTH, HLS.THUMBNAIL_HEIGHT,
+                    ClockTime.fromSeconds(HLS.THUMBNAILS), HLS.THUMBNAIL_GRID, HLS.THUMBNAIL_GRID,
+                    (HLS.THUMBNAIL_WINDOW + sheetSeconds - 1) / sheetSeconds + 1);
+            thumbnails.attach((AppSink) pipeline.getElementByName("thumbnails"));
+        } else {
+            thumbnails = null;
+        }
+        failover = standby == null ? null
+                : new FailoverInput(name, pipeline, ClockTime.fromSeconds(1) / HLS.FPS,
+                        ClockTime.fromMillis(HLS.STALL), HLS.FAILOVER_RETRY, () -> {
+                            for (Rendition rendition : renditions) {
+                                rendition.discontinuity(pipeline);
+                            }
+                        });
+    }
+
+    /**
+     * Start the pipeline. The onStop callback is run (on the GStreamer
+     * executor) on EOS or error, other than errors of the source handled
+     * by switching to the standby.
+     */
+    void start(Runnable onStop) {
+        pipeline.getBus().connect((Bus.ERROR) ((source, code, message) -> {
+            System.out.println("Channel " + name + " : " + message);
+            if (failover == null || !failover.handleError(source, message)) {
+                Gst.invokeLater(onStop);
+            }
+        }));
+        pipeline.getBus().connect((Bus.EOS) (source) -> Gst.invokeLater(onStop));
+        pipeline.play();
+    }
+
+    /**
+     * Stop the pipeline and release the channel resources, including any
+     * files on disk.
+     */
+    void dispose() {
+        synchronized (this) {
+            disposed = true;
+        }
+        if (failover != null) {
+            failover.dispose();
+        }
+        pipeline.stop();
+        renderer.dispose();
+        for (Rendition rendition : renditions) {
+            if (rendition.getDvr() != null) {
+                rendition.getDvr().close();
+            }
+        }
+        pipeline.dispose();
+        if (dir != null) {
+            HLS.delete(dir);
+        }
+    }
+
+    /**
+     * The channel name.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * The gate opened once every rendition has segments available.
+     */
+    PlaylistGate getReady() {
+        return ready;
+    }
+
+    /**
+     * The number of encoders run by this channel.
+     */
+    int getEncoders() {
+        return renditions.size();
+    }
+
+    /**
+     * Serve a file of this channel. Playlist requests are held by the
+     * gates until the first playlist is written. Live playlist requests
+     * are counted as viewers, and resume the channel if suspended.
+     *
+     * @param ctx request context
+     * @param path path relative to /hls/{channel}
+     */
+    void serve(Context ctx, String path) throws Exception {
+        if (path.endsWith("playlist.m3u8") || DashManifest.NAME.equals(path)) {
+            viewers.touch(ctx.ip() + " " + ctx.userAgent());
+            PlaylistGate gate = wake();
+            if (gate != null) {
+                gate.wrap(c -> serveFile(c, path)).handle(ctx);
+                return;
+            }
+        }
+        serveFile(ctx, path);
+    }
+
+    /**
+     * Pause the pipeline if no live playlist has been requested for the
+     * idle time. Called periodically on the GStreamer executor.
+     */
+    void checkIdle() {
+        // remove inactive viewers
+        viewers.getViewers();
+        if (HLS.IDLE <= 0 || !ready.isOpen()) {
+            return;
+        }
+        synchronized (this) {
+            if (suspended || (resuming != null && !resuming.isOpen())
+                    || !viewers.isIdle()) {
+                return;
+            }
+            suspended = true;
+            resuming = null;
+        }
+        pipeline.pause();
+        suspensions.incrementAndGet();
+        System.out.println("Channel " + name + " suspended, no viewers for "
+                + HLS.IDLE + "s");
+    }
+
+    /**
+     * Resume the pipeline on the GStreamer executor if suspended.
+     *
+     * @return gate open once every rendition has a new segment, or null if
+     * not resuming
+     */
+    private synchronized PlaylistGate wake() {
+        if (suspended && resuming == null) {
+            List<PlaylistGate> gates = new ArrayList<>();
+            for (Rendition rendition : renditions) {
+                gates.add(rendition.awaitResume());
+            }
+            resuming = PlaylistGate.all(gates, HLS.READY_TIMEOUT);
+            Gst.invokeLater(this::resume);
+        }
+        if (resuming != null && resuming.isOpen()) {
+            resuming = null;
+        }
+        return resuming;
+    }
+
+    private void resume() {
+        synchronized (this) {
+            if (!suspended) {
+                return;
+            }
+            suspended = false;
+        }
+        pipeline.play();
+        for (Rendition rendition : renditions) {
+            rendition.discontinuity(pipeline);
+        }
+        Gst.getExecutor().schedule(this::endResumeSegment,
+                HLS.RESUME_SEGMENT, TimeUnit.NANOSECONDS);
+        System.out.println("Channel " + name + " resumed");
+    }
+
+    /**
+     * End the first segment after resuming early, unless the channel has
+     * been suspended again or disposed since.
+     */
+    private void endResumeSegment() {
+        synchronized (this) {
+            if (suspended || disposed) {
+                return;
+            }
+        }
+        for (Rendition rendition : renditions) {
+            rendition.endResumeSegment(pipeline);
+        }
+    }
+
+    private void serveFile(Context ctx, String path) throws Exception {
+        if (thumbnails != null && thumbnails.serve(ctx, path)) {
+            return;
+        }
+        if (master != null && "playlist.m3u8".equals(path)) {
+            ready.wrap(c -> HttpCache.serve(c, master,
+                    HttpCache.PLAYLIST_TYPE, HttpCache.PLAYLIST_CACHE)).handle(ctx);
+            return;
+        }
+        if (dash != null && DashManifest.NAME.equals(path)) {
+            ready.wrap(dash::serve).handle(ctx);
+            return;
+        }
+        if (master != null && DvrArchive.PLAYLIST.equals(path)
+                && renditions.get(0).getDvr() != null) {
+            // variant playlists for the same range
+            String query = ctx.queryString();
+            ctx.header("Cache-Control", HttpCache.REVALIDATE);
+            ctx.contentType(HttpCache.PLAYLIST_TYPE);
+            ctx.result(Rendition.master(renditions, false, DvrArchive.PLAYLIST
+                    + (query == null ? "" : "?" + query)));
+            return;
+        }
+        if (renditions.size() == 1) {
+            renditions.get(0).serve(ctx, path);
+            return;
+        }
+        int idx = path.indexOf('/');
+        for (Rendition rendition : renditions) {
+            if (idx > 0 && rendition.name.equals(path.substring(0, idx))) {
+                rendition.serve(ctx, path.substring(idx + 1));
+                return;
+            }
+        }
+        ctx.status(404);
+    }
+
+    /**
+     * A summary of the channel state and resource usage, eg. for JSON.
+     */
+    Map<String, Object> info() {
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("name", name);
+        info.put("source", source);
+        info.put("ready", ready.isOpen());
+        info.put("encoders", getEncoders());
+        info.put("renditions", renditions.stream()
+                .map(r -> r.name == null ? r.height + "p" : r.name)
+                .collect(Collectors.toList()));
+        info.put("cpuSeconds", cpu.sum() / 1e9);
+        info.put("overBudget", stats.getOverBudget());
+        info.put("heapBytes", memory());
+        info.put("viewers", viewers.getViewers());
+        synchronized (this) {
+            info.put("suspended", suspended);
+        }
+        if (renditions.get(0).getDvr() != null) {
+            info.put("dvrSegments", renditions.get(0).getDvr().getCount());
+        }
+        if (failover != null) {
+            info.put("input", failover.isOnStandby() ? "standby" : "primary");
+            info.put("failovers", failover.getFailovers());
+        }
+        return info;
+    }
+
+    /**
+     * Add the metrics of this channel to a scrape - pipeline state, source
+     * frame counts, Renderer probe times, and the metrics of each
+     * rendition.
+     */
+    void collect(Metrics metrics) {
+        String labels = Metrics.labels("channel", name);
+        State current = pipeline.getState(0);
+        for (State state : State.values()) {
+            if (state != State.VOID_PENDING) {
+                metrics.gauge("hls_pipeline_state",
+                        "Current pipeline state, 1 for the state in the label.",
+                        Metrics.labels("channel", name, "state", state.name()),
+                        state == current ? 1 : 0);
+            }
+        }
+        Element rate = pipeline.getElementByName("videorate");
+        metrics.counter("hls_source_frames_total",
+                "Frames from the source, before rate conversion.",
+                labels, ((Number) rate.get("in")).doubleValue());
+        metrics.counter("hls_source_dropped_frames_total",
+                "Source frames dropped by rate conversion.",
+                labels, ((Number) rate.get("drop")).doubleValue());
+        metrics.counter("hls_source_duplicated_frames_total",
+                "Source frames duplicated by rate conversion.",
+                labels, ((Number) rate.get("duplicate")).doubleValue());
+        metrics.histogram("hls_renderer_probe_seconds",
+                "Renderer probe callback time.",
+                Metrics.labels("channel", name, "phase", "callback"),
+                stats.getCallback(), Metrics.FRAME_BUCKETS, 1e9);
+        metrics.histogram("hls_renderer_probe_seconds",
+                "Renderer probe callback time.",
+                Metrics.labels("channel", name, "phase", "render"),
+                stats.getRender(), Metrics.FRAME_BUCKETS, 1e9);
+        metrics.gauge("hls_renderer_budget_seconds",
+                "Renderer frame budget.", labels, stats.getBudget() / 1e9);
+        metrics.counter("hls_renderer_over_budget_total",
+                "Renderer callbacks over the frame budget.",
+                labels, stats.getOverBudget());
+        metrics.counter("hls_renderer_cpu_seconds_total",
+                "Java CPU time of the Renderer probe.", labels, cpu.sum() / 1e9);
+        metrics.gauge("hls_heap_bytes",
+                "Estimated heap used by overlay images and segments.",
+                labels, memory());
+        metrics.gauge("hls_viewers",
+                "Clients that requested a live playlist within the idle time.",
+                labels, viewers.getViewers());
+        synchronized (this) {
+            metrics.gauge("hls_suspended",
+                    "Whether the channel is suspended for lack of viewers.",
+                    labels, suspended ? 1 : 0);
+        }
+        metrics.counter("hls_suspensions_total",
+                "Times the channel was suspended for lack of viewers.",
+                labels, suspensions.get());
+        if (failover != null) {
+            metrics.gauge("hls_input_standby",
+                    "Whether the standby input is active.", labels,
+                    failover.isOnStandby() ? 1 : 0);
+            metrics.counter("hls_input_failovers_total",
+                    "Switches to the standby input.", labels, failover.getFailovers());
+            metrics.counter("hls_input_restores_total",
+                    "Switches back to the channel source.", labels,
+                    failover.getRestores());
+            metrics.histogram("hls_input_recovery_seconds",
+                    "Time from detecting a source failure to the first standby frame.",
+                    labels, failover.getRecoveryTimes(), Metrics.FRAME_BUCKETS, 1e9);
+            metrics.histogram("hls_input_outage_seconds",
+                    "Time from a source failure to switching back to it.",
+                    labels, failover.getOutageTimes(), Metrics.REQUEST_BUCKETS, 1e9);
+        }
+        if (thumbnails != null) {
+            metrics.counter("hls_thumbnails_total",
+                    "Thumbnails added to sprite sheets.", labels,
+                    thumbnails.getCount());
+            metrics.histogram("hls_thumbnail_seconds",
+                    "Time to pack a thumbnail and encode its sprite sheet.",
+                    labels, thumbnails.getEncodeTimes(), Metrics.FRAME_BUCKETS, 1e9);
+        }
+        for (Rendition rendition : renditions) {
+            rendition.collect(metrics, name,
+                    pipeline.getElementByName(rendition.queueName()));
+        }
+    }
+
+    /**
+     * A report of the Renderer callback times and quality level, and the
+     * muxed output and encoder bitrates of each rendition since the last
+     * report. The container overhead is the muxed output in excess of the
+     * encoder output since the start, so that it is not skewed by output
+     * the muxer is still holding.
+     */
+    synchronized String report() {
+        StringBuilder sb = new StringBuilder(stats.report());
+        sb.append(String.format("%nQuality %s : %s", name, quality.report()));
+        for (int i = 0; i < muxed.length; i++) {
+            Rendition rendition = renditions.get(i);
+            long bytes = rendition.receivedBytes();
+            long encoder = rendition.encoder.getBytes();
+            if (bytes >= 0) {
+                sb.append(String.format("%nMuxed %s %s : %d kbit/s, encoded %d kbit/s,"
+                        + " container overhead %.1f%%", name,
+                        rendition.name == null ? "output" : rendition.name,
+                        (bytes - muxed[i]) * 8 / 10_000,
+                        (encoder - encoded[i]) * 8 / 10_000,
+                        encoder > 0 ? (bytes - encoder) * 100.0 / encoder : 0.0));
+                muxed[i] = bytes;
+            }
+            encoded[i] = encoder;
+            sb.append(String.format("%nSegments %s %s : %s", name,
+                    rendition.name == null ? "output" : rendition.name,
+                    rendition.getSegmenter().report()));
+        }
+        if (failover != null) {
+            sb.append(String.format("%nInput %s : %s", name, failover.report()));
+        }
+        sb.append(String.format("%nChannel %s : CPU %.1fs, heap %d kB", name,
+                cpu.sum() / 1e9, memory() / 1024));
+        return sb.toString();
+    }
+
+    /**
+     * Estimate of the heap used by the overlay images, the segments held
+     * in memory and the thumbnails.
+     */
+    private long memory() {
+        long bytes = renderer.getMemory();
+        if (thumbnails != null) {
+            bytes += thumbnails.getMemory();
+        }
+        for (Rendition rendition : renditions) {
+            if (rendition.getStore() != null) {
+                bytes += rendition.getStore().getSize();
+            }
+        }
+        return bytes;
+    }
+
+}
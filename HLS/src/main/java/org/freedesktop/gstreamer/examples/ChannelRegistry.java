@@ -0,0 +1,205 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The live channels hosted by the HLS server, each with its own pipeline
+ * and segment store (see Channel), served by a single Javalin instance.
+ * <p>
+ * Channels are created and deleted at runtime, eg. over HTTP. The total
+ * number of encoders across all channels is capped - creating a channel that
+ * would exceed the cap is refused before its pipeline is built. A channel is
+ * removed automatically if its pipeline stops on error or EOS.
+ * <p>
+ * The name and encoders of a channel being created are reserved while the
+ * registry is locked, but the channel itself is built and started outside the
+ * lock, so that lookups serving the existing channels are not held up.
+ * <p>
+ * Channel sources are restricted to named sources rather than arbitrary
+ * pipeline descriptions, as channels may be created by remote clients.
+ */
+class ChannelRegistry {
+
+    /**
+     * Creates the channel for a name and source pipeline description.
+     */
+    @FunctionalInterface
+    interface Factory {
+
+        Channel create(String name, String source) throws IOException;
+
+    }
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+    private static final Pattern TEST_PATTERN = Pattern.compile("[a-z0-9-]+");
+
+    private final int maxEncoders;
+    private final int channelEncoders;
+    private final Factory factory;
+    private final Map<String, Channel> channels;
+    private final Set<String> pending;
+
+    /**
+     * Create a ChannelRegistry.
+     *
+     * @param maxEncoders maximum number of encoders across all channels
+     * @param channelEncoders number of encoders run by each channel, from the
+     * rendition configuration
+     * @param factory channel factory
+     */
+    ChannelRegistry(int maxEncoders, int channelEncoders, Factory factory) {
+        this.maxEncoders = maxEncoders;
+        this.channelEncoders = channelEncoders;
+        this.factory = factory;
+        channels = new LinkedHashMap<>();
+        pending = new HashSet<>();
+    }
+
+    /**
+     * Convert a named source to a pipeline description - camera for
+     * autovideosrc, or test with an optional videotestsrc pattern, eg.
+     * test:ball.
+     *
+     * @param spec named source
+     * @return source pipeline description
+     * @throws IllegalArgumentException if the source is unknown
+     */
+    static String source(String spec) {
+        if ("camera".equals(spec)) {
+            return "autovideosrc";
+        } else if ("test".equals(spec)) {
+            return "videotestsrc is-live=true";
+        } else if (spec.startsWith("test:")
+                && TEST_PATTERN.matcher(spec.substring(5)).matches()) {
+            return "videotestsrc is-live=true pattern=" + spec.substring(5);
+        } else {
+            throw new IllegalArgumentException("Unknown source " + spec);
+        }
+    }
+
+    /**
+     * Create and start a channel.
+     *
+     * @param name channel name
+     * @param source source pipeline description
+     * @return channel, or null if a channel with the name exists or is being
+     * created
+     * @throws IllegalArgumentException if the name is invalid
+     * @throws IllegalStateException if the encoder cap would be exceeded
+     * @throws IOException if the channel cannot be created
+     */
+    Channel create(String name, String source) throws IOException {
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid channel name " + name);
+        }
+        synchronized (this) {
+            if (channels.containsKey(name) || pending.contains(name)) {
+                return null;
+            }
+            int encoders = pending.size() * channelEncoders;
+            for (Channel channel : channels.values()) {
+                encoders += channel.getEncoders();
+            }
+            if (encoders + channelEncoders > maxEncoders) {
+                throw new IllegalStateException("Maximum of " + maxEncoders
+                        + " encoders reached");
+            }
+            pending.add(name);
+        }
+        Channel channel;
+        try {
+            channel = factory.create(name, source);
+        } catch (IOException | RuntimeException ex) {
+            synchronized (this) {
+                pending.remove(name);
+            }
+            throw ex;
+        }
+        synchronized (this) {
+            pending.remove(name);
+            channels.put(name, channel);
+        }
+        try {
+            channel.start(() -> remove(name, channel));
+        } catch (RuntimeException ex) {
+            remove(name, channel);
+            throw ex;
+        }
+        return channel;
+    }
+
+    /**
+     * Get a channel by name.
+     *
+     * @param name channel name
+     * @return channel or null
+     */
+    synchronized Channel get(String name) {
+        return channels.get(name);
+    }
+
+    /**
+     * The current channels, in order of creation.
+     *
+     * @return channels
+     */
+    synchronized List<Channel> getChannels() {
+        return new ArrayList<>(channels.values());
+    }
+
+    /**
+     * Stop and delete a channel.
+     *
+     * @param name channel name
+     * @return false if no channel with the name exists
+     */
+    boolean delete(String name) {
+        Channel channel;
+        synchronized (this) {
+            channel = channels.remove(name);
+        }
+        if (channel == null) {
+            return false;
+        }
+        channel.dispose();
+        return true;
+    }
+
+    /**
+     * Stop and delete all channels.
+     */
+    void deleteAll() {
+        for (Channel channel : getChannels()) {
+            remove(channel.getName(), channel);
+        }
+    }
+
+    private void remove(String name, Channel channel) {
+        boolean removed;
+        synchronized (this) {
+            removed = channels.remove(name, channel);
+        }
+        if (removed) {
+            channel.dispose();
+        }
+    }
+
+}
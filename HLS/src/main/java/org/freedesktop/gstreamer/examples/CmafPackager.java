@@ -0,0 +1,409 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import org.freedesktop.gstreamer.Buffer;
+import org.freedesktop.gstreamer.ClockTime;
+import org.freedesktop.gstreamer.FlowReturn;
+import org.freedesktop.gstreamer.Sample;
+import org.freedesktop.gstreamer.elements.AppSink;
+
+/**
+ * Packages a fragmented MP4 stream (eg. from mp4mux with fragment-duration
+ * and streamable set) into CMAF init and media segments in a SegmentStore,
+ * with an HLS media playlist referencing them. The same segments can be
+ * listed in a DASH manifest (see DashManifest).
+ * <p>
+ * The muxer output is split on top level ISO BMFF boxes. The ftyp and moov
+ * boxes form the init segment (init.mp4). Each moof and mdat pair is a media
+ * segment - the encoder keyframe interval should match the muxer fragment
+ * duration so that every fragment starts with a keyframe. Segment start times
+ * are read from the track fragment decode time (tfdt), and durations
+ * calculated from the sample count at the fixed frame rate.
+ * <p>
+ * A discontinuity can be marked before the next segment, eg. when the
+ * pipeline resumes after being paused.
+ */
+class CmafPackager {
+
+    static final String INIT = "init.mp4";
+    static final String PLAYLIST = "playlist.m3u8";
+
+    private final SegmentStore store;
+    private final String segmentFormat;
+    private final int fps;
+    private final int window;
+    private final Deque<Segment> segments;
+    private final LongAdder received;
+
+    private byte[] pending;
+    private int pendingLength;
+    private ByteArrayOutputStream init;
+    private ByteArrayOutputStream fragment;
+    private long fragmentTime;
+    private int fragmentSamples;
+    private int timescale;
+    private String codecs;
+    private int nextSequence;
+    private long availabilityStart;
+    private boolean discontinuityPending;
+    private int discontinuitySequence;
+    private volatile SegmentStore.Listener listener;
+
+    /**
+     * Create a CmafPackager.
+     *
+     * @param store segment store to add segments and playlist to
+     * @param segmentFormat format of the media segment names, eg.
+     * segment%05d.m4s
+     * @param fps stream frame rate
+     * @param window number of segments in the playlist
+     */
+    CmafPackager(SegmentStore store, String segmentFormat, int fps, int window) {
+        this.store = store;
+        this.segmentFormat = segmentFormat;
+        this.fps = fps;
+        this.window = window;
+        segments = new ArrayDeque<>();
+        received = new LongAdder();
+        pending = new byte[1 << 16];
+        timescale = fps;
+        codecs = "avc1.42c01f";
+    }
+
+    /**
+     * Receive the muxer output from the AppSink.
+     *
+     * @param sink app sink
+     */
+    void attach(AppSink sink) {
+        sink.set("emit-signals", true);
+        sink.set("sync", false);
+        sink.connect((AppSink.NEW_SAMPLE) elem -> {
+            Sample sample = elem.pullSample();
+            Buffer buffer = sample.getBuffer();
+            ByteBuffer bytes = buffer.map(false);
+            if (bytes != null) {
+                push(bytes);
+                buffer.unmap();
+            }
+            sample.dispose();
+            return FlowReturn.OK;
+        });
+    }
+
+    /**
+     * Set the listener to be notified of complete segments.
+     *
+     * @param listener segment listener
+     */
+    void setListener(SegmentStore.Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Mark a discontinuity before the next segment.
+     */
+    synchronized void markDiscontinuity() {
+        discontinuityPending = true;
+    }
+
+    /**
+     * The track timescale, from the init segment.
+     */
+    synchronized int getTimescale() {
+        return timescale;
+    }
+
+    /**
+     * The RFC 6381 codecs string, from the init segment.
+     */
+    synchronized String getCodecs() {
+        return codecs;
+    }
+
+    /**
+     * The wall clock time, in milliseconds since the epoch, corresponding to
+     * media time zero. Estimated when the first segment is complete.
+     */
+    synchronized long getAvailabilityStart() {
+        return availabilityStart;
+    }
+
+    /**
+     * The sequence number of the next segment.
+     */
+    synchronized int getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * The segments currently in the playlist, oldest first.
+     */
+    synchronized List<Segment> getSegments() {
+        return new ArrayList<>(segments);
+    }
+
+    /**
+     * The total number of bytes received from the muxer.
+     */
+    long getReceivedBytes() {
+        return received.sum();
+    }
+
+    /**
+     * Append muxer output and handle all complete top level boxes.
+     */
+    private void push(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        received.add(length);
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending,
+                    Math.max(pending.length * 2, pendingLength + length));
+        }
+        bytes.get(pending, pendingLength, length);
+        pendingLength += length;
+        int offset = 0;
+        while (pendingLength - offset >= 8) {
+            long size = uint32(pending, offset);
+            if (size == 1) {
+                if (pendingLength - offset < 16) {
+                    break;
+                }
+                size = ByteBuffer.wrap(pending, offset + 8, 8).getLong();
+            }
+            if (size < 8 || size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Unsupported box size " + size);
+            }
+            if (pendingLength - offset < size) {
+                break;
+            }
+            box(type(pending, offset), offset, (int) size);
+            offset += size;
+        }
+        System.arraycopy(pending, offset, pending, 0, pendingLength - offset);
+        pendingLength -= offset;
+    }
+
+    private void box(String type, int offset, int size) {
+        switch (type) {
+            case "ftyp":
+                init = new ByteArrayOutputStream();
+                init.write(pending, offset, size);
+                break;
+            case "moov":
+                if (init != null) {
+                    init.write(pending, offset, size);
+                    readInit(pending, offset, size);
+                    store.put(INIT, init.toByteArray());
+                    init = null;
+                }
+                break;
+            case "moof":
+                fragment = new ByteArrayOutputStream(size);
+                fragment.write(pending, offset, size);
+                readFragment(pending, offset, size);
+                break;
+            case "mdat":
+                if (fragment != null) {
+                    fragment.write(pending, offset, size);
+                    addSegment(fragment.toByteArray());
+                    fragment = null;
+                }
+                break;
+            default:
+                // styp, sidx, mfra etc. are not needed
+                break;
+        }
+    }
+
+    private void addSegment(byte[] data) {
+        String name;
+        long duration;
+        synchronized (this) {
+            duration = (long) fragmentSamples * timescale / fps;
+            int sequence = nextSequence++;
+            Segment segment = new Segment(sequence,
+                    String.format(segmentFormat, sequence), fragmentTime, duration,
+                    discontinuityPending);
+            discontinuityPending = false;
+            name = segment.name;
+            store.put(name, data);
+            segments.addLast(segment);
+            while (segments.size() > window) {
+                Segment removed = segments.removeFirst();
+                store.remove(removed.name);
+                if (removed.discontinuity) {
+                    discontinuitySequence++;
+                }
+            }
+            if (availabilityStart == 0) {
+                availabilityStart = System.currentTimeMillis()
+                        - (fragmentTime + duration) * 1000 / timescale;
+            }
+            store.put(PLAYLIST, render());
+        }
+        SegmentStore.Listener l = listener;
+        if (l != null) {
+            // the fragment decode time is on the muxer timeline, not running time
+            l.fragmentAdded(name, ClockTime.NONE, duration * 1_000_000_000L / timescale);
+        }
+    }
+
+    private byte[] render() {
+        double target = 0;
+        for (Segment segment : segments) {
+            target = Math.max(target, segment.getDuration(timescale));
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:7\n");
+        sb.append("#EXT-X-TARGETDURATION:").append((int) Math.ceil(target)).append('\n');
+        sb.append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(segments.peekFirst().sequence).append('\n');
+        if (discontinuitySequence > 0) {
+            sb.append("#EXT-X-DISCONTINUITY-SEQUENCE:")
+                    .append(discontinuitySequence).append('\n');
+        }
+        sb.append("#EXT-X-MAP:URI=\"").append(INIT).append("\"\n");
+        for (Segment segment : segments) {
+            if (segment.discontinuity) {
+                sb.append("#EXT-X-DISCONTINUITY\n");
+            }
+            sb.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n",
+                    segment.getDuration(timescale)));
+            sb.append(segment.name).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the timescale (mdhd) and codec configuration (avcC) of the first
+     * track from the moov box.
+     */
+    private synchronized void readInit(byte[] data, int offset, int size) {
+        int trak = find(data, offset + 8, offset + size, "trak");
+        int mdia = child(data, trak, 8, "mdia");
+        int mdhd = child(data, mdia, 8, "mdhd");
+        if (mdhd >= 0) {
+            // full box - timescale follows the creation and modification times
+            timescale = (int) uint32(data, mdhd + (data[mdhd + 8] == 1 ? 28 : 20));
+        }
+        int stbl = child(data, child(data, mdia, 8, "minf"), 8, "stbl");
+        // stsd has a version, flags and entry count before the sample entries
+        int avc1 = child(data, child(data, stbl, 8, "stsd"), 16, "avc1");
+        // the visual sample entry has 78 bytes before its child boxes
+        int avcC = child(data, avc1, 86, "avcC");
+        if (avcC >= 0) {
+            codecs = String.format("avc1.%02x%02x%02x",
+                    data[avcC + 9], data[avcC + 10], data[avcC + 11]);
+        }
+    }
+
+    /**
+     * Read the decode time (tfdt) and sample count (trun) of the first track
+     * fragment from the moof box.
+     */
+    private synchronized void readFragment(byte[] data, int offset, int size) {
+        fragmentTime = 0;
+        fragmentSamples = 0;
+        int traf = find(data, offset + 8, offset + size, "traf");
+        if (traf < 0) {
+            return;
+        }
+        int trafEnd = traf + (int) uint32(data, traf);
+        int tfdt = child(data, traf, 8, "tfdt");
+        if (tfdt >= 0) {
+            fragmentTime = data[tfdt + 8] == 1
+                    ? ByteBuffer.wrap(data, tfdt + 12, 8).getLong()
+                    : uint32(data, tfdt + 12);
+        }
+        for (int trun = find(data, traf + 8, trafEnd, "trun"); trun >= 0;
+                trun = find(data, trun + (int) uint32(data, trun), trafEnd, "trun")) {
+            fragmentSamples += (int) uint32(data, trun + 12);
+        }
+    }
+
+    /**
+     * Find the offset of the first child box of the given type in the parent
+     * box, whose children start after header bytes, or -1. Returns -1 if
+     * parent is negative, so calls can be chained.
+     */
+    private static int child(byte[] data, int parent, int header, String type) {
+        return parent < 0 ? -1
+                : find(data, parent + header, parent + (int) uint32(data, parent), type);
+    }
+
+    /**
+     * Find the offset of the first box of the given type between start and
+     * end, or -1.
+     */
+    private static int find(byte[] data, int start, int end, String type) {
+        int offset = start;
+        while (offset + 8 <= end) {
+            long size = uint32(data, offset);
+            if (type.equals(type(data, offset))) {
+                return offset;
+            }
+            if (size < 8) {
+                return -1;
+            }
+            offset += size;
+        }
+        return -1;
+    }
+
+    private static long uint32(byte[] data, int offset) {
+        return ByteBuffer.wrap(data, offset, 4).getInt() & 0xFFFFFFFFL;
+    }
+
+    private static String type(byte[] data, int offset) {
+        return new String(data, offset + 4, 4, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * A media segment. Time and duration are in track timescale units.
+     */
+    static final class Segment {
+
+        final int sequence;
+        final String name;
+        final long time;
+        final long duration;
+        final boolean discontinuity;
+
+        private Segment(int sequence, String name, long time, long duration,
+                boolean discontinuity) {
+            this.sequence = sequence;
+            this.name = name;
+            this.time = time;
+            this.duration = duration;
+            this.discontinuity = discontinuity;
+        }
+
+        double getDuration(int timescale) {
+            return (double) duration / timescale;
+        }
+
+    }
+
+}
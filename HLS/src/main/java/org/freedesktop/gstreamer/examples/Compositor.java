@@ -0,0 +1,114 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.awt.Rectangle;
+import java.nio.IntBuffer;
+
+/**
+ * Utility methods for compositing premultiplied ARGB overlay pixels on to
+ * mapped video buffers in xRGB / BGRx format (native int order).
+ */
+class Compositor {
+
+    private Compositor() {
+    }
+
+    /**
+     * Composite the region of the overlay on to the same region of the frame.
+     * The overlay and frame must be the same width. Fully transparent overlay
+     * pixels are skipped without touching the frame.
+     *
+     * @param overlay premultiplied ARGB overlay pixels
+     * @param width width of overlay and frame
+     * @param region region to composite
+     * @param frame mapped frame pixels
+     */
+    static void blend(int[] overlay, int width, Rectangle region, IntBuffer frame) {
+        blendRows(overlay, width, region.x, region.width,
+                region.y, region.y + region.height, frame);
+    }
+
+    /**
+     * Composite part of rows y0 (inclusive) to y1 (exclusive) of the overlay
+     * on to the frame. Only absolute IntBuffer access is used, so separate
+     * rows of the same frame can be blended concurrently.
+     */
+    static void blendRows(int[] overlay, int width, int x, int w, int y0, int y1,
+            IntBuffer frame) {
+        for (int y = y0; y < y1; y++) {
+            int offset = y * width + x;
+            for (int i = offset; i < offset + w; i++) {
+                int src = overlay[i];
+                if (src != 0) {
+                    frame.put(i, over(src, frame.get(i)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Composite a sprite on to the frame with its top left corner at x, y. The
+     * sprite is clipped to the frame bounds.
+     *
+     * @param sprite premultiplied ARGB sprite pixels
+     * @param spriteWidth sprite width
+     * @param spriteHeight sprite height
+     * @param x frame x position
+     * @param y frame y position
+     * @param frame mapped frame pixels
+     * @param width frame width
+     * @param height frame height
+     */
+    static void blend(int[] sprite, int spriteWidth, int spriteHeight,
+            int x, int y, IntBuffer frame, int width, int height) {
+        int x0 = Math.max(0, x);
+        int x1 = Math.min(width, x + spriteWidth);
+        int y0 = Math.max(0, y);
+        int y1 = Math.min(height, y + spriteHeight);
+        for (int fy = y0; fy < y1; fy++) {
+            int src = (fy - y) * spriteWidth - x;
+            int dst = fy * width;
+            for (int fx = x0; fx < x1; fx++) {
+                int s = sprite[src + fx];
+                if (s != 0) {
+                    frame.put(dst + fx, over(s, frame.get(dst + fx)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Composite a premultiplied ARGB pixel over an opaque xRGB pixel. The
+     * upper (padding) byte of the destination is preserved.
+     */
+    static int over(int src, int dst) {
+        int a = src >>> 24;
+        if (a == 0) {
+            return dst;
+        }
+        if (a == 255) {
+            return (dst & 0xff000000) | (src & 0xffffff);
+        }
+        int ia = 255 - a;
+        int r = ((src >> 16) & 0xff) + div255(((dst >> 16) & 0xff) * ia);
+        int g = ((src >> 8) & 0xff) + div255(((dst >> 8) & 0xff) * ia);
+        int b = (src & 0xff) + div255((dst & 0xff) * ia);
+        return (dst & 0xff000000) | (r << 16) | (g << 8) | b;
+    }
+
+    private static int div255(int x) {
+        x += 128;
+        return (x + (x >> 8)) >> 8;
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.FlatteningPathIterator;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * A closed path of quadratic curves through a series of points, the same
+ * as a GeneralPath built with moveTo the first point, quadTo each
+ * following pair (control point, end point) and closePath.
+ * <p>
+ * Java2D asks a Shape for a new PathIterator each time it is filled or
+ * stroked. The Curve is its own PathIterator and returns itself, so that
+ * rendering it does not allocate. It must only be rendered by one thread
+ * at a time.
+ */
+class Curve implements Shape, PathIterator {
+
+    private final double[] coords;
+    private final double[] segmentCoords;
+    private final int quads;
+
+    private AffineTransform transform;
+    private int segment;
+
+    /**
+     * Create a Curve.
+     *
+     * @param points number of points - a start point, then a control point and
+     * end point per curve. A final control point without an end point is
+     * not used.
+     */
+    Curve(int points) {
+        coords = new double[points * 2];
+        segmentCoords = new double[4];
+        quads = (points - 1) / 2;
+    }
+
+    /**
+     * Set the position of a point.
+     */
+    void set(int point, double x, double y) {
+        coords[point * 2] = x;
+        coords[point * 2 + 1] = y;
+    }
+
+    @Override
+    public PathIterator getPathIterator(AffineTransform at) {
+        transform = at;
+        segment = 0;
+        return this;
+    }
+
+    @Override
+    public PathIterator getPathIterator(AffineTransform at, double flatness) {
+        return new FlatteningPathIterator(getPathIterator(at), flatness);
+    }
+
+    @Override
+    public int getWindingRule() {
+        return WIND_NON_ZERO;
+    }
+
+    @Override
+    public boolean isDone() {
+        return segment > quads + 1;
+    }
+
+    @Override
+    public void next() {
+        segment++;
+    }
+
+    @Override
+    public int currentSegment(float[] points) {
+        int type = currentSegment(segmentCoords);
+        for (int i = 0; i < 4; i++) {
+            points[i] = (float) segmentCoords[i];
+        }
+        return type;
+    }
+
+    @Override
+    public int currentSegment(double[] points) {
+        if (segment > quads) {
+            return SEG_CLOSE;
+        }
+        if (segment == 0) {
+            System.arraycopy(coords, 0, points, 0, 2);
+        } else {
+            System.arraycopy(coords, segment * 4 - 2, points, 0, 4);
+        }
+        int count = segment == 0 ? 1 : 2;
+        if (transform != null) {
+            transform.transform(points, 0, points, 0, count);
+        }
+        return segment == 0 ? SEG_MOVETO : SEG_QUADTO;
+    }
+
+    @Override
+    public Rectangle getBounds() {
+        return toPath().getBounds();
+    }
+
+    @Override
+    public Rectangle2D getBounds2D() {
+        return toPath().getBounds2D();
+    }
+
+    @Override
+    public boolean contains(double x, double y) {
+        return toPath().contains(x, y);
+    }
+
+    @Override
+    public boolean contains(Point2D p) {
+        return toPath().contains(p);
+    }
+
+    @Override
+    public boolean intersects(double x, double y, double w, double h) {
+        return toPath().intersects(x, y, w, h);
+    }
+
+    @Override
+    public boolean intersects(Rectangle2D r) {
+        return toPath().intersects(r);
+    }
+
+    @Override
+    public boolean contains(double x, double y, double w, double h) {
+        return toPath().contains(x, y, w, h);
+    }
+
+    @Override
+    public boolean contains(Rectangle2D r) {
+        return toPath().contains(r);
+    }
+
+    private Path2D toPath() {
+        return new Path2D.Double(this);
+    }
+
+}
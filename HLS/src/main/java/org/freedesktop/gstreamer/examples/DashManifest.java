@@ -0,0 +1,180 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import io.javalin.http.Context;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A live (dynamic) MPEG-DASH manifest listing the CMAF segments of one or
+ * more CmafPackagers - the same segments referenced by the HLS playlists.
+ * Each packager is a Representation in a single video AdaptationSet. The
+ * SegmentTimeline is taken from the first (reference) packager - all
+ * renditions are encoded from the same frames with the same keyframe
+ * interval, so their segments are aligned.
+ * <p>
+ * The manifest is rendered on request, at most once per reference segment,
+ * and served with an ETag (see HttpCache).
+ */
+class DashManifest {
+
+    static final String NAME = "manifest.mpd";
+    static final String CONTENT_TYPE = "application/dash+xml";
+
+    private final List<Representation> representations;
+    private final boolean prefixed;
+    private final int fps;
+
+    private HttpCache.Entry entry;
+    private int entrySequence;
+
+    /**
+     * Create a DashManifest.
+     *
+     * @param prefixed whether segments are under a sub-path named for the
+     * representation id, eg. 720p/segment00001.m4s
+     * @param fps stream frame rate
+     */
+    DashManifest(boolean prefixed, int fps) {
+        this.prefixed = prefixed;
+        this.fps = fps;
+        representations = new ArrayList<>();
+    }
+
+    /**
+     * Add a representation. The first added provides the segment timeline.
+     *
+     * @param id representation id
+     * @param width video width
+     * @param height video height
+     * @param bandwidth peak bandwidth in bits per second
+     * @param packager packager of the representation segments
+     */
+    void add(String id, int width, int height, int bandwidth, CmafPackager packager) {
+        representations.add(new Representation(id, width, height, bandwidth, packager));
+    }
+
+    /**
+     * Serve the manifest, or set a 404 status if no segments are available.
+     *
+     * @param ctx request context
+     */
+    void serve(Context ctx) {
+        HttpCache.Entry e = get();
+        if (e == null) {
+            ctx.status(404);
+        } else {
+            HttpCache.serve(ctx, e, CONTENT_TYPE, HttpCache.PLAYLIST_CACHE);
+        }
+    }
+
+    private synchronized HttpCache.Entry get() {
+        CmafPackager reference = representations.get(0).packager;
+        int sequence = reference.getNextSequence();
+        if (sequence == 0) {
+            return null;
+        }
+        if (entry == null || sequence != entrySequence) {
+            entry = new HttpCache.Entry(render(reference));
+            entrySequence = sequence;
+        }
+        return entry;
+    }
+
+    private byte[] render(CmafPackager reference) {
+        List<CmafPackager.Segment> segments = reference.getSegments();
+        int timescale = reference.getTimescale();
+        double maxDuration = 0;
+        double window = 0;
+        for (CmafPackager.Segment segment : segments) {
+            maxDuration = Math.max(maxDuration, segment.getDuration(timescale));
+            window += segment.getDuration(timescale);
+        }
+        String template = prefixed ? "$RepresentationID$/" : "";
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\"")
+                .append(" profiles=\"urn:mpeg:dash:profile:isoff-live:2011\"")
+                .append(" type=\"dynamic\"")
+                .append(" availabilityStartTime=\"")
+                .append(Instant.ofEpochMilli(reference.getAvailabilityStart())
+                        .truncatedTo(ChronoUnit.MILLIS)).append('"')
+                .append(" publishTime=\"")
+                .append(Instant.now().truncatedTo(ChronoUnit.MILLIS)).append('"')
+                .append(" minimumUpdatePeriod=\"").append(duration(maxDuration)).append('"')
+                .append(" minBufferTime=\"").append(duration(maxDuration)).append('"')
+                .append(" timeShiftBufferDepth=\"").append(duration(window)).append('"')
+                .append(" suggestedPresentationDelay=\"")
+                .append(duration(maxDuration * 3)).append('"')
+                .append(" maxSegmentDuration=\"").append(duration(maxDuration)).append("\">\n");
+        sb.append("  <Period id=\"0\" start=\"PT0S\">\n");
+        sb.append("    <AdaptationSet contentType=\"video\" mimeType=\"video/mp4\"")
+                .append(" segmentAlignment=\"true\" startWithSAP=\"1\"")
+                .append(" frameRate=\"").append(fps).append("\">\n");
+        sb.append("      <SegmentTemplate timescale=\"").append(timescale).append('"')
+                .append(" initialization=\"").append(template).append(CmafPackager.INIT).append('"')
+                .append(" media=\"").append(template).append("segment$Number%05d$.m4s\"")
+                .append(" startNumber=\"").append(segments.get(0).sequence).append("\">\n");
+        sb.append("        <SegmentTimeline>\n");
+        long next = -1;
+        for (CmafPackager.Segment segment : segments) {
+            sb.append("          <S");
+            if (segment.time != next) {
+                sb.append(" t=\"").append(segment.time).append('"');
+            }
+            sb.append(" d=\"").append(segment.duration).append("\"/>\n");
+            next = segment.time + segment.duration;
+        }
+        sb.append("        </SegmentTimeline>\n");
+        sb.append("      </SegmentTemplate>\n");
+        for (Representation rep : representations) {
+            sb.append("      <Representation id=\"").append(rep.id).append('"')
+                    .append(" codecs=\"").append(rep.packager.getCodecs()).append('"')
+                    .append(" width=\"").append(rep.width).append('"')
+                    .append(" height=\"").append(rep.height).append('"')
+                    .append(" bandwidth=\"").append(rep.bandwidth).append("\"/>\n");
+        }
+        sb.append("    </AdaptationSet>\n");
+        sb.append("  </Period>\n");
+        sb.append("</MPD>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String duration(double seconds) {
+        return String.format(Locale.ROOT, "PT%.3fS", seconds);
+    }
+
+    private static class Representation {
+
+        private final String id;
+        private final int width;
+        private final int height;
+        private final int bandwidth;
+        private final CmafPackager packager;
+
+        private Representation(String id, int width, int height, int bandwidth,
+                CmafPackager packager) {
+            this.id = id;
+            this.width = width;
+            this.height = height;
+            this.bandwidth = bandwidth;
+            this.packager = packager;
+        }
+
+    }
+
+}
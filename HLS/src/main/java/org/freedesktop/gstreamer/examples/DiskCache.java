@@ -0,0 +1,173 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of files in a directory, limited to a total size in bytes. When
+ * the budget is exceeded the least recently used files are deleted.
+ * <p>
+ * The index (key and size of each file) is held in memory in access order.
+ * Files are written to a temporary name and moved into place, so a reader
+ * never sees a partial file. A file deleted by eviction while being read is
+ * treated as a miss.
+ */
+class DiskCache {
+
+    private final Path dir;
+    private final long budget;
+    private final LinkedHashMap<String, Integer> entries;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    private long size;
+
+    /**
+     * Create a DiskCache. Keys must be valid file names.
+     *
+     * @param dir cache directory
+     * @param budget maximum total size in bytes
+     */
+    DiskCache(Path dir, long budget) {
+        this.dir = dir;
+        this.budget = budget;
+        entries = new LinkedHashMap<>(64, 0.75f, true);
+        hits = new LongAdder();
+        misses = new LongAdder();
+        evictions = new LongAdder();
+    }
+
+    /**
+     * Read a cached file, marking it as recently used.
+     *
+     * @param key file key
+     * @return data, or null if not cached
+     * @throws IOException on read error
+     */
+    byte[] get(String key) throws IOException {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                misses.increment();
+                return null;
+            }
+        }
+        try {
+            byte[] data = Files.readAllBytes(dir.resolve(key));
+            hits.increment();
+            return data;
+        } catch (NoSuchFileException ex) {
+            // evicted since the lookup
+            misses.increment();
+            return null;
+        }
+    }
+
+    /**
+     * Whether a file is cached. Does not affect its use order.
+     *
+     * @param key file key
+     * @return true if cached
+     */
+    synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Write a file to the cache, then evict the least recently used files
+     * until the cache is within budget. A file larger than the budget is not
+     * cached.
+     *
+     * @param key file key
+     * @param data file data
+     * @throws IOException on write error
+     */
+    void put(String key, byte[] data) throws IOException {
+        if (data.length > budget) {
+            return;
+        }
+        Path tmp = Files.createTempFile(dir, null, ".tmp");
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, dir.resolve(key), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Integer previous = entries.put(key, data.length);
+            size += data.length - (previous == null ? 0 : previous);
+            Iterator<Map.Entry<String, Integer>> itr = entries.entrySet().iterator();
+            while (size > budget && itr.hasNext()) {
+                Map.Entry<String, Integer> eldest = itr.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                size -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                itr.remove();
+            }
+        }
+        for (String name : evicted) {
+            Files.deleteIfExists(dir.resolve(name));
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Total size of the cached files in bytes.
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Maximum total size in bytes.
+     */
+    long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Number of reads of a cached file.
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of reads of a file not cached.
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of files deleted to stay within budget.
+     */
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+}
@@ -0,0 +1,572 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import io.javalin.http.Context;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.freedesktop.gstreamer.ClockTime;
+
+/**
+ * An on-disk archive of the segments of a rendition for DVR (time-shift)
+ * playback, with VOD playlists generated for any time range on request.
+ * <p>
+ * Segments are appended to data files, each covering ten minutes of wall
+ * clock time. Once the newest segment in a data file is older than the
+ * retention time, the whole file is deleted. Segments are written on a
+ * dedicated thread, so archiving never blocks the pipeline.
+ * <p>
+ * The index of every segment (wall clock start, stream running time start,
+ * duration, data file and offset) is kept in memory in parallel primitive
+ * arrays, and appended as fixed size records to an index file so that an
+ * archive directory can be reopened after a restart. Range lookups are binary
+ * searches of the arrays, so never scan the directory and stay O(log n) for
+ * any number of segments. Running time lookups are limited to the segments
+ * archived since the archive was opened, as running time restarts with the
+ * pipeline.
+ * <p>
+ * The playlist (dvr.m3u8) takes start and end query parameters, either as
+ * ISO-8601 wall clock instants or as stream running time in seconds, and
+ * lists the segments overlapping [start, end). Either may be omitted for the
+ * start or end of the archive. Segments are served as dvr/{sequence}.ts (or
+ * .m4s for CMAF, with dvr/init.mp4).
+ * <p>
+ * The CMAF init segment is rewritten in every run (see needsInit()), in case
+ * the encoder output has changed since the directory was last opened. All
+ * segments are served with the latest init segment, so the renditions of an
+ * archive directory should not change between runs.
+ * <p>
+ * Segments appended after the archive is closed are dropped.
+ */
+class DvrArchive {
+
+    static final String PLAYLIST = "dvr.m3u8";
+    static final String PREFIX = "dvr/";
+
+    private static final String INDEX = "index.idx";
+    private static final String INIT = "init.mp4";
+    private static final int MAGIC = 0x44565231;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 48;
+    private static final int FLAG_DISCONTINUITY = 1;
+    private static final long FILE_SPAN = TimeUnit.MINUTES.toMillis(10);
+
+    private final Path dir;
+    private final String extension;
+    private final long retention;
+    private final ExecutorService writer;
+
+    private long[] wall;
+    private long[] pts;
+    private long[] duration;
+    private long[] offset;
+    private int[] file;
+    private int[] length;
+    private byte[] flags;
+    private int count;
+    private long firstSequence;
+    private int sessionStart;
+    private boolean hasInit;
+    private boolean initSet;
+    private boolean closed;
+
+    // writer thread only
+    private FileChannel data;
+    private FileChannel index;
+    private int dataFile;
+    private long dataStart;
+    private long nextPts;
+    private boolean discontinuity;
+
+    /**
+     * Open an archive, loading the index of any segments already in the
+     * directory.
+     *
+     * @param dir archive directory, created if required
+     * @param extension segment file extension, eg. .ts or .m4s
+     * @param retention retention time in milliseconds
+     * @throws IOException on error reading the index
+     */
+    DvrArchive(Path dir, String extension, long retention) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.extension = extension;
+        this.retention = retention;
+        wall = new long[256];
+        pts = new long[256];
+        duration = new long[256];
+        offset = new long[256];
+        file = new int[256];
+        length = new int[256];
+        flags = new byte[256];
+        load();
+        // rewrite to drop any skipped records and open for appending
+        rewriteIndex();
+        sessionStart = count;
+        dataFile = count == 0 ? 0 : file[count - 1] + 1;
+        discontinuity = true;
+        writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "DvrArchive");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Archive a segment. The data is written asynchronously.
+     *
+     * @param segment segment data
+     * @param runningTime stream running time at the start of the segment in
+     * nanoseconds, or ClockTime.NONE to follow on from the previous segment
+     * @param segmentDuration segment duration in nanoseconds
+     */
+    synchronized void append(byte[] segment, long runningTime, long segmentDuration) {
+        if (closed) {
+            return;
+        }
+        long start = System.currentTimeMillis() - segmentDuration / 1_000_000;
+        writer.execute(() -> {
+            try {
+                write(segment, start, runningTime, segmentDuration);
+            } catch (IOException ex) {
+                System.out.println("DVR archive error : " + ex);
+            }
+        });
+    }
+
+    /**
+     * Whether the CMAF init segment has not yet been stored since the archive
+     * was opened.
+     *
+     * @return true if setInit should be called
+     */
+    synchronized boolean needsInit() {
+        return !initSet && !closed;
+    }
+
+    /**
+     * Store the CMAF init segment, replacing any from an earlier run.
+     *
+     * @param init init segment data
+     */
+    synchronized void setInit(byte[] init) {
+        if (closed) {
+            return;
+        }
+        initSet = true;
+        writer.execute(() -> {
+            try {
+                Files.write(dir.resolve(INIT), init);
+                synchronized (this) {
+                    hasInit = true;
+                }
+            } catch (IOException ex) {
+                System.out.println("DVR archive error : " + ex);
+            }
+        });
+    }
+
+    /**
+     * Serve a VOD playlist for the range in the start and end query
+     * parameters.
+     *
+     * @param ctx request context
+     */
+    void servePlaylist(Context ctx) {
+        String start = ctx.queryParam("start");
+        String end = ctx.queryParam("end");
+        boolean runningTime = isRunningTime(start) || isRunningTime(end);
+        long from, to;
+        try {
+            from = start == null ? Long.MIN_VALUE : parse(start, runningTime);
+            to = end == null ? Long.MAX_VALUE : parse(end, runningTime);
+        } catch (DateTimeParseException | NumberFormatException ex) {
+            ctx.status(400).result("Invalid range");
+            return;
+        }
+        byte[] playlist = render(from, to, runningTime);
+        if (playlist == null) {
+            ctx.status(404).result("No segments in range");
+        } else {
+            ctx.header("Cache-Control", HttpCache.REVALIDATE);
+            ctx.contentType(HttpCache.PLAYLIST_TYPE);
+            ctx.result(playlist);
+        }
+    }
+
+    /**
+     * Serve an archived segment or the init segment.
+     *
+     * @param ctx request context
+     * @param name file name relative to dvr/
+     * @throws IOException on error reading the archive
+     */
+    void serveSegment(Context ctx, String name) throws IOException {
+        if (INIT.equals(name)) {
+            try {
+                byte[] init = Files.readAllBytes(dir.resolve(INIT));
+                ctx.header("Cache-Control", HttpCache.SEGMENT_CACHE);
+                ctx.contentType(HttpCache.MP4_TYPE);
+                ctx.result(init);
+            } catch (NoSuchFileException ex) {
+                ctx.status(404);
+            }
+            return;
+        }
+        long sequence;
+        try {
+            sequence = Long.parseLong(name.endsWith(extension)
+                    ? name.substring(0, name.length() - extension.length()) : name);
+        } catch (NumberFormatException ex) {
+            ctx.status(404);
+            return;
+        }
+        int segmentFile, segmentLength;
+        long segmentOffset;
+        synchronized (this) {
+            long i = sequence - firstSequence;
+            if (i < 0 || i >= count) {
+                ctx.status(404);
+                return;
+            }
+            segmentFile = file[(int) i];
+            segmentOffset = offset[(int) i];
+            segmentLength = length[(int) i];
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(segmentLength);
+        try (FileChannel in = FileChannel.open(dataPath(segmentFile))) {
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer, segmentOffset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            // removed by retention since the lookup
+            ctx.status(404);
+            return;
+        }
+        ctx.header("Cache-Control", HttpCache.SEGMENT_CACHE);
+        ctx.contentType(HttpCache.contentType(name));
+        ctx.result(buffer.array());
+    }
+
+    /**
+     * Number of segments in the archive.
+     */
+    synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Finish writing and close the archive files. Any later segments are
+     * dropped.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writer.execute(() -> {
+            try {
+                if (data != null) {
+                    data.close();
+                }
+                if (index != null) {
+                    index.close();
+                }
+            } catch (IOException ex) {
+            }
+        });
+        writer.shutdown();
+    }
+
+    private synchronized byte[] render(long from, long to, boolean runningTime) {
+        long[] times = runningTime ? pts : wall;
+        int min = runningTime ? sessionStart : 0;
+        if (count <= min) {
+            return null;
+        }
+        // the segment containing from, up to the first starting at or after to
+        int first = Math.max(min, upperBound(times, min, count, from) - 1);
+        int last = lowerBound(times, first, count, to);
+        if (first >= last) {
+            return null;
+        }
+        double target = 0;
+        for (int i = first; i < last; i++) {
+            target = Math.max(target, duration[i] / 1e9);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:").append(hasInit ? 7 : 3).append('\n');
+        sb.append("#EXT-X-PLAYLIST-TYPE:VOD\n");
+        sb.append("#EXT-X-TARGETDURATION:").append((int) Math.ceil(target)).append('\n');
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(firstSequence + first).append('\n');
+        if (hasInit) {
+            sb.append("#EXT-X-MAP:URI=\"").append(PREFIX).append(INIT).append("\"\n");
+        }
+        for (int i = first; i < last; i++) {
+            if (i > first && (flags[i] & FLAG_DISCONTINUITY) != 0) {
+                sb.append("#EXT-X-DISCONTINUITY\n");
+            }
+            if (i == first || (flags[i] & FLAG_DISCONTINUITY) != 0) {
+                sb.append("#EXT-X-PROGRAM-DATE-TIME:")
+                        .append(Instant.ofEpochMilli(wall[i])).append('\n');
+            }
+            sb.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n", duration[i] / 1e9));
+            sb.append(PREFIX).append(firstSequence + i).append(extension).append('\n');
+        }
+        sb.append("#EXT-X-ENDLIST\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void write(byte[] segment, long start, long runningTime, long segmentDuration)
+            throws IOException {
+        expire(start);
+        if (data == null || start - dataStart >= FILE_SPAN) {
+            if (data != null) {
+                data.close();
+                dataFile++;
+            }
+            data = FileChannel.open(dataPath(dataFile), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            dataStart = start;
+        }
+        long position = data.size();
+        ByteBuffer buffer = ByteBuffer.wrap(segment);
+        while (buffer.hasRemaining()) {
+            data.write(buffer);
+        }
+        long segmentPts = ClockTime.isValid(runningTime) ? runningTime : nextPts;
+        nextPts = segmentPts + segmentDuration;
+        byte segmentFlags = (byte) (discontinuity ? FLAG_DISCONTINUITY : 0);
+        discontinuity = false;
+        int i;
+        synchronized (this) {
+            if (count == wall.length) {
+                grow(count * 2);
+            }
+            i = count;
+            // keep wall clock times ordered for the binary search
+            wall[i] = i > 0 ? Math.max(start, wall[i - 1]) : start;
+            pts[i] = segmentPts;
+            duration[i] = segmentDuration;
+            offset[i] = position;
+            file[i] = dataFile;
+            length[i] = segment.length;
+            flags[i] = segmentFlags;
+            count++;
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        putRecord(record, i);
+        record.flip();
+        while (record.hasRemaining()) {
+            index.write(record);
+        }
+    }
+
+    /**
+     * Delete whole data files whose newest segment is older than the
+     * retention time, and rewrite the index without them.
+     */
+    private void expire(long now) throws IOException {
+        int removed = 0;
+        int oldest, newest;
+        synchronized (this) {
+            while (removed < count && file[removed] != dataFile) {
+                int expiring = file[removed];
+                int end = removed;
+                while (end < count && file[end] == expiring) {
+                    end++;
+                }
+                if (now - wall[end - 1] < retention) {
+                    break;
+                }
+                removed = end;
+            }
+            if (removed == 0) {
+                return;
+            }
+            oldest = file[0];
+            newest = file[removed - 1];
+            for (long[] array : new long[][]{wall, pts, duration, offset}) {
+                System.arraycopy(array, removed, array, 0, count - removed);
+            }
+            System.arraycopy(file, removed, file, 0, count - removed);
+            System.arraycopy(length, removed, length, 0, count - removed);
+            System.arraycopy(flags, removed, flags, 0, count - removed);
+            count -= removed;
+            firstSequence += removed;
+            sessionStart = Math.max(0, sessionStart - removed);
+        }
+        rewriteIndex();
+        for (int f = oldest; f <= newest; f++) {
+            Files.deleteIfExists(dataPath(f));
+        }
+    }
+
+    private void rewriteIndex() throws IOException {
+        if (index != null) {
+            index.close();
+        }
+        Path tmp = dir.resolve(INDEX + ".tmp");
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = ByteBuffer.allocate(HEADER_SIZE + count * RECORD_SIZE);
+            buffer.putInt(MAGIC).putInt(RECORD_SIZE).putLong(firstSequence);
+            for (int i = 0; i < count; i++) {
+                putRecord(buffer, i);
+            }
+        }
+        buffer.flip();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+        Path path = Files.move(tmp, dir.resolve(INDEX),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private synchronized void putRecord(ByteBuffer buffer, int i) {
+        buffer.putLong(wall[i]).putLong(pts[i]).putLong(duration[i])
+                .putLong(offset[i]).putInt(file[i]).putInt(length[i])
+                .putInt(flags[i]).putInt(0);
+    }
+
+    /**
+     * Load the index file, skipping records whose data is missing (eg.
+     * deleted, or not fully written before a crash).
+     */
+    private void load() throws IOException {
+        Path path = dir.resolve(INDEX);
+        if (!Files.exists(path)) {
+            return;
+        }
+        hasInit = Files.exists(dir.resolve(INIT));
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC
+                || buffer.getInt() != RECORD_SIZE) {
+            throw new IOException("Invalid DVR index " + path);
+        }
+        firstSequence = buffer.getLong();
+        long fileSize = -1;
+        int sizedFile = -1;
+        while (buffer.remaining() >= RECORD_SIZE) {
+            long w = buffer.getLong();
+            long p = buffer.getLong();
+            long d = buffer.getLong();
+            long o = buffer.getLong();
+            int f = buffer.getInt();
+            int l = buffer.getInt();
+            int fl = buffer.getInt();
+            buffer.getInt();
+            if (f != sizedFile) {
+                sizedFile = f;
+                Path dataPath = dataPath(f);
+                fileSize = Files.exists(dataPath) ? Files.size(dataPath) : -1;
+            }
+            if (o + l > fileSize) {
+                if (count == 0) {
+                    firstSequence++;
+                }
+                continue;
+            }
+            if (count == wall.length) {
+                grow(count * 2);
+            }
+            wall[count] = w;
+            pts[count] = p;
+            duration[count] = d;
+            offset[count] = o;
+            file[count] = f;
+            length[count] = l;
+            flags[count] = (byte) fl;
+            count++;
+        }
+    }
+
+    private void grow(int capacity) {
+        wall = Arrays.copyOf(wall, capacity);
+        pts = Arrays.copyOf(pts, capacity);
+        duration = Arrays.copyOf(duration, capacity);
+        offset = Arrays.copyOf(offset, capacity);
+        file = Arrays.copyOf(file, capacity);
+        length = Arrays.copyOf(length, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+    }
+
+    private Path dataPath(int f) {
+        return dir.resolve(String.format("data%05d%s", f, extension));
+    }
+
+    private static boolean isRunningTime(String time) {
+        return time != null && time.indexOf('T') < 0;
+    }
+
+    private static long parse(String time, boolean runningTime) {
+        if (runningTime) {
+            return (long) (Double.parseDouble(time) * 1e9);
+        } else {
+            return Instant.parse(time).toEpochMilli();
+        }
+    }
+
+    /**
+     * Index of the first element in [from, to) greater than key, or to.
+     */
+    private static int upperBound(long[] array, int from, int to, long key) {
+        int lo = from, hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (array[mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Index of the first element in [from, to) greater than or equal to key,
+     * or to.
+     */
+    private static int lowerBound(long[] array, int from, int to, long key) {
+        int lo = from, hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (array[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+}
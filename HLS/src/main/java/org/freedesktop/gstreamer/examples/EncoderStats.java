@@ -0,0 +1,171 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import com.sun.jna.Native;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import org.freedesktop.gstreamer.Buffer;
+import org.freedesktop.gstreamer.BufferFlags;
+import org.freedesktop.gstreamer.ClockTime;
+import org.freedesktop.gstreamer.Element;
+import org.freedesktop.gstreamer.PadProbeReturn;
+import org.freedesktop.gstreamer.PadProbeType;
+import org.freedesktop.gstreamer.glib.Natives;
+import org.freedesktop.gstreamer.lowlevel.GstBufferAPI;
+
+/**
+ * Frame counts in and out of an encoder, the bytes out of it, and the time
+ * each recent keyframe left it, so that the time from keyframe to segment
+ * available can be measured. The bytes out of the encoder can be compared
+ * with the bytes out of the muxer to measure the container overhead.
+ * <p>
+ * The probes run for every frame, so nothing is allocated by them beyond
+ * what the bindings allocate for any probe and for reading the buffer size. Buffer flags are read directly
+ * from the GstMiniObject header (whose layout is part of the stable ABI)
+ * rather than as an EnumSet, and the timestamp is only read for keyframes.
+ * Keyframe times are kept in a small ring of primitive arrays. A listener can
+ * be notified of the timestamp of each keyframe (see SegmentController).
+ */
+class EncoderStats {
+
+    private static final int RING = 32;
+    // GstMiniObject : GType type; gint refcount; gint lockstate; guint flags
+    private static final long FLAGS_OFFSET = Native.SIZE_T_SIZE + 8;
+    private static final int DELTA_UNIT = BufferFlags.DELTA_UNIT.intValue();
+    private static final long TOLERANCE = ClockTime.fromMillis(1);
+
+    private final AtomicLong input;
+    private final AtomicLong output;
+    private final AtomicLong keyframes;
+    private final AtomicLong bytes;
+    private final long[] pts;
+    private final long[] times;
+
+    private int next;
+    private long first;
+    private volatile LongConsumer listener;
+
+    EncoderStats() {
+        input = new AtomicLong();
+        output = new AtomicLong();
+        keyframes = new AtomicLong();
+        bytes = new AtomicLong();
+        pts = new long[RING];
+        times = new long[RING];
+        first = ClockTime.NONE;
+    }
+
+    /**
+     * Add probes to the sink and source pads of the encoder.
+     *
+     * @param encoder encoder element
+     */
+    void attach(Element encoder) {
+        encoder.getStaticPad("sink").addProbe(PadProbeType.BUFFER, (pad, info) -> {
+            input.incrementAndGet();
+            return PadProbeReturn.OK;
+        });
+        encoder.getStaticPad("src").addProbe(PadProbeType.BUFFER, (pad, info) -> {
+            output.incrementAndGet();
+            Buffer buffer = info.getBuffer();
+            bytes.addAndGet(GstBufferAPI.GSTBUFFER_API.gst_buffer_get_size(buffer).longValue());
+            if ((Natives.getRawPointer(buffer).getInt(FLAGS_OFFSET) & DELTA_UNIT) == 0) {
+                long timestamp = buffer.getPresentationTimestamp();
+                keyframe(timestamp, System.nanoTime());
+                LongConsumer l = listener;
+                if (l != null) {
+                    l.accept(timestamp);
+                }
+            }
+            return PadProbeReturn.OK;
+        });
+    }
+
+    /**
+     * Set the listener to be notified of the timestamp of each keyframe, on
+     * the streaming thread.
+     *
+     * @param listener keyframe listener
+     */
+    void setListener(LongConsumer listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Number of frames into the encoder.
+     */
+    long getInput() {
+        return input.get();
+    }
+
+    /**
+     * Number of frames out of the encoder.
+     */
+    long getOutput() {
+        return output.get();
+    }
+
+    /**
+     * Number of bytes out of the encoder.
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Number of keyframes out of the encoder.
+     */
+    long getKeyframes() {
+        return keyframes.get();
+    }
+
+    /**
+     * The timestamp of the first keyframe, or ClockTime.NONE.
+     */
+    synchronized long getFirstKeyframe() {
+        return first;
+    }
+
+    /**
+     * Find the System.nanoTime() at which the keyframe with the given
+     * timestamp left the encoder - the latest recent keyframe at or before
+     * the timestamp.
+     *
+     * @param timestamp keyframe timestamp
+     * @return nano time, or -1 if not found
+     */
+    synchronized long findKeyframe(long timestamp) {
+        if (!ClockTime.isValid(timestamp)) {
+            return -1;
+        }
+        long count = keyframes.get();
+        for (int i = 1; i <= Math.min(RING, count); i++) {
+            int idx = (next - i + RING) % RING;
+            if (pts[idx] <= timestamp + TOLERANCE) {
+                return times[idx];
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void keyframe(long timestamp, long time) {
+        if (first == ClockTime.NONE) {
+            first = timestamp;
+        }
+        pts[next] = timestamp;
+        times[next] = time;
+        next = (next + 1) % RING;
+        keyframes.incrementAndGet();
+    }
+
+}
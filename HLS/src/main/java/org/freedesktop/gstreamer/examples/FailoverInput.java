@@ -0,0 +1,330 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.freedesktop.gstreamer.Bin;
+import org.freedesktop.gstreamer.Element;
+import org.freedesktop.gstreamer.Gst;
+import org.freedesktop.gstreamer.GstObject;
+import org.freedesktop.gstreamer.Pad;
+import org.freedesktop.gstreamer.PadProbeReturn;
+import org.freedesktop.gstreamer.PadProbeType;
+import org.freedesktop.gstreamer.Pipeline;
+import org.freedesktop.gstreamer.State;
+import org.freedesktop.gstreamer.event.EOSEvent;
+
+/**
+ * Supervises the input of a channel pipeline, switching to a standby source
+ * when the primary source fails, so the encoders and sinks keep running.
+ * <p>
+ * The primary source is in a bin (see branch()) and the standby source runs
+ * alongside it, both live and linked to an input-selector. The standby is
+ * always playing, so switching is only a change of the active pad and the
+ * next standby frame is passed on within a frame interval.
+ * <p>
+ * The primary has failed if an element in its bin posts an error, if it
+ * sends EOS (which is dropped so it never reaches the sinks), or if no frame
+ * has arrived from it for the stall time. Stalls are checked every frame
+ * interval while the pipeline is playing. After a failure the primary bin is
+ * restarted every retry interval, and switched back to once it has delivered
+ * frames for a second.
+ * <p>
+ * The callback is run on every switch, eg. to mark a discontinuity. Recovery
+ * time is measured from detecting the failure to the first standby frame
+ * leaving the selector, and outage time from the failure to switching back.
+ */
+class FailoverInput {
+
+    static final String PRIMARY = "primary";
+    static final String SELECTOR = "selector";
+
+    private static final long SETTLE = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private final Pipeline pipeline;
+    private final Bin primary;
+    private final Element selector;
+    private final Pad primaryPad;
+    private final Pad standbyPad;
+    private final long stall;
+    private final long retry;
+    private final Runnable onSwitch;
+    private final Histogram recoveryTimes;
+    private final Histogram outageTimes;
+    private final AtomicLong failovers;
+    private final AtomicLong restores;
+    private final ScheduledFuture<?> watchdog;
+
+    private volatile long lastPrimary;
+    private volatile boolean measuring;
+    private volatile boolean restarting;
+    private boolean onStandby;
+    private boolean restartPending;
+    private boolean playing;
+    private long failedAt;
+    private long primaryStart;
+
+    /**
+     * Create a FailoverInput for a pipeline built with branch().
+     *
+     * @param name channel name, for reports
+     * @param pipeline pipeline
+     * @param frameInterval frame interval in nanoseconds
+     * @param stall time without a primary frame after which it has failed, in
+     * nanoseconds
+     * @param retry time between attempts to restart the primary, in
+     * nanoseconds
+     * @param onSwitch run after each switch of input
+     */
+    FailoverInput(String name, Pipeline pipeline, long frameInterval, long stall,
+            long retry, Runnable onSwitch) {
+        this.name = name;
+        this.pipeline = pipeline;
+        this.stall = stall;
+        this.retry = retry;
+        this.onSwitch = onSwitch;
+        primary = (Bin) pipeline.getElementByName(PRIMARY);
+        selector = pipeline.getElementByName(SELECTOR);
+        primaryPad = selector.getStaticPad("sink_0");
+        standbyPad = selector.getStaticPad("sink_1");
+        recoveryTimes = new Histogram();
+        outageTimes = new Histogram();
+        failovers = new AtomicLong();
+        restores = new AtomicLong();
+        selector.set("active-pad", primaryPad);
+        primaryPad.addProbe(PadProbeType.BUFFER, (pad, info) -> {
+            long now = System.nanoTime();
+            lastPrimary = now;
+            if (restarting) {
+                restored(now);
+            }
+            return PadProbeReturn.OK;
+        });
+        primaryPad.addProbe(PadProbeType.EVENT_DOWNSTREAM, (pad, info) -> {
+            if (info.getEvent() instanceof EOSEvent) {
+                long detected = System.nanoTime();
+                Gst.invokeLater(() -> fail("end of stream", detected));
+                return PadProbeReturn.DROP;
+            }
+            return PadProbeReturn.OK;
+        });
+        selector.getStaticPad("src").addProbe(PadProbeType.BUFFER, (pad, info) -> {
+            if (measuring) {
+                measuring = false;
+                recovered(System.nanoTime());
+            }
+            return PadProbeReturn.OK;
+        });
+        watchdog = Gst.getExecutor().scheduleAtFixedRate(this::check,
+                frameInterval, frameInterval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The pipeline description of the primary and standby inputs, up to and
+     * including the input-selector, which should be followed by the rest of
+     * the pipeline. The standby description is linked to the selector at the
+     * end of the pipeline.
+     *
+     * @param primary primary source and conversion to the input caps
+     * @return description of the primary bin and selector
+     */
+    static String branch(String primary) {
+        return "( name=" + PRIMARY + " " + primary + " ) ! input-selector name=" + SELECTOR;
+    }
+
+    /**
+     * The pipeline description linking the standby input to the selector,
+     * to append to the pipeline.
+     *
+     * @param standby standby source and conversion to the input caps
+     * @return description of the standby input
+     */
+    static String standby(String standby) {
+        return " " + standby + " ! " + SELECTOR + ".";
+    }
+
+    /**
+     * Handle an error message. Errors from the primary bin are handled by
+     * switching to the standby, others are not handled.
+     *
+     * @param source source of the error message
+     * @param message error message
+     * @return true if handled
+     */
+    boolean handleError(GstObject source, String message) {
+        for (GstObject obj = source; obj != null; obj = obj.getParent()) {
+            if (obj.equals(primary)) {
+                long detected = System.nanoTime();
+                Gst.invokeLater(() -> fail(message, detected));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the standby input is active.
+     */
+    synchronized boolean isOnStandby() {
+        return onStandby;
+    }
+
+    /**
+     * Times from detecting a failure to the first standby frame out.
+     */
+    Histogram getRecoveryTimes() {
+        return recoveryTimes;
+    }
+
+    /**
+     * Times from a failure to switching back to the primary.
+     */
+    Histogram getOutageTimes() {
+        return outageTimes;
+    }
+
+    /**
+     * Number of switches to the standby.
+     */
+    long getFailovers() {
+        return failovers.get();
+    }
+
+    /**
+     * Number of switches back to the primary.
+     */
+    long getRestores() {
+        return restores.get();
+    }
+
+    /**
+     * Format a summary of failovers and recovery times.
+     */
+    String report() {
+        return String.format("%s, %d failovers, recovery %s, outage %s",
+                isOnStandby() ? "standby" : "primary", getFailovers(),
+                recoveryTimes.summary(), outageTimes.summary());
+    }
+
+    /**
+     * Stop supervising, eg. before the pipeline is disposed.
+     */
+    void dispose() {
+        watchdog.cancel(false);
+    }
+
+    /**
+     * Check for a stalled primary. Stall checking restarts whenever the
+     * pipeline starts playing, eg. on start and after being suspended.
+     */
+    private void check() {
+        boolean nowPlaying = pipeline.getState(0) == State.PLAYING;
+        synchronized (this) {
+            if (!nowPlaying || !playing) {
+                playing = nowPlaying;
+                lastPrimary = System.nanoTime();
+                return;
+            }
+            if (onStandby) {
+                return;
+            }
+        }
+        long now = System.nanoTime();
+        if (now - lastPrimary > stall) {
+            fail("stalled", now);
+        }
+    }
+
+    /**
+     * Switch to the standby input, and schedule a restart of the primary.
+     * Called on the GStreamer executor, with the time the failure was
+     * detected.
+     */
+    private void fail(String reason, long detected) {
+        boolean switched = false;
+        synchronized (this) {
+            if (!onStandby) {
+                onStandby = true;
+                switched = true;
+                failedAt = detected;
+                measuring = true;
+                selector.set("active-pad", standbyPad);
+                failovers.incrementAndGet();
+            }
+            // a failed restart is retried
+            restarting = false;
+            if (!restartPending) {
+                restartPending = true;
+                Gst.getExecutor().schedule(this::restart, retry, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (switched) {
+            System.out.println("Channel " + name + " : input failed (" + reason
+                    + "), switched to standby");
+            onSwitch.run();
+        }
+    }
+
+    private void restart() {
+        synchronized (this) {
+            restartPending = false;
+            if (!onStandby || watchdog.isCancelled()) {
+                return;
+            }
+            primaryStart = 0;
+            restarting = true;
+        }
+        primary.setState(State.NULL);
+        primary.syncStateWithParent();
+    }
+
+    /**
+     * A primary frame has arrived after a restart. Switch back once the
+     * primary has delivered frames for the settle time. Called on the
+     * primary streaming thread.
+     */
+    private void restored(long now) {
+        synchronized (this) {
+            if (!onStandby || !restarting) {
+                return;
+            }
+            if (primaryStart == 0) {
+                primaryStart = now;
+            }
+            if (now - primaryStart < SETTLE) {
+                return;
+            }
+            onStandby = false;
+            restarting = false;
+            selector.set("active-pad", primaryPad);
+            restores.incrementAndGet();
+            outageTimes.record(now - failedAt);
+        }
+        System.out.println("Channel " + name + " : primary input restored after "
+                + TimeUnit.NANOSECONDS.toMillis(now - failedAt) + "ms");
+        Gst.invokeLater(onSwitch);
+    }
+
+    private void recovered(long now) {
+        long time;
+        synchronized (this) {
+            time = now - failedAt;
+        }
+        recoveryTimes.record(time);
+        System.out.println("Channel " + name + " : standby output after "
+                + TimeUnit.NANOSECONDS.toMicros(time) / 1000.0 + "ms");
+    }
+
+}
@@ -12,35 +12,43 @@
 package org.freedesktop.gstreamer.examples;
 
 import io.javalin.Javalin;
-import io.javalin.http.staticfiles.Location;
+import io.javalin.http.Handler;
 import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Desktop;
 import java.awt.GradientPaint;
 import java.awt.Graphics2D;
-import java.awt.Paint;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
-import java.awt.geom.AffineTransform;
-import java.awt.geom.GeneralPath;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.freedesktop.gstreamer.Buffer;
-import org.freedesktop.gstreamer.Bus;
-import org.freedesktop.gstreamer.Element;
+import org.freedesktop.gstreamer.ClockTime;
 import org.freedesktop.gstreamer.Gst;
 import org.freedesktop.gstreamer.Pad;
 import org.freedesktop.gstreamer.PadProbeInfo;
 import org.freedesktop.gstreamer.PadProbeReturn;
-import org.freedesktop.gstreamer.PadProbeType;
-import org.freedesktop.gstreamer.Pipeline;
 import org.freedesktop.gstreamer.Version;
 
 /**
@@ -51,26 +59,287 @@ import org.freedesktop.gstreamer.Version;
  * using the Javalin framework and GStreamer's hlssink2 element.
  *
  * The default latency is quite high (15-30s). This can be lowered using
- * hlssink2 element properties and hls.js configuration.
+ * hlssink2 element properties and hls.js configuration. Low-Latency HLS can be
+ * enabled using -Dhls.lowlatency=true (see LowLatencyPlaylist), and its
+ * glass-to-glass latency checked by also setting -Dhls.latencycheck=30 (see
+ * LatencyClient). CMAF segments
+ * with both HLS and DASH manifests can be enabled using -Dhls.cmaf=true (see
+ * CmafPackager).
+ *
+ * Many channels, each with its own pipeline, can be served from the one JVM
+ * (see Channel and ChannelRegistry). A single camera channel named live is
+ * created by default.
  *
  * @author Neil C Smith ( https://www.codelerity.com )
  */
 public class HLS {
 
-    private static final int WIDTH = 1280;
-    private static final int HEIGHT = 720;
-    private static final int FPS = 30;
+    static final int WIDTH = 1280;
+    static final int HEIGHT = 720;
+    static final int FPS = 30;
+
+    /**
+     * The number of overlay layers the Renderer may render ahead of the stream
+     * on a worker thread. Zero (the default) renders on the streaming thread.
+     * Can be set using the hls.depth system property.
+     */
+    static final int DEPTH = Integer.getInteger("hls.depth", 0);
+
+    /**
+     * The memory budget in bytes for cached overlay sprites. Can be set using
+     * the hls.spritecache system property.
+     */
+    private static final long SPRITE_CACHE = Long.getLong("hls.spritecache", 1 << 20);
+
+    /**
+     * Whether the Renderer adapts its quality to stay within the frame
+     * interval. Can be disabled using -Dhls.adaptive=false.
+     */
+    static final boolean ADAPTIVE = Boolean.parseBoolean(
+            System.getProperty("hls.adaptive", "true"));
+
+    /**
+     * The raw video format the Renderer draws on - I420 (the default), NV12
+     * or RGB. The YUV formats are accepted by x264enc directly, so the overlay
+     * is blended on to the planes (see YuvCompositor) without converting the
+     * frames to RGB and back. Can be set using the hls.format system property.
+     */
+    static final String FORMAT = System.getProperty("hls.format", "I420")
+            .toUpperCase(Locale.ROOT);
+
+    /**
+     * Whether to keep the playlist and segments in memory (see SegmentStore)
+     * or write them to a temporary directory. Memory (the default) requires
+     * GStreamer 1.18+. Set -Dhls.disk=true to write to disk.
+     */
+    private static final boolean DISK = Boolean.getBoolean("hls.disk");
+
+    /**
+     * Whether to serve a Low-Latency HLS playlist with partial segments,
+     * blocking playlist reload and preload hints. Requires the playlist and
+     * segments to be kept in memory. Set -Dhls.lowlatency=true to enable.
+     */
+    private static final boolean LOW_LATENCY = Boolean.getBoolean("hls.lowlatency");
+
+    /**
+     * Low-Latency HLS part duration in frames (each part starts with a
+     * keyframe), number of parts per full segment, and number of full segments
+     * in the playlist.
+     */
+    static final int LL_PART_FRAMES = FPS / 2;
+    static final int LL_PARTS = 4;
+    static final int LL_WINDOW = 6;
+
+    /**
+     * Time in seconds to run a glass-to-glass latency check for (default 0,
+     * disabled). The latency of the first channel is measured from the
+     * EXT-X-PROGRAM-DATE-TIME of the low latency playlist. Once measured for
+     * this time the result is printed and the server exits, with status 1 if
+     * any measurement exceeded the bound (see LatencyCheck). Can be set using
+     * the hls.latencycheck system property.
+     */
+    private static final int LATENCY_CHECK = Integer.getInteger("hls.latencycheck", 0);
+
+    /**
+     * Whether the latency check is measured by a headless client in the
+     * server process (default true, see LatencyClient). Otherwise clients
+     * playing a channel (index.html, eg. in a browser) report their latency
+     * to POST /latency. Set -Dhls.latencyclient=false to use client reports.
+     */
+    private static final boolean LATENCY_CLIENT
+            = Boolean.parseBoolean(System.getProperty("hls.latencyclient", "true"));
+
+    /**
+     * Maximum glass-to-glass latency in milliseconds for the latency check
+     * (default 3000). Can be set using the hls.latencybound system property.
+     */
+    private static final int LATENCY_BOUND = Integer.getInteger("hls.latencybound", 3000);
+    private static final int LATENCY_WARMUP = 10;
 
     /**
-     * Keep a reference to the Pipeline to ensure it isn't GC'd.
+     * Whether to package the stream as CMAF (fragmented MP4) segments instead
+     * of MPEG-TS, served with both an HLS playlist and a DASH manifest
+     * (/hls/manifest.mpd) referencing the same segments (see CmafPackager).
+     * The muxer output is received by an appsink, so segments are always
+     * kept in memory, and GStreamer 1.18 is not required. Low latency mode is
+     * not supported. Set -Dhls.cmaf=true to enable.
      */
-    private static Pipeline pipeline;
+    static final boolean CMAF = Boolean.getBoolean("hls.cmaf");
+
+    /**
+     * CMAF segment duration in frames (each segment starts with a keyframe),
+     * and number of segments in the playlist and manifest.
+     */
+    static final int CMAF_SEGMENT_FRAMES = FPS * 2;
+    static final int CMAF_WINDOW = 6;
+
+    /**
+     * MPEG-TS segment duration in whole seconds (default 15, the hlssink2
+     * default). Keyframes are forced on this schedule so every segment has
+     * exactly this duration (see SegmentController). Can be set using the
+     * hls.segment system property.
+     */
+    static final int SEGMENT = Integer.getInteger("hls.segment", 15);
+
+    /**
+     * DVR retention time in hours. If greater than zero (default zero,
+     * disabled) every segment is also kept in an on-disk archive for this
+     * long, and VOD playlists for any time range in it are served as
+     * dvr.m3u8?start=...&end=... (see DvrArchive). Can be set using the
+     * hls.dvr system property.
+     */
+    static final double DVR_HOURS = Double.parseDouble(
+            System.getProperty("hls.dvr", "0"));
+
+    /**
+     * DVR archive directory, kept across restarts. If not set, a temporary
+     * directory is used and deleted on exit. Can be set using the
+     * hls.dvr.dir system property.
+     */
+    private static final String DVR_DIR = System.getProperty("hls.dvr.dir");
+
+    /**
+     * Comma separated list of rendition heights for adaptive bitrate
+     * streaming, eg. 1080,720,480,240. Video is captured and the overlay
+     * rendered once at the largest size, then scaled and encoded for each
+     * rendition with a master playlist listing them. If not set (the default)
+     * a single 1280x720 stream is produced. Can be set using the
+     * hls.renditions system property.
+     */
+    static final String RENDITIONS = System.getProperty("hls.renditions", "");
+
+    /**
+     * Maximum time to hold a playlist request that arrives before the first
+     * playlist has been written (see PlaylistGate). This should be longer than
+     * the first segment takes to be written, and shorter than the client's
+     * playlist loading timeout.
+     */
+    static final long READY_TIMEOUT = ClockTime.fromSeconds(25);
+
+    /**
+     * Comma separated list of channels to create at startup, each
+     * name[:source] where source is camera (the default), or test with an
+     * optional videotestsrc pattern (eg. test:ball). More channels can be
+     * created over HTTP. Can be set using the hls.channels system property.
+     */
+    private static final String CHANNELS = System.getProperty("hls.channels", "live");
+
+    /**
+     * The maximum number of encoders (the renditions of all channels) that
+     * may run at once. Channels that would exceed it are refused. Can be set
+     * using the hls.maxencoders system property.
+     */
+    private static final int MAX_ENCODERS = Integer.getInteger("hls.maxencoders", 16);
+
+    /**
+     * Time in seconds without any live playlist request after which a
+     * channel pipeline is paused, stopping capture, overlay and encode
+     * (default 0, never). The next playlist request resumes it, and is held
+     * until a new segment is available, or for at most one segment period.
+     * Can be set using the hls.idle system property.
+     */
+    static final int IDLE = Integer.getInteger("hls.idle", 0);
+
+    /**
+     * Duration of the first segment after a channel resumes, if shorter than
+     * the segment period, so that held playlist requests are released soon.
+     */
+    static final long RESUME_SEGMENT = ClockTime.fromSeconds(1);
+
+    /**
+     * Standby source for every channel, camera or test with an optional
+     * videotestsrc pattern (eg. test:smpte for a slate). If set, the standby
+     * runs alongside the channel source and is switched to if the source
+     * fails or stalls, without restarting the encoders (see FailoverInput).
+     * If not set (the default) a channel stops if its source fails. Can be
+     * set using the hls.standby system property.
+     */
+    static final String STANDBY = System.getProperty("hls.standby");
+
+    /**
+     * Time in milliseconds without a frame from the channel source after
+     * which it has stalled and the standby is switched to (default 500). Can
+     * be set using the hls.stall system property.
+     */
+    static final int STALL = Integer.getInteger("hls.stall", 500);
+
+    /**
+     * Time between attempts to restart a failed channel source.
+     */
+    static final long FAILOVER_RETRY = ClockTime.fromSeconds(5);
+
+    /**
+     * Time in whole seconds between the thumbnails of each channel, served
+     * as JPEG sprite sheets with a WebVTT track at
+     * /hls/{channel}/thumbnails.vtt for scrubbing (see ThumbnailTrack).
+     * Default 0, disabled, as the extra tee branch scales and encodes JPEG
+     * for every channel. Can be set using the hls.thumbnails system property,
+     * eg. 2.
+     */
+    static final int THUMBNAILS = Integer.getInteger("hls.thumbnails", 0);
+    static final int THUMBNAIL_WIDTH = 160;
+    static final int THUMBNAIL_HEIGHT = 90;
+    static final int THUMBNAIL_GRID = 5;
+
+    /**
+     * Time in seconds of thumbnails kept, rounded up to whole sheets.
+     */
+    static final int THUMBNAIL_WINDOW = 600;
+
+    /**
+     * Directory of MP4 files to serve as VOD HLS under /vod/{file}, each
+     * segment packaged when first requested (see VodPackager). If not set
+     * (the default) VOD is disabled. Can be set using the hls.vod system
+     * property.
+     */
+    private static final String VOD = System.getProperty("hls.vod");
+
+    /**
+     * Maximum size in bytes of the on-disk cache of VOD segments (default
+     * 1GB). Can be set using the hls.vod.cache system property.
+     */
+    private static final long VOD_CACHE = Long.getLong("hls.vod.cache", 1L << 30);
+
+    /**
+     * Target VOD segment duration in seconds (default 6). Segments start on
+     * the first keyframe at or after each target. Can be set using the
+     * hls.vod.segment system property.
+     */
+    private static final int VOD_SEGMENT = Integer.getInteger("hls.vod.segment", 6);
+
+    /**
+     * Number of VOD segments to prefetch ahead of each segment request
+     * (default 3). Can be set using the hls.vod.prefetch system property.
+     */
+    private static final int VOD_PREFETCH = Integer.getInteger("hls.vod.prefetch", 3);
+
+    /**
+     * Run the Renderer on this number of frames without GStreamer, after a
+     * warm up, and fail if any of them allocate on the rendering thread (see
+     * AllocationCheck). Applies to the format, depth and largest rendition
+     * size set above. Can be set using the hls.check system property.
+     */
+    private static final int CHECK = Integer.getInteger("hls.check", 0);
+
+    static final String TITLE = "GStreamer Java";
+
+    /**
+     * The x264enc default bitrate in kbit/s, used when no bitrate is set.
+     */
+    static final int DEFAULT_BITRATE = 2048;
 
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) throws IOException {
 
+        /**
+         * Run the allocation check instead of the server if requested.
+         */
+        if (CHECK > 0) {
+            System.exit(check(CHECK) ? 0 : 1);
+        }
+
         /**
          * Set up paths to native GStreamer libraries - see adjacent file.
          */
@@ -86,82 +355,256 @@ public class HLS {
         Gst.init(Version.of(1, 16), "HLS", args);
 
         /**
-         * Set up a Caps string with the width, height and buffer format
-         * required for reading and writing into the BufferedImage.
+         * Playlist and video files are kept in memory if the hlssink2 signals
+         * required are supported, or when packaging CMAF. Low latency mode
+         * requires hlssink2 in memory, and a keyframe at the start of every
+         * part.
          */
-        String caps = "video/x-raw, width=" + WIDTH + ", height=" + HEIGHT
-                + ", pixel-aspect-ratio=1/1, framerate=" + FPS + "/1, "
-                + (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
-                ? "format=BGRx" : "format=xRGB");
+        boolean memory = CMAF
+                || (!DISK && Gst.getVersion().checkSatisfies(Version.of(1, 18)));
+        boolean lowLatency = LOW_LATENCY && memory && !CMAF;
+        if (LOW_LATENCY && !lowLatency) {
+            System.out.println("Low latency mode requires GStreamer 1.18+ and in memory MPEG-TS segments");
+        }
 
         /**
-         * Use Gst.parseLaunch() to create a pipeline from a GStreamer string
-         * definition. This method returns Pipeline when more than one element
-         * is specified.
-         *
-         * The named Identity element can be acquired from the pipeline by name
-         * and the probe attached to its sink pad.
-         *
-         * The named HLSSink2 element can be acquired from the pipeline and
-         * configured to place files in a temporary directory to be served by
-         * Javalin.
+         * If files are written to disk, each channel has a directory in a
+         * temporary folder. A shutdown hook is added in deleteOnExit() to
+         * remove the playlist and video files on shutdown.
          */
-        pipeline = (Pipeline) Gst.parseLaunch("autovideosrc ! "
-                + "videorate ! videoconvert ! videoscale ! "
-                + caps + " ! identity name=identity ! videoconvert ! "
-                + "x264enc ! video/x-h264, profile=baseline ! "
-                + "hlssink2 name=sink");
-        Element identity = pipeline.getElementByName("identity");
-        identity.getStaticPad("sink")
-                .addProbe(PadProbeType.BUFFER, new Renderer(WIDTH, HEIGHT));
+        Path playlistRoot = memory ? null : Files.createTempDirectory("hls");
+        if (playlistRoot != null) {
+            deleteOnExit(playlistRoot);
+        }
+
+        /**
+         * The DVR archive of each channel is in a sub-directory of the
+         * configured directory, or of a temporary directory deleted on exit.
+         */
+        Path dvrRoot = null;
+        if (DVR_HOURS > 0) {
+            if (DVR_DIR != null) {
+                dvrRoot = Files.createDirectories(Paths.get(DVR_DIR));
+            } else {
+                dvrRoot = Files.createTempDirectory("dvr");
+                deleteOnExit(dvrRoot);
+            }
+        }
+        Path archiveRoot = dvrRoot;
 
         /**
-         * Configure a temporary directory for playlist and video files. A
-         * shutdown hook is added in deleteOnExit() to remove the playlist and
-         * video files on shutdown.
+         * VOD segments are cached in a temporary directory deleted on exit.
+         * Half the processors are used for VOD pipelines, leaving the rest
+         * for the live channels.
          */
-        Path playlistRoot = Files.createTempDirectory("hls");
-        deleteOnExit(playlistRoot);
-        Element sink = pipeline.getElementByName("sink");
-        sink.set("playlist-location",
-                playlistRoot.resolve("playlist.m3u8").toString());
-        sink.set("location",
-                playlistRoot.resolve("segment%05d.ts").toString());
+        VodPackager vod = null;
+        if (VOD != null) {
+            Path vodCache = Files.createTempDirectory("vod");
+            deleteOnExit(vodCache);
+            vod = new VodPackager(Paths.get(VOD), new DiskCache(vodCache, VOD_CACHE),
+                    ClockTime.fromSeconds(VOD_SEGMENT), VOD_PREFETCH,
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        }
+        VodPackager vodPackager = vod;
 
         /**
-         * Start the pipeline. Attach a bus listener to call Gst.quit on EOS or
-         * error.
+         * The latency check runs once the first measurement arrives, and
+         * stops the server once complete.
          */
-        pipeline.getBus().connect((Bus.ERROR) ((source, code, message) -> {
-            System.out.println(message);
+        LatencyCheck latencyCheck = LATENCY_CHECK > 0
+                ? new LatencyCheck(ClockTime.fromMillis(LATENCY_BOUND),
+                        ClockTime.fromSeconds(LATENCY_WARMUP),
+                        ClockTime.fromSeconds(LATENCY_CHECK))
+                : null;
+        if (latencyCheck != null && !lowLatency) {
+            System.out.println("Latency check requires low latency mode");
+        }
+        Runnable latencyComplete = () -> {
+            System.out.println(latencyCheck.report());
             Gst.quit();
-        }));
-        pipeline.getBus().connect((Bus.EOS) (source) -> Gst.quit());
-        pipeline.play();
+        };
+
+        /**
+         * Create the channel registry and the initial channels. The sprite
+         * cache is shared by all channels.
+         */
+        SpriteCache sprites = new SpriteCache(SPRITE_CACHE);
+        int channelEncoders = Rendition.parse(RENDITIONS).size();
+        ChannelRegistry registry = new ChannelRegistry(MAX_ENCODERS, channelEncoders,
+                (name, source) -> new Channel(name, source, playlistRoot,
+                        archiveRoot, lowLatency, sprites));
+        for (String spec : CHANNELS.split(",")) {
+            if (!spec.trim().isEmpty()) {
+                String[] parts = spec.trim().split(":", 2);
+                registry.create(parts[0], ChannelRegistry.source(
+                        parts.length > 1 ? parts[1] : "camera"));
+            }
+        }
+
+        /**
+         * Print a report for each channel every 10 seconds - the Renderer
+         * callback times against the frame budget, and the muxed output and
+         * encoder bitrates of each rendition with the container overhead, eg.
+         * to compare MPEG-TS and CMAF by running each for the same source.
+         * The shared sprite cache statistics follow.
+         */
+        Gst.getExecutor().scheduleAtFixedRate(() -> {
+            for (Channel channel : registry.getChannels()) {
+                System.out.println(channel.report());
+            }
+            System.out.println(sprites);
+        }, 10, 10, TimeUnit.SECONDS);
+
+        /**
+         * Check every second for channels without viewers to suspend.
+         */
+        Gst.getExecutor().scheduleAtFixedRate(() -> {
+            for (Channel channel : registry.getChannels()) {
+                channel.checkIdle();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
 
         /**
          * Configure the Javalin server. The main index.html is served from the
          * /public folder on the classpath (see
          * src/main/resource/public/index.html). The hls.js library is added via
-         * webjars. The temporary folder for playlist and video files is added
-         * under the /hls url path.
+         * webjars. The playlist and video files of each channel are served
+         * under the /hls/{channel} url path, from memory or the temporary
+         * folder.
+         *
+         * Playlists are served with ETags and a short cache lifetime, and
+         * segments as immutable, so that many viewers polling the playlist
+         * are answered from memory, often with 304 Not Modified.
+         *
+         * The playlist files are not available until a number of segments
+         * have been written. Playlist requests before then are held and
+         * released together as soon as the playlist exists, rather than
+         * clients retrying. The master playlist is held until every rendition
+         * is available. The /ready endpoint returns 200 once all channels (or
+         * the ?channel requested) are available, otherwise 503 - or with ?wait
+         * is held until they are.
+         *
+         * In CMAF mode the DASH manifest is served at
+         * /hls/{channel}/manifest.mpd.
+         *
+         * Channels are listed with GET /channels, created with PUT
+         * /channels/{channel}?source=camera|test[:pattern] and deleted with
+         * DELETE /channels/{channel}.
+         *
+         * Metrics for every channel and for HTTP serving are available in
+         * the Prometheus text format at /metrics. Every request is recorded
+         * by the request logger once its response is written.
+         *
+         * If a VOD directory is set, its files are listed with GET /vod and
+         * served at /vod/{file}/playlist.m3u8.
+         *
+         * Clients report glass-to-glass latency with POST /latency?ms=...,
+         * used by the latency check if enabled without the headless client.
          */
+        RequestMetrics requestMetrics = new RequestMetrics();
         Javalin app = Javalin.create(cfg -> {
             cfg.addStaticFiles("/public");
-            cfg.addStaticFiles("/hls", playlistRoot.toString(), Location.EXTERNAL);
             cfg.enableWebjars();
+            cfg.requestLogger(requestMetrics);
         });
-        /**
-         * Return a 503 status if the playlist.m3u8 file is not available. The
-         * hls.js library will stop retrying to load the playlist if it receives
-         * a 404. The playlist file is not available until a number of segments
-         * have been written.
-         */
-        app.error(404, ctx -> {
-            if (ctx.path().endsWith(".m3u8")) {
-                ctx.status(503);
+        app.get("/metrics", ctx -> {
+            Metrics metrics = new Metrics();
+            for (Channel channel : registry.getChannels()) {
+                channel.collect(metrics);
+            }
+            requestMetrics.collect(metrics);
+            if (vodPackager != null) {
+                vodPackager.collect(metrics);
+            }
+            ctx.header("Cache-Control", "no-store");
+            ctx.contentType(Metrics.CONTENT_TYPE);
+            ctx.result(metrics.render());
+        });
+        app.get("/ready", ctx -> {
+            String name = ctx.queryParam("channel");
+            List<PlaylistGate> gates = new ArrayList<>();
+            for (Channel channel : registry.getChannels()) {
+                if (name == null || name.equals(channel.getName())) {
+                    gates.add(channel.getReady());
+                }
+            }
+            if (gates.isEmpty()) {
+                ctx.status(404);
+                return;
+            }
+            PlaylistGate ready = PlaylistGate.all(gates, READY_TIMEOUT);
+            Handler readiness = c -> {
+                c.header("Cache-Control", HttpCache.REVALIDATE);
+                if (ready.isOpen()) {
+                    c.result("ready");
+                } else {
+                    c.status(503);
+                    c.header("Retry-After", "1");
+                    c.result("starting");
+                }
+            };
+            (ctx.queryParam("wait") != null ? ready.wrap(readiness) : readiness)
+                    .handle(ctx);
+        });
+        app.get("/channels", ctx -> {
+            List<Map<String, Object>> info = new ArrayList<>();
+            for (Channel channel : registry.getChannels()) {
+                info.add(channel.info());
+            }
+            ctx.json(info);
+        });
+        app.put("/channels/:channel", ctx -> {
+            String name = ctx.pathParam("channel");
+            String source;
+            try {
+                source = ChannelRegistry.source(ctx.queryParam("source", "test"));
+            } catch (IllegalArgumentException ex) {
+                ctx.status(400).result(ex.getMessage());
+                return;
+            }
+            try {
+                Channel channel = registry.create(name, source);
+                if (channel == null) {
+                    ctx.status(409).result("Channel " + name + " exists");
+                } else {
+                    ctx.status(201).json(channel.info());
+                }
+            } catch (IllegalArgumentException ex) {
+                ctx.status(400).result(ex.getMessage());
+            } catch (IllegalStateException ex) {
+                ctx.status(503).result(ex.getMessage());
+            }
+        });
+        app.delete("/channels/:channel", ctx -> {
+            ctx.status(registry.delete(ctx.pathParam("channel")) ? 204 : 404);
+        });
+        app.get("/hls/:channel/*", ctx -> {
+            Channel channel = registry.get(ctx.pathParam("channel"));
+            if (channel == null) {
+                ctx.status(404);
+            } else {
+                channel.serve(ctx, ctx.splat(0));
+            }
+        });
+        app.post("/latency", ctx -> {
+            long ms;
+            try {
+                ms = Long.parseLong(String.valueOf(ctx.queryParam("ms")));
+            } catch (NumberFormatException ex) {
+                ctx.status(400);
+                return;
+            }
+            if (latencyCheck != null && !LATENCY_CLIENT
+                    && latencyCheck.record(ClockTime.fromMillis(ms))) {
+                latencyComplete.run();
             }
+            ctx.status(204);
         });
+        if (vodPackager != null) {
+            app.get("/vod", ctx -> ctx.json(vodPackager.list()));
+            app.get("/vod/:file/*", ctx -> vodPackager.serve(ctx,
+                    ctx.pathParam("file"), ctx.splat(0)));
+        }
         /**
          * Start the server on port 8000, and once started try to open the page
          * in the local browser.
@@ -174,71 +617,473 @@ public class HLS {
         }));
         app.start(8000);
 
+        /**
+         * Follow the first channel with the headless latency client if the
+         * latency check is enabled.
+         */
+        List<Channel> channels = registry.getChannels();
+        if (latencyCheck != null && lowLatency && LATENCY_CLIENT && !channels.isEmpty()) {
+            Thread client = new Thread(new LatencyClient(
+                    new URL("http://localhost:8000/hls/" + channels.get(0).getName()
+                            + "/playlist.m3u8"), latencyCheck, latencyComplete),
+                    "LatencyClient");
+            client.setDaemon(true);
+            client.start();
+        }
+
         /**
          * Wait until Gst.quit() called.
          */
         Gst.main();
 
-        pipeline.stop();
+        registry.deleteAll();
+        if (vodPackager != null) {
+            vodPackager.close();
+        }
         app.stop();
+        if (latencyCheck != null && latencyCheck.isComplete()) {
+            System.exit(latencyCheck.passed() ? 0 : 1);
+        }
+    }
+
+    /**
+     * Render frames into a direct buffer in the configured format, measuring
+     * the allocation of each frame after the warm up.
+     *
+     * @param frames number of frames to check
+     * @return true if no checked frame allocated
+     */
+    private static boolean check(int frames) {
+        Rendition rendition = Rendition.parse(RENDITIONS).get(0);
+        int width = rendition.width;
+        int height = rendition.height;
+        YuvCompositor yuv = "RGB".equals(FORMAT) ? null
+                : new YuvCompositor(YuvCompositor.Format.valueOf(FORMAT), width, height);
+        int size = yuv != null ? yuv.getFrameSize() : width * height * 4;
+        ByteBuffer bytes = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        IntBuffer ib = yuv == null ? bytes.asIntBuffer() : null;
+        long duration = ClockTime.fromSeconds(1) / FPS;
+        Renderer renderer = new Renderer(width, height, DEPTH, yuv, TITLE,
+                new SpriteCache(SPRITE_CACHE), new ProbeStats("Renderer"),
+                new AdaptiveQuality(duration, ADAPTIVE));
+        AllocationCheck check = new AllocationCheck();
+        long pts = 0;
+        do {
+            renderer.render(bytes, ib, pts, duration);
+            pts += duration;
+        } while (check.warmUp());
+        do {
+            for (int i = 0; i < frames; i++) {
+                check.begin();
+                renderer.render(bytes, ib, pts, duration);
+                check.end();
+                pts += duration;
+            }
+        } while (check.retry());
+        renderer.dispose();
+        System.out.println("Renderer " + FORMAT + " depth " + DEPTH + " " + width
+                + "x" + height + " : " + check.report());
+        return check.passed();
     }
 
     /**
-     * A Pad.PROBE implementation that acquires the Buffer, reads it into the
-     * data array of a BufferedImage, renders an animation on top, and writes
-     * back into the Buffer.
+     * A Pad.PROBE implementation that acquires the Buffer and renders an
+     * animation on top of it using Java2D.
+     * <p>
+     * The animation is rendered into a premultiplied ARGB layer the size of
+     * the frame (see paint()), and only the region it covers is composited on
+     * to the Buffer - by Compositor for RGB, or blended on to the planes by a
+     * YuvCompositor if one is passed in and the Buffer is in a YUV format.
+     * <p>
+     * If depth is greater than zero, the animation is instead rendered into
+     * overlay layers on a worker thread ahead of the stream (see AsyncOverlay),
+     * and the probe only composites the layer matching each Buffer's
+     * timestamp.
+     * <p>
+     * A static title and a running time clock are blitted on to the frame from
+     * pre-rasterized sprites in a SpriteCache. The clock is made up of a badge
+     * and a sprite per character, so that it does not allocate when the time
+     * changes. The sprites are rasterized when the Renderer is created,
+     * rather than on the streaming thread, and the cache is shared by the
+     * Renderers of all channels.
+     * <p>
+     * When rendering on the streaming thread, the cost of rendering each frame
+     * is passed to AdaptiveQuality. As the cost approaches the frame interval
+     * the Renderer steps down to cheaper quality levels - no antialiasing, no
+     * stroke, then updating the animation on every 2nd or 4th frame (the last
+     * update is kept in the layer and composited on to the frames in
+     * between).
+     * <p>
+     * Steady state frames do not allocate on the streaming thread. Use the
+     * hls.check property to verify.
      */
     static class Renderer implements Pad.PROBE {
 
-        private final BufferedImage image;
-        private final int[] data;
+        private static final int CLOCK_GLYPHS = 8;
+        private static final int COLON = 10;
+        private static final int GRADIENT_TILE = 400;
+        private static final Color BADGE = new Color(0, 0, 0, 160);
+
         private final Point[] points;
-        private final Paint fill;
+        private final int[] gradient;
+        private final Rectangle frame;
+        private final Curve curve;
+        private final ScanlineRasterizer aliased;
+        private final AsyncOverlay<IntBuffer> overlay;
+        private final AsyncOverlay<ByteBuffer> yuvOverlay;
+        private final YuvCompositor yuv;
+        private final SpriteCache sprites;
+        private final ProbeStats stats;
+        private final SpriteCache.Key title;
+        private final SpriteCache.Key clock;
+        private final SpriteCache.Key[] glyphs;
+        private final int badgeHeight;
+        private final int glyphWidth;
+        private final Font font;
+        private final SpriteCache.Rasterizer badgeRasterizer;
+        private final SpriteCache.Rasterizer glyphRasterizer;
+        private final AdaptiveQuality quality;
+        private final Graphics2D layerGraphics;
+        private final int[] layerData;
+        private final Rectangle layerBounds;
+
+        private long animationPts = ClockTime.NONE;
+        private volatile long captureOffset = -1;
 
-        private Renderer(int width, int height) {
-            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            data = ((DataBufferInt) (image.getRaster().getDataBuffer())).getData();
+        Renderer(int width, int height, int depth, YuvCompositor yuv,
+                String title, SpriteCache sprites, ProbeStats stats,
+                AdaptiveQuality quality) {
             points = new Point[18];
             for (int i = 0; i < points.length; i++) {
                 points[i] = new Point();
             }
-            fill = new GradientPaint(0, 0, new Color(1.0f, 0.3f, 0.5f, 0.9f),
-                    60, 20, new Color(0.3f, 1.0f, 0.7f, 0.8f), true);
+            BufferedImage tile = new BufferedImage(GRADIENT_TILE, GRADIENT_TILE,
+                    BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g2d = tile.createGraphics();
+            // the cyclic gradient repeats every 400 pixels in x and y
+            g2d.setPaint(new GradientPaint(0, 0, new Color(1.0f, 0.3f, 0.5f, 0.9f),
+                    60, 20, new Color(0.3f, 1.0f, 0.7f, 0.8f), true));
+            g2d.fillRect(0, 0, GRADIENT_TILE, GRADIENT_TILE);
+            g2d.dispose();
+            gradient = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+            frame = new Rectangle(width, height);
+            curve = new Curve(points.length);
+            aliased = new ScanlineRasterizer(points.length);
+            overlay = depth > 0 && yuv == null
+                    ? new AsyncOverlay<>(width, height, depth, this::renderLayer,
+                            Compositor::blend)
+                    : null;
+            yuvOverlay = depth > 0 && yuv != null
+                    ? new AsyncOverlay<>(width, height, depth, this::renderLayer,
+                            yuv::blend)
+                    : null;
+            this.yuv = yuv;
+            this.sprites = sprites;
+            this.stats = stats;
+            badgeHeight = height / 15;
+            this.title = new SpriteCache.Key(title, badgeHeight * 6, badgeHeight);
+            clock = new SpriteCache.Key("", badgeHeight * 4, badgeHeight);
+            glyphWidth = badgeHeight * 3 / 8;
+            glyphs = new SpriteCache.Key[COLON + 1];
+            for (int i = 0; i < glyphs.length; i++) {
+                glyphs[i] = new SpriteCache.Key(i == COLON ? ':' : (char) ('0' + i),
+                        glyphWidth, badgeHeight);
+            }
+            font = new Font(Font.SANS_SERIF, Font.BOLD, badgeHeight * 3 / 5);
+            badgeRasterizer = this::paintBadge;
+            glyphRasterizer = this::paintGlyph;
+            // rasterize the sprites now rather than on the streaming thread
+            sprites.get(this.title, badgeRasterizer);
+            sprites.get(clock, badgeRasterizer);
+            for (SpriteCache.Key glyph : glyphs) {
+                sprites.get(glyph, glyphRasterizer);
+            }
+            this.quality = quality;
+            BufferedImage layer = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_ARGB_PRE);
+            layerGraphics = layer.createGraphics();
+            layerData = ((DataBufferInt) layer.getRaster().getDataBuffer()).getData();
+            layerBounds = new Rectangle();
         }
 
         @Override
         public PadProbeReturn probeCallback(Pad pad, PadProbeInfo info) {
             Buffer buffer = info.getBuffer();
             if (buffer.isWritable()) {
-                IntBuffer ib = buffer.map(true).asIntBuffer();
-                ib.get(data);
-                render();
-                ib.rewind();
-                ib.put(data);
+                if (ClockTime.isValid(buffer.getPresentationTimestamp())) {
+                    captureOffset = System.currentTimeMillis()
+                            - buffer.getPresentationTimestamp() / 1_000_000;
+                }
+                long mapStart = System.nanoTime();
+                ByteBuffer bytes = buffer.map(true);
+                IntBuffer ib = yuv == null ? bytes.asIntBuffer() : null;
+                long mapTime = System.nanoTime() - mapStart;
+                render(bytes, ib, buffer.getPresentationTimestamp(),
+                        buffer.getDuration());
+                long unmapStart = System.nanoTime();
                 buffer.unmap();
+                stats.recordMapping(mapTime, System.nanoTime() - unmapStart);
             }
             return PadProbeReturn.OK;
         }
 
-        private void render() {
-            Graphics2D g2d = image.createGraphics();
+        /**
+         * Render on to the mapped bytes of a frame, and the int view of them
+         * if the format is RGB.
+         */
+        private void render(ByteBuffer bytes, IntBuffer ib, long pts, long duration) {
+            if (overlay != null) {
+                overlay.composite(ib, pts, duration);
+            } else if (yuvOverlay != null) {
+                yuvOverlay.composite(bytes, pts, duration);
+            } else {
+                long start = System.nanoTime();
+                if (quality.isUpdateFrame()) {
+                    clearLayer();
+                    paint(layerGraphics, layerData, layerBounds, pts);
+                }
+                if (yuv != null) {
+                    yuv.blend(layerData, frame.width, layerBounds, bytes);
+                } else {
+                    Compositor.blend(layerData, frame.width, layerBounds, ib);
+                }
+                quality.record(System.nanoTime() - start);
+            }
+            renderSprites(bytes, ib, pts);
+        }
+
+        /**
+         * The wall clock time in epoch milliseconds at which the frame with
+         * the given running time was captured, or -1 if no frame has been
+         * seen. Live sources timestamp each buffer with its running time at
+         * capture, and the probe directly follows capture, so the offset of
+         * the latest frame from the wall clock is used.
+         */
+        long captureTime(long runningTime) {
+            long offset = captureOffset;
+            return offset < 0 ? -1 : offset + runningTime / 1_000_000;
+        }
+
+        /**
+         * Stop any overlay worker thread.
+         */
+        void dispose() {
+            if (overlay != null) {
+                overlay.dispose();
+            }
+            if (yuvOverlay != null) {
+                yuvOverlay.dispose();
+            }
+        }
+
+        /**
+         * Estimate of the heap used by the layer, any overlay layers rendered
+         * ahead, and the gradient tile.
+         */
+        long getMemory() {
+            long frameBytes = (long) frame.width * frame.height * 4;
+            return frameBytes * (1 + (overlay != null || yuvOverlay != null ? DEPTH : 0))
+                    + gradient.length * 4L;
+        }
+
+        /**
+         * Render the next frame of the animation into an overlay layer. Called
+         * on the AsyncOverlay worker thread.
+         */
+        private void renderLayer(Graphics2D layer, int[] layerData, Rectangle bounds, long pts) {
+            paint(layer, layerData, bounds, pts);
+        }
+
+        /**
+         * Clear the region of the layer painted for the last update.
+         */
+        private void clearLayer() {
+            for (int y = layerBounds.y; y < layerBounds.y + layerBounds.height; y++) {
+                int offset = y * frame.width + layerBounds.x;
+                Arrays.fill(layerData, offset, offset + layerBounds.width, 0);
+            }
+            layerBounds.setBounds(0, 0, 0, 0);
+        }
+
+        /**
+         * Blit the title and running time clock on to the frame from the
+         * sprite cache. The clock is an empty badge with a sprite blitted on
+         * top for each character of HH:MM:SS. Hours wrap at 100.
+         */
+        private void renderSprites(ByteBuffer bytes, IntBuffer ib, long pts) {
+            int margin = badgeHeight / 2;
+            SpriteCache.Sprite sprite = sprites.get(title, badgeRasterizer);
+            blit(sprite, margin, margin, bytes, ib);
+            if (ClockTime.isValid(pts)) {
+                long seconds = ClockTime.toSeconds(pts);
+                long digits = (seconds / 3600) % 100 * 10000
+                        + (seconds / 60) % 60 * 100 + seconds % 60;
+                sprite = sprites.get(clock, badgeRasterizer);
+                int x = frame.width - sprite.width - margin;
+                int y = frame.height - sprite.height - margin;
+                blit(sprite, x, y, bytes, ib);
+                x += (sprite.width - CLOCK_GLYPHS * glyphWidth) / 2;
+                for (int i = CLOCK_GLYPHS - 1; i >= 0; i--) {
+                    int glyph;
+                    if (i == 2 || i == 5) {
+                        glyph = COLON;
+                    } else {
+                        glyph = (int) (digits % 10);
+                        digits /= 10;
+                    }
+                    blit(sprites.get(glyphs[glyph], glyphRasterizer),
+                            x + i * glyphWidth, y, bytes, ib);
+                }
+            }
+        }
+
+        /**
+         * Blend a sprite on to the frame - on to the YUV planes of the mapped
+         * bytes if a YuvCompositor is in use, otherwise on to the RGB pixels.
+         */
+        private void blit(SpriteCache.Sprite sprite, int x, int y,
+                ByteBuffer bytes, IntBuffer ib) {
+            if (yuv != null) {
+                yuv.blend(sprite.data, sprite.width, sprite.height, x, y, bytes);
+            } else {
+                Compositor.blend(sprite.data, sprite.width, sprite.height,
+                        x, y, ib, frame.width, frame.height);
+            }
+        }
+
+        /**
+         * Rasterize text content on a translucent rounded badge.
+         */
+        private void paintBadge(Graphics2D g2d, Object content, int width, int height) {
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.setColor(BADGE);
+            g2d.fillRoundRect(0, 0, width, height, height / 2, height / 2);
+            paintGlyph(g2d, content, width, height);
+        }
+
+        /**
+         * Rasterize text content centred in white, without a background.
+         */
+        private void paintGlyph(Graphics2D g2d, Object content, int width, int height) {
+            g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2d.setColor(Color.WHITE);
+            g2d.setFont(font);
+            FontMetrics metrics = g2d.getFontMetrics();
+            String text = content.toString();
+            g2d.drawString(text, (width - metrics.stringWidth(text)) / 2,
+                    (height - metrics.getHeight()) / 2 + metrics.getAscent());
+        }
+
+        /**
+         * Advance the animation to the timestamp and paint it into a cleared,
+         * premultiplied ARGB layer, setting the region painted. The curve is
+         * filled in white so that the layer holds its coverage, each covered
+         * pixel replaced by the gradient tile pixel scaled to the coverage,
+         * and the outline drawn on top if the quality level strokes. The
+         * gradient is only rendered once, so no Paint context is created per
+         * frame. Quality levels without antialiasing are painted by the
+         * ScanlineRasterizer instead of Java2D.
+         */
+        private void paint(Graphics2D g2d, int[] layer, Rectangle region, long pts) {
+            update(region, pts);
+            AdaptiveQuality.Level level = quality.level();
+            if (!level.antialias) {
+                aliased.flatten(curve.getPathIterator(null));
+                aliased.fill(layer, frame.width, region, gradient, GRADIENT_TILE);
+                if (level.stroke) {
+                    aliased.draw(layer, frame.width, region, 0xff000000);
+                }
+                return;
+            }
             g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                     RenderingHints.VALUE_ANTIALIAS_ON);
-            for (Point point : points) {
-                point.tick();
-            }
-            GeneralPath path = new GeneralPath();
-            path.moveTo(points[0].x, points[0].y);
-            for (int i = 2; i < points.length; i += 2) {
-                path.quadTo(points[i - 1].x, points[i - 1].y,
-                        points[i].x, points[i].y);
-            }
-            path.closePath();
-            path.transform(AffineTransform.getScaleInstance(image.getWidth(), image.getHeight()));
-            g2d.setPaint(fill);
-            g2d.fill(path);
-            g2d.setColor(Color.BLACK);
-            g2d.draw(path);
+            g2d.setColor(Color.WHITE);
+            g2d.fill(curve);
+            int width = frame.width;
+            for (int y = region.y; y < region.y + region.height; y++) {
+                int offset = y * width;
+                int tileOffset = (y % GRADIENT_TILE) * GRADIENT_TILE;
+                for (int x = region.x; x < region.x + region.width; x++) {
+                    int coverage = layer[offset + x] >>> 24;
+                    if (coverage != 0) {
+                        layer[offset + x] = scale(
+                                gradient[tileOffset + x % GRADIENT_TILE], coverage);
+                    }
+                }
+            }
+            if (level.stroke) {
+                g2d.setColor(Color.BLACK);
+                g2d.draw(curve);
+            }
+        }
+
+        /**
+         * Advance the animation to the timestamp, and set the curve and the
+         * region of the frame it will draw over, allowing for the stroke and
+         * antialiasing.
+         */
+        private void update(Rectangle region, long pts) {
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            double frames = elapsedFrames(pts);
+            int width = frame.width;
+            int height = frame.height;
+            for (int i = 0; i < points.length; i++) {
+                Point point = points[i];
+                point.tick(frames);
+                minX = Math.min(minX, point.x);
+                minY = Math.min(minY, point.y);
+                maxX = Math.max(maxX, point.x);
+                maxY = Math.max(maxY, point.y);
+                curve.set(i, point.x * width, point.y * height);
+            }
+            // a quadratic curve lies within the hull of its control points
+            int x = (int) Math.floor(minX * width);
+            int y = (int) Math.floor(minY * height);
+            region.setBounds(x, y,
+                    (int) Math.ceil(maxX * width) - x,
+                    (int) Math.ceil(maxY * height) - y);
+            region.grow(2, 2);
+            Rectangle2D.intersect(region, frame, region);
+            if (region.isEmpty()) {
+                region.setSize(0, 0);
+            }
+        }
+
+        /**
+         * The number of frame intervals since the last update, so that the
+         * animation moves at the same speed whatever the update rate - at
+         * reduced quality levels frames are dropped rather than the animation
+         * slowing down. One interval is used if there is no earlier timestamp
+         * or time has gone backwards, and a gap is limited to a second.
+         */
+        private double elapsedFrames(long pts) {
+            long last = animationPts;
+            animationPts = pts;
+            if (!ClockTime.isValid(pts) || !ClockTime.isValid(last) || pts <= last) {
+                return 1;
+            }
+            return Math.min(FPS, (pts - last) / (double) (ClockTime.fromSeconds(1) / FPS));
+        }
+
+        /**
+         * Scale a premultiplied ARGB pixel by an alpha value.
+         */
+        private static int scale(int argb, int alpha) {
+            if (alpha == 255) {
+                return argb;
+            }
+            return (mul(argb >>> 24, alpha) << 24)
+                    | (mul((argb >> 16) & 0xff, alpha) << 16)
+                    | (mul((argb >> 8) & 0xff, alpha) << 8)
+                    | mul(argb & 0xff, alpha);
+        }
+
+        private static int mul(int value, int alpha) {
+            int x = value * alpha + 128;
+            return (x + (x >> 8)) >> 8;
         }
 
     }
@@ -254,13 +1099,19 @@ public class HLS {
             this.dy = 0.02 * Math.random();
         }
 
-        private void tick() {
-            x += dx;
-            y += dy;
+        /**
+         * Move by the given number of frames, reflecting off the edges. A
+         * point moves less than 1 in a second, so one reflection is enough.
+         */
+        private void tick(double frames) {
+            x += dx * frames;
+            y += dy * frames;
             if (x < 0 || x > 1) {
+                x = x < 0 ? -x : 2 - x;
                 dx = -dx;
             }
             if (y < 0 || y > 1) {
+                y = y < 0 ? -y : 2 - y;
                 dy = -dy;
             }
         }
@@ -268,32 +1119,38 @@ public class HLS {
     }
 
     private static void deleteOnExit(Path dir) {
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            try {
-                Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
-                    @Override
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                            throws IOException {
-                        if (file.toString().endsWith(".m3u8")
-                                || file.toString().endsWith(".ts")) {
-                            Files.delete(file);
-                            return FileVisitResult.CONTINUE;
-                        } else {
-                            throw new IOException("Unexpected file type at " + file);
-                        }
-                    }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(dir)));
+    }
 
-                    @Override
-                    public FileVisitResult postVisitDirectory(Path dir, IOException e)
-                            throws IOException {
-                        Files.delete(dir);
+    static void delete(Path dir) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                        throws IOException {
+                    String name = file.toString();
+                    if (name.endsWith(".m3u8") || name.endsWith(".ts")
+                            || name.endsWith(".m4s") || name.endsWith(".mp4")
+                            || name.endsWith(".idx")) {
+                        Files.delete(file);
                         return FileVisitResult.CONTINUE;
+                    } else {
+                        throw new IOException("Unexpected file type at " + file);
                     }
-                });
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to delete " + dir, e);
-            }
-        }));
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e)
+                        throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (NoSuchFileException ex) {
+            // already deleted, eg. channel directory on shutdown
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete " + dir, e);
+        }
     }
 
 }
@@ -0,0 +1,150 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds (or other non-negative
+ * values, eg. sizes in bytes). Values are recorded into log-linear buckets (16
+ * per power of two, so within ~6% of the true value) without allocation, and
+ * can be read concurrently from another thread.
+ */
+class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 62;
+    private static final int BUCKETS
+            = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    Histogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long m;
+        while (nanos > (m = max.get())) {
+            if (max.compareAndSet(m, nanos)) {
+                break;
+            }
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getSum() {
+        return sum.get();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    long getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : sum.get() / c;
+    }
+
+    /**
+     * Get the value at the given quantile, eg. 0.99 for p99. The value
+     * returned is the upper bound of the bucket containing the quantile,
+     * limited to the maximum recorded value.
+     *
+     * @param quantile between 0 and 1
+     * @return value in nanoseconds, or zero if nothing recorded
+     */
+    long getValueAtQuantile(double quantile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Get the number of recorded values less than or equal to the upper bound
+     * of the bucket containing the value.
+     *
+     * @param nanos value in nanoseconds
+     * @return cumulative count
+     */
+    long getCountAtOrBelow(long nanos) {
+        int last = index(Math.max(0, nanos));
+        long seen = 0;
+        for (int i = 0; i <= last; i++) {
+            seen += buckets.get(i);
+        }
+        return seen;
+    }
+
+    /**
+     * Format count, p50, p99, p999 and max in milliseconds.
+     */
+    String summary() {
+        return String.format("n %d, p50 %.2fms, p99 %.2fms, p999 %.2fms, max %.2fms",
+                getCount(),
+                getValueAtQuantile(0.5) / 1e6,
+                getValueAtQuantile(0.99) / 1e6,
+                getValueAtQuantile(0.999) / 1e6,
+                getMax() / 1e6);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+}
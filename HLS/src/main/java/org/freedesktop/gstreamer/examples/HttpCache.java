@@ -0,0 +1,166 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import io.javalin.http.Context;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * HTTP caching support for playlists and segments. Response bodies are held
+ * as Entry instances with an ETag calculated once when the entry is created,
+ * so serving a request (or answering a conditional request with 304 Not
+ * Modified) does no work proportional to the body size.
+ */
+class HttpCache {
+
+    static final String PLAYLIST_TYPE = "application/vnd.apple.mpegurl";
+    static final String SEGMENT_TYPE = "video/mp2t";
+    static final String MP4_TYPE = "video/mp4";
+
+    /**
+     * Cache-Control for live playlists - clients may reuse a playlist for a
+     * second, then must revalidate.
+     */
+    static final String PLAYLIST_CACHE = "public, max-age=1";
+
+    /**
+     * Cache-Control for playlists that must always be revalidated, eg. low
+     * latency playlists updated every part.
+     */
+    static final String REVALIDATE = "no-cache";
+
+    /**
+     * Cache-Control for segments, which never change once written.
+     */
+    static final String SEGMENT_CACHE = "public, max-age=3600, immutable";
+
+    private HttpCache() {
+    }
+
+    /**
+     * The content type of a playlist, manifest or segment file name.
+     *
+     * @param name file name
+     * @return content type
+     */
+    static String contentType(String name) {
+        if (name.endsWith(".m3u8")) {
+            return PLAYLIST_TYPE;
+        } else if (name.endsWith(".mpd")) {
+            return DashManifest.CONTENT_TYPE;
+        } else if (name.endsWith(".mp4") || name.endsWith(".m4s")) {
+            return MP4_TYPE;
+        } else {
+            return SEGMENT_TYPE;
+        }
+    }
+
+    /**
+     * Serve the entry with the given content type and cache control,
+     * answering with 304 Not Modified if the request's If-None-Match header
+     * matches the entry ETag.
+     *
+     * @param ctx request context
+     * @param entry response entry
+     * @param contentType response content type
+     * @param cacheControl Cache-Control header value
+     */
+    static void serve(Context ctx, Entry entry, String contentType, String cacheControl) {
+        ctx.header("Cache-Control", cacheControl);
+        ctx.header("ETag", entry.etag);
+        String match = ctx.header("If-None-Match");
+        if (match != null && match.contains(entry.etag)) {
+            ctx.status(304);
+            return;
+        }
+        ctx.contentType(contentType);
+        ctx.result(entry.data);
+    }
+
+    /**
+     * A response body and its ETag.
+     */
+    static final class Entry {
+
+        final byte[] data;
+        final String etag;
+
+        Entry(byte[] data) {
+            this.data = data;
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            etag = "\"" + Long.toHexString(crc.getValue())
+                    + "-" + Integer.toHexString(data.length) + "\"";
+        }
+
+    }
+
+    /**
+     * Caches a file written by hlssink2 (eg. the playlist) until invalidated.
+     * The file is read at most once per invalidation - concurrent requests
+     * after an invalidation wait for a single read.
+     */
+    static final class FileCache {
+
+        private final Path file;
+
+        private volatile Entry entry;
+        private volatile long version;
+
+        FileCache(Path file) {
+            this.file = file;
+        }
+
+        /**
+         * Get the cached entry, reading the file if required.
+         *
+         * @return entry, or null if the file does not exist
+         * @throws IOException on read error
+         */
+        Entry get() throws IOException {
+            Entry e = entry;
+            if (e != null) {
+                return e;
+            }
+            synchronized (this) {
+                e = entry;
+                if (e == null) {
+                    long v = version;
+                    try {
+                        e = new Entry(Files.readAllBytes(file));
+                    } catch (NoSuchFileException ex) {
+                        return null;
+                    }
+                    // only cache if not invalidated while reading
+                    if (v == version) {
+                        entry = e;
+                    }
+                }
+                return e;
+            }
+        }
+
+        /**
+         * Invalidate the cached entry, eg. when the file has been rewritten.
+         */
+        void invalidate() {
+            version++;
+            entry = null;
+        }
+
+    }
+
+}
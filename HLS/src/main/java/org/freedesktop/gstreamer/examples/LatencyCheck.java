@@ -0,0 +1,103 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+/**
+ * Collects glass-to-glass latency measurements reported by clients, and checks
+ * them against a bound.
+ * <p>
+ * The client measures latency as the wall clock time at which a frame is
+ * displayed less the wall clock time at which it was captured, taken from the
+ * EXT-X-PROGRAM-DATE-TIME of its segment (see LowLatencyPlaylist and the
+ * playingDate of hls.js in index.html). Client and server clocks must be in
+ * sync, eg. both on localhost.
+ * <p>
+ * Measurements in the first warm up period after the first report are not
+ * counted, while the player catches up with the live edge. The check is
+ * complete once measurements have been counted for the check period, and
+ * passes if none of them exceeded the bound.
+ */
+class LatencyCheck {
+
+    private final long bound;
+    private final long warmUp;
+    private final long period;
+    private final Histogram latency;
+
+    private long firstReport;
+    private boolean complete;
+
+    /**
+     * Create a LatencyCheck.
+     *
+     * @param bound maximum latency in nanoseconds
+     * @param warmUp time in nanoseconds from the first report before
+     * measurements are counted
+     * @param period time in nanoseconds to count measurements for
+     */
+    LatencyCheck(long bound, long warmUp, long period) {
+        this.bound = bound;
+        this.warmUp = warmUp;
+        this.period = period;
+        latency = new Histogram();
+    }
+
+    /**
+     * Record a measurement reported by a client.
+     *
+     * @param nanos glass-to-glass latency in nanoseconds
+     * @return true if this measurement completed the check
+     */
+    synchronized boolean record(long nanos) {
+        if (complete) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (firstReport == 0) {
+            firstReport = now;
+        }
+        long elapsed = now - firstReport;
+        if (elapsed < warmUp) {
+            return false;
+        }
+        latency.record(Math.max(0, nanos));
+        if (elapsed >= warmUp + period) {
+            complete = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether measurements have been counted for the whole check period.
+     */
+    synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Whether measurements were counted and none exceeded the bound.
+     */
+    synchronized boolean passed() {
+        return latency.getCount() > 0 && latency.getMax() <= bound;
+    }
+
+    /**
+     * Format the result of the check.
+     */
+    synchronized String report() {
+        return "Glass-to-glass latency : " + latency.summary() + " : "
+                + (passed() ? "PASSED" : "FAILED") + " (bound "
+                + (bound / 1_000_000) + "ms)";
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import org.freedesktop.gstreamer.ClockTime;
+
+/**
+ * A headless Low-Latency HLS client, so that glass-to-glass latency can be
+ * checked without a browser.
+ * <p>
+ * The client follows the media playlist of a channel (the first variant of a
+ * master playlist) using blocking playlist reload, asking for the next part
+ * as soon as each playlist arrives. The capture time of the end of the
+ * newest part is its segment's EXT-X-PROGRAM-DATE-TIME plus the durations of
+ * the parts up to and including it. A player holds back PART-HOLD-BACK from
+ * the live edge, so when the playlist arrives it displays the frame captured
+ * that long before the end of the newest part. Each measurement is the time
+ * since the end of the newest part was captured, plus the hold back, and is
+ * recorded in a LatencyCheck. Decode and display time is not included.
+ * <p>
+ * The client runs in the server process, so there is no clock difference.
+ */
+class LatencyClient implements Runnable {
+
+    private static final int TIMEOUT = 10_000;
+    private static final long RETRY = 1000;
+
+    private final URL playlist;
+    private final LatencyCheck check;
+    private final Runnable completed;
+
+    private long holdBack;
+    private long sequence;
+    private int part;
+    private long partEnd;
+
+    /**
+     * Create a LatencyClient.
+     *
+     * @param playlist url of the channel playlist
+     * @param check check to record measurements in
+     * @param completed called on the client thread once a measurement
+     * completes the check
+     */
+    LatencyClient(URL playlist, LatencyCheck check, Runnable completed) {
+        this.playlist = playlist;
+        this.check = check;
+        this.completed = completed;
+    }
+
+    /**
+     * Follow the playlist until the check is complete.
+     */
+    @Override
+    public void run() {
+        try {
+            URL media = variant(playlist);
+            String query = "";
+            long lastSequence = -1;
+            int lastPart = -1;
+            while (!check.isComplete()) {
+                String text = fetch(new URL(media, media.getPath() + query));
+                if (text == null) {
+                    query = "";
+                    Thread.sleep(RETRY);
+                    continue;
+                }
+                long arrival = System.currentTimeMillis();
+                parse(text);
+                if (partEnd >= 0 && (sequence > lastSequence
+                        || (sequence == lastSequence && part > lastPart))) {
+                    long latency = arrival - partEnd + holdBack;
+                    // the first playlist was not requested as the part arrived
+                    if (lastSequence >= 0
+                            && check.record(ClockTime.fromMillis(latency))) {
+                        completed.run();
+                    }
+                    lastSequence = sequence;
+                    lastPart = part;
+                }
+                query = "?_HLS_msn=" + sequence + "&_HLS_part=" + part;
+            }
+        } catch (InterruptedException ex) {
+            // stopped
+        } catch (IOException ex) {
+            System.out.println("Latency client failed : " + ex);
+        }
+    }
+
+    /**
+     * Find the first variant playlist if the playlist is a master playlist,
+     * waiting until it is available.
+     */
+    private static URL variant(URL playlist) throws IOException, InterruptedException {
+        String text;
+        while ((text = fetch(playlist)) == null) {
+            Thread.sleep(RETRY);
+        }
+        if (!text.contains("#EXT-X-STREAM-INF")) {
+            return playlist;
+        }
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                return new URL(playlist, line);
+            }
+        }
+        throw new IOException("No variant in " + playlist);
+    }
+
+    /**
+     * Get the playlist text, or null if not available (yet).
+     */
+    private static String fetch(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        try {
+            if (connection.getResponseCode() != 200) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            // eg. read timeout, retried
+            return null;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Read the hold back, the capture time of the end of the newest part,
+     * and the media sequence number and part index of the next part.
+     */
+    private void parse(String text) {
+        long date = -1;
+        double offset = 0;
+        partEnd = -1;
+        part = 0;
+        sequence = -1;
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+                sequence = Long.parseLong(line.substring(22));
+            } else if (line.startsWith("#EXT-X-SERVER-CONTROL:")) {
+                String value = attribute(line, "PART-HOLD-BACK");
+                if (value != null) {
+                    holdBack = Math.round(Double.parseDouble(value) * 1000);
+                }
+            } else if (line.startsWith("#EXT-X-PROGRAM-DATE-TIME:")) {
+                try {
+                    date = OffsetDateTime.parse(line.substring(25))
+                            .toInstant().toEpochMilli();
+                } catch (DateTimeParseException ex) {
+                    date = -1;
+                }
+                offset = 0;
+                part = 0;
+            } else if (line.startsWith("#EXT-X-PART:")) {
+                offset += Double.parseDouble(attribute(line, "DURATION"));
+                part++;
+                partEnd = date < 0 ? -1 : date + Math.round(offset * 1000);
+            } else if (!line.isEmpty() && !line.startsWith("#")) {
+                // a complete segment - the next part starts the next segment
+                sequence++;
+                part = 0;
+            }
+        }
+        sequence = Math.max(0, sequence);
+    }
+
+    private static String attribute(String line, String name) {
+        for (String attribute : line.substring(line.indexOf(':') + 1).split(",")) {
+            if (attribute.startsWith(name + "=")) {
+                return attribute.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,369 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import io.javalin.http.Context;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+import org.freedesktop.gstreamer.ClockTime;
+import org.freedesktop.gstreamer.Gst;
+
+/**
+ * Builds a Low-Latency HLS media playlist from the fragments in a
+ * SegmentStore, and serves it with blocking playlist reload and blocking
+ * preload hinted part requests.
+ * <p>
+ * Each hlssink2 fragment is published as a partial segment (EXT-X-PART) as
+ * soon as it is complete. The encoder is configured to produce a keyframe at
+ * the start of every part, so all parts are independent. Every partsPerSegment
+ * parts are concatenated into a full segment for clients that do not support
+ * parts. Parts are listed for the last two full segments and the segment in
+ * progress.
+ * <p>
+ * Playlist requests with _HLS_msn (and optionally _HLS_part) query parameters
+ * are held until the playlist contains that segment or part, without blocking
+ * a server thread. The next part is advertised with EXT-X-PRELOAD-HINT, and a
+ * request for it is held until it is available. Requests held for longer than
+ * three target durations receive a 503 status (playlist) or 404 status (part).
+ * <p>
+ * Each segment is tagged with EXT-X-PROGRAM-DATE-TIME, the wall clock time at
+ * which the first frame of its first part was captured. Clients can compare
+ * this with the wall clock time at which the frame is displayed to measure
+ * glass-to-glass latency (see LatencyCheck).
+ */
+class LowLatencyPlaylist implements SegmentStore.Listener {
+
+    private static final int PART_SEGMENTS = 2;
+    private static final DateTimeFormatter DATE_TIME
+            = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX")
+                    .withZone(ZoneOffset.UTC);
+
+    private final SegmentStore store;
+    private final String segmentFormat;
+    private final String partFormat;
+    private final int partsPerSegment;
+    private final int window;
+    private final double partTarget;
+    private final int targetDuration;
+    private final long timeout;
+    private final LongUnaryOperator captureTime;
+    private final Deque<Segment> segments;
+    private final List<Waiter> waiters;
+
+    private HttpCache.Entry playlist;
+    private int nextSequence;
+    private String hint;
+
+    /**
+     * Create a LowLatencyPlaylist.
+     *
+     * @param store segment store receiving the hlssink2 fragments
+     * @param partFormat format of the hlssink2 fragment (part) names, eg.
+     * part%05d.ts
+     * @param segmentFormat format of the full segment names, eg.
+     * segment%05d.ts
+     * @param partTarget maximum part duration in nanoseconds
+     * @param partsPerSegment number of parts in each full segment
+     * @param window number of full segments in the playlist
+     * @param captureTime function of running time in nanoseconds to the wall
+     * clock time the frame was captured in epoch milliseconds, or -1 if not
+     * known
+     */
+    LowLatencyPlaylist(SegmentStore store, String partFormat, String segmentFormat,
+            long partTarget, int partsPerSegment, int window,
+            LongUnaryOperator captureTime) {
+        this.store = store;
+        this.partFormat = partFormat;
+        this.segmentFormat = segmentFormat;
+        this.partsPerSegment = partsPerSegment;
+        this.window = window;
+        this.captureTime = captureTime;
+        this.partTarget = partTarget / 1e9;
+        targetDuration = (int) Math.ceil(this.partTarget * partsPerSegment);
+        timeout = ClockTime.fromSeconds(3 * targetDuration);
+        segments = new ArrayDeque<>();
+        waiters = new ArrayList<>();
+    }
+
+    /**
+     * Serve the playlist, blocking if the request has _HLS_msn / _HLS_part
+     * query parameters.
+     *
+     * @param ctx request context
+     */
+    void servePlaylist(Context ctx) {
+        int msn = queryInt(ctx, "_HLS_msn");
+        int part = queryInt(ctx, "_HLS_part");
+        if (msn < 0 && part >= 0) {
+            ctx.status(400);
+            return;
+        }
+        synchronized (this) {
+            if (msn >= 0 && msn > nextSequence + 1) {
+                // too far ahead of the live edge
+                ctx.status(400);
+                return;
+            }
+            if (msn < 0 || isAvailable(msn, part)) {
+                if (playlist == null) {
+                    ctx.status(404);
+                } else {
+                    HttpCache.serve(ctx, playlist, HttpCache.PLAYLIST_TYPE,
+                            HttpCache.REVALIDATE);
+                }
+                return;
+            }
+            hold(ctx, new Waiter(ctx, msn, part, null));
+        }
+    }
+
+    /**
+     * Serve a segment or part, blocking if the requested part is the one
+     * currently advertised by the preload hint.
+     *
+     * @param ctx request context
+     * @param name file name
+     */
+    void serveMedia(Context ctx, String name) {
+        if (store.get(name) != null) {
+            store.serve(ctx, name);
+            return;
+        }
+        synchronized (this) {
+            if (store.get(name) != null) {
+                store.serve(ctx, name);
+            } else if (name.equals(hint)) {
+                hold(ctx, new Waiter(ctx, -1, -1, name));
+            } else {
+                ctx.status(404);
+            }
+        }
+    }
+
+    @Override
+    public void fragmentAdded(String name, long start, long duration) {
+        List<Waiter> ready;
+        HttpCache.Entry current;
+        synchronized (this) {
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.complete) {
+                segment = new Segment(nextSequence++);
+                segments.addLast(segment);
+            }
+            segment.parts.add(new Part(name, ClockTime.isValid(duration)
+                    ? duration / 1e9 : partTarget,
+                    ClockTime.isValid(start) ? captureTime.applyAsLong(start) : -1));
+            if (segment.parts.size() == partsPerSegment) {
+                complete(segment);
+            }
+            while (segments.size() > window + 1) {
+                store.remove(segments.removeFirst().name);
+            }
+            hint = nextPartName(name);
+            playlist = new HttpCache.Entry(render());
+            current = playlist;
+            ready = new ArrayList<>();
+            for (Iterator<Waiter> itr = waiters.iterator(); itr.hasNext();) {
+                Waiter waiter = itr.next();
+                if (waiter.part == null
+                        ? isAvailable(waiter.msn, waiter.partIndex)
+                        : store.get(waiter.part) != null) {
+                    itr.remove();
+                    ready.add(waiter);
+                }
+            }
+        }
+        for (Waiter waiter : ready) {
+            if (waiter.part == null) {
+                waiter.ctx.contentType(HttpCache.PLAYLIST_TYPE);
+                waiter.ctx.header("Cache-Control", HttpCache.REVALIDATE);
+                waiter.ctx.header("ETag", current.etag);
+                waiter.future.complete(stream(current.data));
+            } else {
+                waiter.ctx.contentType(HttpCache.SEGMENT_TYPE);
+                waiter.ctx.header("Cache-Control", HttpCache.SEGMENT_CACHE);
+                waiter.future.complete(stream(store.get(waiter.part)));
+            }
+        }
+    }
+
+    private void hold(Context ctx, Waiter waiter) {
+        waiters.add(waiter);
+        ctx.result(waiter.future);
+        Gst.getExecutor().schedule(() -> {
+            boolean expired;
+            synchronized (this) {
+                expired = waiters.remove(waiter);
+            }
+            if (expired) {
+                ctx.status(waiter.part == null ? 503 : 404);
+                waiter.future.complete(stream(new byte[0]));
+            }
+        }, timeout, TimeUnit.NANOSECONDS);
+    }
+
+    private void complete(Segment segment) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Part part : segment.parts) {
+            byte[] data = store.get(part.name);
+            if (data != null) {
+                out.write(data, 0, data.length);
+            }
+            segment.duration += part.duration;
+        }
+        store.put(segment.name, out.toByteArray());
+        segment.complete = true;
+    }
+
+    private boolean isAvailable(int msn, int part) {
+        Segment last = segments.peekLast();
+        if (last == null) {
+            return false;
+        }
+        if (msn < last.sequence) {
+            return true;
+        }
+        if (msn > last.sequence) {
+            return false;
+        }
+        return part < 0 ? last.complete : part < last.parts.size();
+    }
+
+    private byte[] render() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:6\n");
+        sb.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n');
+        sb.append(String.format(Locale.ROOT,
+                "#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=%.3f\n",
+                partTarget * 3));
+        sb.append(String.format(Locale.ROOT,
+                "#EXT-X-PART-INF:PART-TARGET=%.3f\n", partTarget));
+        int completed = segments.size() - (segments.peekLast().complete ? 0 : 1);
+        int skip = Math.max(0, completed - window);
+        int partsFrom = completed - PART_SEGMENTS;
+        int index = 0;
+        for (Segment segment : segments) {
+            if (index == skip) {
+                sb.append("#EXT-X-MEDIA-SEQUENCE:").append(segment.sequence).append('\n');
+            }
+            if (index >= skip) {
+                long date = segment.parts.get(0).date;
+                if (date >= 0) {
+                    sb.append("#EXT-X-PROGRAM-DATE-TIME:")
+                            .append(DATE_TIME.format(Instant.ofEpochMilli(date)))
+                            .append('\n');
+                }
+                if (index >= partsFrom) {
+                    for (Part part : segment.parts) {
+                        sb.append(String.format(Locale.ROOT,
+                                "#EXT-X-PART:DURATION=%.3f,URI=\"%s\",INDEPENDENT=YES\n",
+                                part.duration, part.name));
+                    }
+                }
+                if (segment.complete) {
+                    sb.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n",
+                            segment.duration));
+                    sb.append(segment.name).append('\n');
+                }
+            }
+            index++;
+        }
+        if (hint != null) {
+            sb.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"").append(hint).append("\"\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String nextPartName(String name) {
+        String digits = name.replaceAll("\\D", "");
+        return digits.isEmpty() ? null
+                : String.format(partFormat, Integer.parseInt(digits) + 1);
+    }
+
+    private static int queryInt(Context ctx, String name) {
+        String value = ctx.queryParam(name);
+        try {
+            return value == null ? -1 : Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static InputStream stream(byte[] data) {
+        return new ByteArrayInputStream(data == null ? new byte[0] : data);
+    }
+
+    private class Segment {
+
+        private final int sequence;
+        private final String name;
+        private final List<Part> parts;
+
+        private double duration;
+        private boolean complete;
+
+        private Segment(int sequence) {
+            this.sequence = sequence;
+            this.name = String.format(segmentFormat, sequence);
+            this.parts = new ArrayList<>(partsPerSegment);
+        }
+
+    }
+
+    private static class Part {
+
+        private final String name;
+        private final double duration;
+        private final long date;
+
+        private Part(String name, double duration, long date) {
+            this.name = name;
+            this.duration = duration;
+            this.date = date;
+        }
+
+    }
+
+    private static class Waiter {
+
+        private final Context ctx;
+        private final int msn;
+        private final int partIndex;
+        private final String part;
+        private final CompletableFuture<InputStream> future;
+
+        private Waiter(Context ctx, int msn, int partIndex, String part) {
+            this.ctx = ctx;
+            this.msn = msn;
+            this.partIndex = partIndex;
+            this.part = part;
+            this.future = new CompletableFuture<>();
+        }
+
+    }
+
+}
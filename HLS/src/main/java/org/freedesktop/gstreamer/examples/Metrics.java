@@ -0,0 +1,186 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes metrics in the Prometheus text exposition format for a single
+ * scrape. Samples may be added in any order, eg. channel by channel - they
+ * are grouped by metric family, each with its HELP and TYPE lines, when
+ * rendered.
+ * <p>
+ * All values are read from counters and histograms updated elsewhere, so a
+ * Metrics is only created on scrape and nothing is allocated where values
+ * are recorded.
+ */
+class Metrics {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Histogram bucket bounds for durations of a frame or less, in
+     * nanoseconds.
+     */
+    static final long[] FRAME_BUCKETS = millis(1, 2, 5, 10, 20, 33, 50, 100, 250);
+
+    /**
+     * Histogram bucket bounds for HTTP request latency, in nanoseconds.
+     */
+    static final long[] REQUEST_BUCKETS
+            = millis(1, 5, 10, 25, 50, 100, 250, 500, 1000, 5000, 15000, 30000);
+
+    /**
+     * Histogram bucket bounds for segment latency, in nanoseconds.
+     */
+    static final long[] SEGMENT_BUCKETS
+            = millis(500, 1000, 2000, 4000, 6000, 8000, 10000, 15000, 20000, 30000);
+
+    /**
+     * Histogram bucket bounds for segment duration jitter, in nanoseconds.
+     */
+    static final long[] JITTER_BUCKETS = millis(1, 5, 10, 20, 40, 80, 160, 500, 1000);
+
+    /**
+     * Histogram bucket bounds for segment sizes, in bytes.
+     */
+    static final long[] SIZE_BUCKETS = {16 << 10, 64 << 10, 256 << 10, 512 << 10,
+        1 << 20, 2 << 20, 4 << 20, 8 << 20};
+
+    private final Map<String, StringBuilder> families;
+
+    Metrics() {
+        families = new LinkedHashMap<>();
+    }
+
+    /**
+     * Add a counter sample.
+     *
+     * @param name metric name, ending in _total
+     * @param help help text
+     * @param labels labels from labels(), or empty
+     * @param value counter value
+     * @return this
+     */
+    Metrics counter(String name, String help, String labels, double value) {
+        sample(family(name, help, "counter"), name, labels, value);
+        return this;
+    }
+
+    /**
+     * Add a gauge sample.
+     *
+     * @param name metric name
+     * @param help help text
+     * @param labels labels from labels(), or empty
+     * @param value gauge value
+     * @return this
+     */
+    Metrics gauge(String name, String help, String labels, double value) {
+        sample(family(name, help, "gauge"), name, labels, value);
+        return this;
+    }
+
+    /**
+     * Add the samples of a Histogram, with cumulative buckets at the given
+     * bounds. Bucket counts are accurate to the Histogram bucket precision.
+     *
+     * @param name metric name
+     * @param help help text
+     * @param labels labels from labels(), or empty
+     * @param histogram histogram to read
+     * @param bounds bucket upper bounds, ascending
+     * @param scale divisor from recorded values to exposed units, eg. 1e9
+     * for nanoseconds to seconds
+     * @return this
+     */
+    Metrics histogram(String name, String help, String labels,
+            Histogram histogram, long[] bounds, double scale) {
+        StringBuilder sb = family(name, help, "histogram");
+        // read count first so buckets never exceed it
+        long count = histogram.getCount();
+        String separator = labels.isEmpty() ? "" : ",";
+        for (long bound : bounds) {
+            sample(sb, name + "_bucket", labels + separator + "le=\""
+                    + format(bound / scale) + '"',
+                    Math.min(count, histogram.getCountAtOrBelow(bound)));
+        }
+        sample(sb, name + "_bucket", labels + separator + "le=\"+Inf\"", count);
+        sample(sb, name + "_sum", labels, histogram.getSum() / scale);
+        sample(sb, name + "_count", labels, count);
+        return this;
+    }
+
+    /**
+     * Render all samples.
+     *
+     * @return exposition text
+     */
+    String render() {
+        StringBuilder sb = new StringBuilder();
+        for (StringBuilder family : families.values()) {
+            sb.append(family);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Format label pairs, eg. labels("channel", "live", "rendition", "720p").
+     *
+     * @param pairs label names and values
+     * @return labels text
+     */
+    static String labels(String... pairs) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i + 1 < pairs.length; i += 2) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(pairs[i]).append("=\"").append(pairs[i + 1]
+                    .replace("\\", "\\\\")
+                    .replace("\"", "\\\"")
+                    .replace("\n", "\\n")).append('"');
+        }
+        return sb.toString();
+    }
+
+    private StringBuilder family(String name, String help, String type) {
+        return families.computeIfAbsent(name, n -> new StringBuilder()
+                .append("# HELP ").append(n).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(n).append(' ').append(type).append('\n'));
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == (long) value) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static long[] millis(long... values) {
+        long[] nanos = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            nanos[i] = values[i] * 1_000_000;
+        }
+        return nanos;
+    }
+
+}
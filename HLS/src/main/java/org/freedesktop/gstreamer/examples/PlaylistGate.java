@@ -0,0 +1,155 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.freedesktop.gstreamer.Gst;
+
+/**
+ * Holds playlist requests that arrive before the first playlist has been
+ * written, instead of failing them and having every client poll until it
+ * exists.
+ * <p>
+ * A held request does not block a server thread. When the gate is opened all
+ * held requests are released at once and passed on to the wrapped handler.
+ * Requests held for longer than the timeout receive a 503 status with a
+ * Retry-After header. Once open, requests are passed straight through.
+ */
+class PlaylistGate {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final CompletableFuture<Void> ready;
+    private final long timeout;
+
+    /**
+     * Create a PlaylistGate.
+     *
+     * @param timeout maximum time to hold a request in nanoseconds
+     */
+    PlaylistGate(long timeout) {
+        this(new CompletableFuture<>(), timeout);
+    }
+
+    private PlaylistGate(CompletableFuture<Void> ready, long timeout) {
+        this.ready = ready;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Create a gate that opens once all the given gates are open, eg. for a
+     * master playlist.
+     *
+     * @param gates gates to wait for
+     * @param timeout maximum time to hold a request in nanoseconds
+     * @return gate
+     */
+    static PlaylistGate all(List<PlaylistGate> gates, long timeout) {
+        return new PlaylistGate(CompletableFuture.allOf(gates.stream()
+                .map(gate -> gate.ready)
+                .toArray(CompletableFuture[]::new)), timeout);
+    }
+
+    /**
+     * Open the gate, releasing all held requests. Has no effect if already
+     * open.
+     */
+    void open() {
+        ready.complete(null);
+    }
+
+    /**
+     * Whether the gate is open.
+     *
+     * @return true if open
+     */
+    boolean isOpen() {
+        return ready.isDone();
+    }
+
+    /**
+     * Wrap a playlist handler so that requests are held until the gate is
+     * open.
+     *
+     * @param handler playlist handler
+     * @return wrapped handler
+     */
+    Handler wrap(Handler handler) {
+        return ctx -> {
+            if (ready.isDone()) {
+                handler.handle(ctx);
+            } else {
+                hold(ctx, handler);
+            }
+        };
+    }
+
+    private void hold(Context ctx, Handler handler) {
+        CompletableFuture<InputStream> result = new CompletableFuture<>();
+        ctx.result(result);
+        ScheduledFuture<?> expiry = Gst.getExecutor().schedule(
+                () -> release(ctx, result, null), timeout, TimeUnit.NANOSECONDS);
+        ready.thenRun(() -> {
+            expiry.cancel(false);
+            release(ctx, result, handler);
+        });
+    }
+
+    /**
+     * Complete a held request, either by passing it on to the handler, or
+     * with a 503 status if handler is null. Synchronized on the result so that
+     * only one of release and expiry ever touches the context.
+     */
+    private static void release(Context ctx, CompletableFuture<InputStream> result,
+            Handler handler) {
+        synchronized (result) {
+            if (result.isDone()) {
+                return;
+            }
+            if (handler == null) {
+                ctx.status(503);
+                ctx.header("Retry-After", "1");
+                result.complete(new ByteArrayInputStream(EMPTY));
+                return;
+            }
+            try {
+                handler.handle(ctx);
+            } catch (Exception ex) {
+                result.completeExceptionally(ex);
+                return;
+            }
+            CompletableFuture<?> next = ctx.resultFuture();
+            if (next != null && next != result) {
+                // the handler is itself holding the request, eg. a blocking
+                // playlist reload
+                next.whenComplete((value, ex) -> {
+                    if (ex != null) {
+                        result.completeExceptionally(ex);
+                    } else {
+                        result.complete((InputStream) value);
+                    }
+                });
+            } else {
+                InputStream stream = ctx.resultStream();
+                result.complete(stream != null ? stream : new ByteArrayInputStream(EMPTY));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,548 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+import org.freedesktop.gstreamer.Bin;
+import org.freedesktop.gstreamer.Bus;
+import org.freedesktop.gstreamer.ClockTime;
+import org.freedesktop.gstreamer.Element;
+import org.freedesktop.gstreamer.Gst;
+import org.freedesktop.gstreamer.Pipeline;
+import org.freedesktop.gstreamer.Structure;
+import org.freedesktop.gstreamer.elements.AppSink;
+
+/**
+ * A rendition of a channel - the encoder branch of the pipeline, and the
+ * hlssink2 configuration for serving its playlist and segments.
+ * <p>
+ * In low latency mode each hlssink2 fragment is a part. The internal
+ * splitmuxsink is configured directly, as the hlssink2 target-duration is
+ * in whole seconds. The hlssink2 playlist is not used.
+ */
+class Rendition {
+
+    final String name;
+    final int width;
+    final int height;
+    final int bitrate;
+    final PlaylistGate gate;
+    final EncoderStats encoder;
+    private final Histogram segmentLatency;
+    private final Histogram segmentSizes;
+
+    private SegmentStore store;
+    private CmafPackager packager;
+    private LowLatencyPlaylist llPlaylist;
+    private HttpCache.FileCache diskPlaylist;
+    private Path dir;
+    private Handler playlist;
+    private DvrArchive dvr;
+    private long fragmentStart;
+    private long cmafBase;
+    private PlaylistGate resumeGate;
+    private int resumeSkip;
+    private SegmentController segmenter;
+
+    private Rendition(String name, int width, int height, int bitrate) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.bitrate = bitrate;
+        gate = new PlaylistGate(HLS.READY_TIMEOUT);
+        encoder = new EncoderStats();
+        segmentLatency = new Histogram();
+        segmentSizes = new Histogram();
+        fragmentStart = ClockTime.NONE;
+        cmafBase = ClockTime.NONE;
+    }
+
+    /**
+     * Parse a comma separated list of heights into renditions with a 16:9
+     * aspect ratio, largest first. Bitrates are 0.1 bits per pixel. An
+     * empty list gives a single rendition at the default size and bitrate.
+     */
+    static List<Rendition> parse(String heights) {
+        List<Rendition> renditions = new ArrayList<>();
+        for (String h : heights.split(",")) {
+            if (h.trim().isEmpty()) {
+                continue;
+            }
+            int height = Integer.parseInt(h.trim());
+            int width = (height * 16 / 9 + 1) & ~1;
+            renditions.add(new Rendition(height + "p", width, height,
+                    width * height * HLS.FPS / 10_000));
+        }
+        if (renditions.isEmpty()) {
+            renditions.add(new Rendition(null, HLS.WIDTH, HLS.HEIGHT, 0));
+        }
+        renditions.sort((r1, r2) -> r2.height - r1.height);
+        return renditions;
+    }
+
+    /**
+     * Generate a master playlist for the renditions, with the given
+     * variant playlist uri in each rendition path. BANDWIDTH allows for
+     * peaks and transport stream overhead above the encoder bitrate.
+     */
+    static byte[] master(List<Rendition> renditions, boolean lowLatency,
+            String uri) {
+        StringBuilder sb = new StringBuilder("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:").append(lowLatency ? 6 : 3).append('\n');
+        for (Rendition rendition : renditions) {
+            sb.append("#EXT-X-STREAM-INF:BANDWIDTH=")
+                    .append(rendition.bitrate * 1100)
+                    .append(",RESOLUTION=").append(rendition.width)
+                    .append('x').append(rendition.height).append('\n')
+                    .append(rendition.name).append('/').append(uri).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    String sinkName() {
+        return name == null ? "sink" : "sink" + name;
+    }
+
+    String encoderName() {
+        return name == null ? "encoder" : "encoder" + name;
+    }
+
+    String queueName() {
+        return name == null ? "queue" : "queue" + name;
+    }
+
+    /**
+     * The in-memory segment store, or null if segments are written to disk.
+     */
+    SegmentStore getStore() {
+        return store;
+    }
+
+    /**
+     * The CMAF packager, or null if not in CMAF mode.
+     */
+    CmafPackager getPackager() {
+        return packager;
+    }
+
+    /**
+     * The DVR archive, or null if not enabled.
+     */
+    DvrArchive getDvr() {
+        return dvr;
+    }
+
+    /**
+     * The segment controller, or null until configured.
+     */
+    SegmentController getSegmenter() {
+        return segmenter;
+    }
+
+    /**
+     * The pipeline description from (raw video) scaling to the hlssink2,
+     * or to the mp4mux and appsink in CMAF mode.
+     */
+    String branch(boolean lowLatency) {
+        return (name == null ? ""
+                : "videoscale ! video/x-raw, width=" + width
+                + ", height=" + height + " ! ")
+                + "x264enc name=" + encoderName()
+                + (bitrate > 0 ? " bitrate=" + bitrate : "")
+                + (lowLatency
+                        ? " tune=zerolatency key-int-max=" + HLS.LL_PART_FRAMES
+                        : " key-int-max="
+                        + (HLS.CMAF ? HLS.CMAF_SEGMENT_FRAMES : HLS.SEGMENT * HLS.FPS))
+                + " ! video/x-h264, profile=baseline ! "
+                + (HLS.CMAF
+                        ? "h264parse ! mp4mux streamable=true fragment-duration="
+                        + (HLS.CMAF_SEGMENT_FRAMES * 1000 / HLS.FPS)
+                        + " ! appsink name=" + sinkName()
+                        : "hlssink2 name=" + sinkName());
+    }
+
+    /**
+     * The total number of bytes received from the muxer, or -1 if not
+     * known (files written to disk).
+     */
+    long receivedBytes() {
+        if (packager != null) {
+            return packager.getReceivedBytes();
+        } else if (store != null) {
+            return store.getReceivedBytes();
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Configure the hlssink2 to write to memory if root is null, or to the
+     * (channel) root or rendition sub-directory otherwise. The playlist
+     * gate is opened on the first fragment closed message from this sink.
+     * In CMAF mode, configure the appsink to pass the muxer output to a
+     * CmafPackager, and open the gate on the first segment. Keyframes are
+     * forced at every segment (or part) boundary.
+     */
+    void configure(Element encoderElement, Element sink, Bus bus, Path root,
+            boolean lowLatency, LongUnaryOperator captureTime) throws IOException {
+        long period = lowLatency ? ClockTime.fromSeconds(1) * HLS.LL_PART_FRAMES / HLS.FPS
+                : HLS.CMAF ? ClockTime.fromSeconds(1) * HLS.CMAF_SEGMENT_FRAMES / HLS.FPS
+                : ClockTime.fromSeconds(HLS.SEGMENT);
+        segmenter = new SegmentController(encoderElement, period,
+                ClockTime.fromSeconds(1) / HLS.FPS);
+        encoder.setListener(segmenter::keyframe);
+        if (HLS.CMAF) {
+            store = new SegmentStore();
+            packager = new CmafPackager(store, "segment%05d.m4s", HLS.FPS, HLS.CMAF_WINDOW);
+            packager.setListener((fragment, time, duration) -> {
+                gate.open();
+                long start = cmafKeyframe();
+                segmentAvailable(start, store.get(fragment).length);
+                segmenter.segment(start, duration);
+                DvrArchive archive = dvr;
+                if (archive != null) {
+                    if (archive.needsInit()) {
+                        archive.setInit(store.get(CmafPackager.INIT));
+                    }
+                    archive.append(store.get(fragment), ClockTime.NONE, duration);
+                }
+            });
+            packager.attach((AppSink) sink);
+            playlist = gate.wrap(ctx -> store.serve(ctx, CmafPackager.PLAYLIST));
+            return;
+        }
+        if (root != null) {
+            dir = name == null ? root : Files.createDirectory(root.resolve(name));
+            Path file = dir.resolve("playlist.m3u8");
+            sink.set("target-duration", HLS.SEGMENT);
+            sink.set("playlist-location", file.toString());
+            sink.set("location", dir.resolve("segment%05d.ts").toString());
+            diskPlaylist = new HttpCache.FileCache(file);
+            playlist = gate.wrap(ctx -> {
+                HttpCache.Entry entry = diskPlaylist.get();
+                if (entry == null) {
+                    ctx.status(404);
+                } else {
+                    HttpCache.serve(ctx, entry,
+                            HttpCache.PLAYLIST_TYPE, HttpCache.PLAYLIST_CACHE);
+                }
+            });
+        } else {
+            configureMemory(sink, bus, lowLatency, captureTime);
+        }
+        // the playlist is rewritten before each fragment closed message,
+        // and bus listeners are called in order, so any store has already
+        // harvested it
+        bus.connect("element", (b, message) -> {
+            Structure s = message.getStructure();
+            if (s == null || !SegmentStore.isFrom(message.getSource(), sink)) {
+                return;
+            }
+            if (s.hasName("splitmuxsink-fragment-opened")) {
+                fragmentStart = SegmentStore.runningTime(s);
+            } else if (s.hasName("splitmuxsink-fragment-closed")) {
+                if (diskPlaylist != null) {
+                    diskPlaylist.invalidate();
+                }
+                gate.open();
+                segmentAvailable(fragmentStart, fragmentSize(s.getString("location")));
+                long end = SegmentStore.runningTime(s);
+                segmenter.segment(fragmentStart,
+                        ClockTime.isValid(fragmentStart) && ClockTime.isValid(end)
+                        ? end - fragmentStart : ClockTime.NONE);
+            }
+        });
+    }
+
+    private void configureMemory(Element sink, Bus bus, boolean lowLatency,
+            LongUnaryOperator captureTime) {
+        store = new SegmentStore();
+        store.attach(sink, bus);
+        if (lowLatency) {
+            long partDuration = ClockTime.fromSeconds(1) * HLS.LL_PART_FRAMES / HLS.FPS;
+            llPlaylist = new LowLatencyPlaylist(store, "part%05d.ts",
+                    "segment%05d.ts", partDuration, HLS.LL_PARTS, HLS.LL_WINDOW, captureTime);
+            store.setListener(llPlaylist);
+            sink.set("playlist-location", "parts.m3u8");
+            sink.set("location", "part%05d.ts");
+            sink.set("target-duration", 1);
+            sink.set("max-files", (HLS.LL_WINDOW + 2) * HLS.LL_PARTS);
+            for (Element child : ((Bin) sink).getElements()) {
+                if ("splitmuxsink".equals(child.getFactory().getName())) {
+                    child.set("max-size-time", partDuration);
+                }
+            }
+            playlist = gate.wrap(llPlaylist::servePlaylist);
+        } else {
+            sink.set("target-duration", HLS.SEGMENT);
+            sink.set("playlist-location", "playlist.m3u8");
+            sink.set("location", "segment%05d.ts");
+            playlist = gate.wrap(ctx -> store.serve(ctx, "playlist.m3u8"));
+        }
+    }
+
+    /**
+     * Keep every segment in a DVR archive in the given directory. MPEG-TS
+     * fragments are archived (read from memory or disk) on the fragment
+     * closed message, with the running time of the fragment opened
+     * message. CMAF segments are archived by the packager listener. Must
+     * be called after configure().
+     */
+    void archive(Element sink, Bus bus, Path dir) throws IOException {
+        dvr = new DvrArchive(dir, HLS.CMAF ? ".m4s" : ".ts",
+                (long) (HLS.DVR_HOURS * TimeUnit.HOURS.toMillis(1)));
+        if (HLS.CMAF) {
+            return;
+        }
+        bus.connect("element", (b, message) -> {
+            Structure s = message.getStructure();
+            if (s == null || !s.hasField("location")
+                    || !SegmentStore.isFrom(message.getSource(), sink)) {
+                return;
+            }
+            // fragmentStart is tracked by the listener added in configure()
+            if (s.hasName("splitmuxsink-fragment-closed")) {
+                String location = s.getString("location");
+                long end = SegmentStore.runningTime(s);
+                long duration = fragmentStart != ClockTime.NONE && end != ClockTime.NONE
+                        ? end - fragmentStart
+                        : ClockTime.fromSeconds((Integer) sink.get("target-duration"));
+                try {
+                    byte[] data = store != null
+                            ? store.get(Paths.get(location).getFileName().toString())
+                            : Files.readAllBytes(Paths.get(location));
+                    if (data != null) {
+                        dvr.append(data, fragmentStart, duration);
+                    }
+                } catch (IOException ex) {
+                    System.out.println("DVR archive error : " + ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * A gate that opens on the first segment with new content after the
+     * pipeline resumes. For MPEG-TS the fragment open while paused is
+     * closed first, by the split on resume, and the first new segment is
+     * ended early (see endResumeSegment). The gate is opened anyway after
+     * one segment period, serving the playlist as it is, so requests are
+     * never held for much more than a target duration.
+     */
+    synchronized PlaylistGate awaitResume() {
+        PlaylistGate gate = new PlaylistGate(HLS.READY_TIMEOUT);
+        resumeGate = gate;
+        resumeSkip = HLS.CMAF ? 0 : 1;
+        Gst.getExecutor().schedule(gate::open, segmenter.getPeriod(),
+                TimeUnit.NANOSECONDS);
+        return gate;
+    }
+
+    /**
+     * If still waiting for the first new segment after resuming, and it
+     * would otherwise run to the next boundary of a longer segment
+     * period, end it now. Only MPEG-TS from hlssink2 can be split on
+     * demand - CMAF fragments and low latency parts are already short.
+     */
+    void endResumeSegment(Pipeline pipeline) {
+        synchronized (this) {
+            if (resumeGate == null || resumeSkip > 0) {
+                return;
+            }
+        }
+        if (packager == null && segmenter.getPeriod() > HLS.RESUME_SEGMENT) {
+            split(pipeline);
+        }
+    }
+
+    /**
+     * Mark a discontinuity before the next segment, end the open segment,
+     * and request a keyframe so that the next segment starts immediately -
+     * eg. after the pipeline resumes, or the input is switched.
+     */
+    void discontinuity(Pipeline pipeline) {
+        if (packager != null) {
+            packager.markDiscontinuity();
+        } else if (store != null) {
+            store.markDiscontinuity();
+        }
+        split(pipeline);
+    }
+
+    /**
+     * End the open segment on the next keyframe, and request one now.
+     */
+    private void split(Pipeline pipeline) {
+        if (packager == null) {
+            for (Element child : ((Bin) pipeline.getElementByName(sinkName()))
+                    .getElements()) {
+                if ("splitmuxsink".equals(child.getFactory().getName())) {
+                    child.emit("split-now");
+                }
+            }
+        }
+        segmenter.forceNow();
+    }
+
+    /**
+     * Record a segment becoming available - its size, and the time since
+     * the keyframe starting it left the encoder - and open any resume
+     * gate.
+     */
+    private void segmentAvailable(long keyframe, long bytes) {
+        synchronized (this) {
+            if (resumeGate != null && resumeSkip-- <= 0) {
+                resumeGate.open();
+                resumeGate = null;
+            }
+        }
+        long time = encoder.findKeyframe(keyframe);
+        if (time > 0) {
+            segmentLatency.record(System.nanoTime() - time);
+        }
+        if (bytes >= 0) {
+            segmentSizes.record(bytes);
+        }
+    }
+
+    /**
+     * The timestamp of the keyframe starting the latest CMAF segment. The
+     * segment decode times start from the first keyframe.
+     */
+    private long cmafKeyframe() {
+        List<CmafPackager.Segment> segments = packager.getSegments();
+        CmafPackager.Segment segment = segments.get(segments.size() - 1);
+        long time = segment.time * ClockTime.fromSeconds(1) / packager.getTimescale();
+        if (cmafBase == ClockTime.NONE) {
+            long first = encoder.getFirstKeyframe();
+            if (first == ClockTime.NONE) {
+                return ClockTime.NONE;
+            }
+            cmafBase = first - time;
+        }
+        return cmafBase + time;
+    }
+
+    /**
+     * The size of a fragment in memory or on disk, or -1 if not known.
+     */
+    private long fragmentSize(String location) {
+        if (location == null) {
+            return -1;
+        }
+        try {
+            if (store != null) {
+                byte[] data = store.get(Paths.get(location).getFileName().toString());
+                return data == null ? -1 : data.length;
+            } else {
+                return Files.size(Paths.get(location));
+            }
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Add the metrics of this rendition to a scrape - encoder frame
+     * counts, queue fill, segment sizes and latency, and muxed bytes.
+     */
+    void collect(Metrics metrics, String channel, Element queue) {
+        String labels = Metrics.labels("channel", channel,
+                "rendition", name == null ? height + "p" : name);
+        metrics.counter("hls_encoder_input_frames_total",
+                "Frames into the encoder.", labels, encoder.getInput());
+        metrics.counter("hls_encoder_output_frames_total",
+                "Frames out of the encoder.", labels, encoder.getOutput());
+        metrics.counter("hls_encoder_keyframes_total",
+                "Keyframes out of the encoder.", labels, encoder.getKeyframes());
+        metrics.counter("hls_encoder_output_bytes_total",
+                "Bytes out of the encoder.", labels, encoder.getBytes());
+        metrics.gauge("hls_encoder_bitrate_bits",
+                "Encoder target bitrate in bits per second.", labels,
+                (bitrate > 0 ? bitrate : HLS.DEFAULT_BITRATE) * 1000.0);
+        if (queue != null) {
+            metrics.gauge("hls_queue_level_buffers",
+                    "Buffers in the encoder queue.", labels,
+                    ((Number) queue.get("current-level-buffers")).doubleValue());
+            metrics.gauge("hls_queue_max_buffers",
+                    "Capacity of the encoder queue in buffers.", labels,
+                    ((Number) queue.get("max-size-buffers")).doubleValue());
+        }
+        metrics.histogram("hls_segment_available_seconds",
+                "Time from the keyframe leaving the encoder to the segment"
+                + " starting with it being available.",
+                labels, segmentLatency, Metrics.SEGMENT_BUCKETS, 1e9);
+        metrics.histogram("hls_segment_bytes", "Segment sizes.",
+                labels, segmentSizes, Metrics.SIZE_BUCKETS, 1);
+        metrics.gauge("hls_segment_target_seconds",
+                "Scheduled segment (or part) duration.", labels,
+                segmenter.getPeriod() / 1e9);
+        metrics.counter("hls_segments_total",
+                "Segments verified against the schedule.", labels,
+                segmenter.getSegments());
+        metrics.counter("hls_segment_misaligned_total",
+                "Segments not starting within a frame of a scheduled boundary.",
+                labels, segmenter.getMisaligned());
+        metrics.histogram("hls_segment_duration_jitter_seconds",
+                "Difference between segment duration and the scheduled duration.",
+                labels, segmenter.getJitter(), Metrics.JITTER_BUCKETS, 1e9);
+        long bytes = receivedBytes();
+        if (bytes >= 0) {
+            metrics.counter("hls_muxed_bytes_total",
+                    "Bytes out of the muxer.", labels, bytes);
+        }
+    }
+
+    /**
+     * Serve the playlist or a segment, from memory or disk, or from the
+     * DVR archive. Playlist requests are held by the gate until the first
+     * playlist is written.
+     */
+    void serve(Context ctx, String file) throws Exception {
+        if ("playlist.m3u8".equals(file)) {
+            playlist.handle(ctx);
+        } else if (dvr != null && DvrArchive.PLAYLIST.equals(file)) {
+            dvr.servePlaylist(ctx);
+        } else if (dvr != null && file.startsWith(DvrArchive.PREFIX)) {
+            dvr.serveSegment(ctx, file.substring(DvrArchive.PREFIX.length()));
+        } else if (llPlaylist != null) {
+            llPlaylist.serveMedia(ctx, file);
+        } else if (store != null) {
+            store.serve(ctx, file);
+        } else if (file.endsWith(".ts") && file.indexOf('/') < 0
+                && !file.startsWith(".")) {
+            try {
+                InputStream in = Files.newInputStream(dir.resolve(file));
+                ctx.header("Cache-Control", HttpCache.SEGMENT_CACHE);
+                ctx.contentType(HttpCache.SEGMENT_TYPE);
+                ctx.result(in);
+            } catch (NoSuchFileException ex) {
+                ctx.status(404);
+            }
+        } else {
+            ctx.status(404);
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import io.javalin.http.Context;
+import io.javalin.http.RequestLogger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.eclipse.jetty.server.Request;
+
+/**
+ * HTTP serving metrics - request counts by kind (playlist, segment or other)
+ * and status class, latency histograms, and bytes served. Use as the Javalin
+ * request logger, which is called once the response is written, including
+ * for held (async) requests.
+ * <p>
+ * Latency is measured by Javalin from the start of the request, so includes
+ * any time a playlist request is held by a PlaylistGate or a blocking
+ * playlist reload.
+ */
+class RequestMetrics implements RequestLogger {
+
+    private static final String[] KINDS = {"playlist", "segment", "other"};
+    private static final int PLAYLIST = 0;
+    private static final int SEGMENT = 1;
+    private static final int OTHER = 2;
+    private static final int STATUS_CLASSES = 6;
+
+    private final Histogram[] latency;
+    private final LongAdder[] bytes;
+    private final AtomicLongArray requests;
+
+    RequestMetrics() {
+        latency = new Histogram[KINDS.length];
+        bytes = new LongAdder[KINDS.length];
+        for (int i = 0; i < KINDS.length; i++) {
+            latency[i] = new Histogram();
+            bytes[i] = new LongAdder();
+        }
+        requests = new AtomicLongArray(KINDS.length * STATUS_CLASSES);
+    }
+
+    @Override
+    public void handle(Context ctx, Float executionTimeMs) {
+        int kind = kind(ctx.path());
+        int status = Math.min(STATUS_CLASSES - 1, Math.max(0, ctx.status() / 100));
+        requests.incrementAndGet(kind * STATUS_CLASSES + status);
+        latency[kind].record((long) (executionTimeMs * 1_000_000));
+        Request base = Request.getBaseRequest(ctx.req);
+        if (base != null) {
+            bytes[kind].add(base.getResponse().getHttpOutput().getWritten());
+        }
+    }
+
+    /**
+     * Add the request metrics to a scrape.
+     *
+     * @param metrics metrics to add to
+     */
+    void collect(Metrics metrics) {
+        for (int i = 0; i < KINDS.length; i++) {
+            for (int status = 1; status < STATUS_CLASSES; status++) {
+                long count = requests.get(i * STATUS_CLASSES + status);
+                if (count > 0) {
+                    metrics.counter("hls_http_requests_total",
+                            "HTTP requests by kind and status class.",
+                            Metrics.labels("kind", KINDS[i], "code", status + "xx"),
+                            count);
+                }
+            }
+        }
+        for (int i = 0; i < KINDS.length; i++) {
+            metrics.histogram("hls_http_request_duration_seconds",
+                    "HTTP request latency, including time held.",
+                    Metrics.labels("kind", KINDS[i]), latency[i],
+                    Metrics.REQUEST_BUCKETS, 1e9);
+        }
+        for (int i = 0; i < KINDS.length; i++) {
+            metrics.counter("hls_http_response_bytes_total",
+                    "HTTP response body bytes served.",
+                    Metrics.labels("kind", KINDS[i]), bytes[i].sum());
+        }
+    }
+
+    private static int kind(String path) {
+        if (path.endsWith(".m3u8") || path.endsWith(".mpd")) {
+            return PLAYLIST;
+        } else if (path.endsWith(".ts") || path.endsWith(".m4s")
+                || path.endsWith(".mp4")) {
+            return SEGMENT;
+        } else {
+            return OTHER;
+        }
+    }
+
+}
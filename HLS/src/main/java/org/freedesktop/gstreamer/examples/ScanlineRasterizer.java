@@ -0,0 +1,205 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.awt.Rectangle;
+import java.awt.geom.PathIterator;
+
+/**
+ * Fills and outlines a Curve without antialiasing directly into an ARGB
+ * layer.
+ * <p>
+ * Java2D allocates a span iterator every time it fills or strokes a shape
+ * without antialiasing, so the cheaper, aliased Renderer quality levels would
+ * allocate on every frame. Instead, the curve is flattened into a polygon of
+ * line segments, filled a scanline at a time using the non-zero winding rule
+ * with every pixel taken from a repeating tile, and outlined with one pixel
+ * wide lines. All working arrays are allocated up front. A rasterizer must
+ * only be used by one thread at a time.
+ */
+class ScanlineRasterizer {
+
+    private static final int SEGMENTS_PER_QUAD = 16;
+
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] crossings;
+    private final int[] windings;
+    private final double[] coords;
+
+    private int count;
+
+    /**
+     * Create a ScanlineRasterizer.
+     *
+     * @param points number of points of the curves it will rasterize (see
+     * Curve)
+     */
+    ScanlineRasterizer(int points) {
+        int vertices = (points - 1) / 2 * SEGMENTS_PER_QUAD + 1;
+        xs = new double[vertices];
+        ys = new double[vertices];
+        crossings = new double[vertices];
+        windings = new int[vertices];
+        coords = new double[6];
+    }
+
+    /**
+     * Flatten the closed path of a curve into the polygon to rasterize.
+     *
+     * @param path path iterator of the curve
+     */
+    void flatten(PathIterator path) {
+        count = 0;
+        for (; !path.isDone(); path.next()) {
+            switch (path.currentSegment(coords)) {
+                case PathIterator.SEG_MOVETO:
+                    count = 0;
+                    add(coords[0], coords[1]);
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    double x0 = xs[count - 1];
+                    double y0 = ys[count - 1];
+                    for (int i = 1; i <= SEGMENTS_PER_QUAD; i++) {
+                        double t = (double) i / SEGMENTS_PER_QUAD;
+                        double a = (1 - t) * (1 - t);
+                        double b = 2 * (1 - t) * t;
+                        double c = t * t;
+                        add(a * x0 + b * coords[0] + c * coords[2],
+                                a * y0 + b * coords[1] + c * coords[3]);
+                    }
+                    break;
+                default:
+                    // closed implicitly
+            }
+        }
+    }
+
+    /**
+     * Fill the polygon within the region of the layer, each pixel taken
+     * from the tile at the same position modulo the tile size.
+     *
+     * @param layer ARGB layer pixels
+     * @param width layer width
+     * @param region region to fill within
+     * @param tile square tile of ARGB pixels
+     * @param tileSize tile width and height
+     */
+    void fill(int[] layer, int width, Rectangle region, int[] tile, int tileSize) {
+        int minX = region.x;
+        int maxX = region.x + region.width;
+        for (int y = region.y; y < region.y + region.height; y++) {
+            int n = crossings(y + 0.5);
+            int offset = y * width;
+            int tileOffset = (y % tileSize) * tileSize;
+            int winding = 0;
+            for (int k = 0; k < n - 1; k++) {
+                winding += windings[k];
+                if (winding == 0) {
+                    continue;
+                }
+                // pixels with centres in [crossings[k], crossings[k + 1])
+                int x0 = Math.max(minX, (int) Math.ceil(crossings[k] - 0.5));
+                int x1 = Math.min(maxX, (int) Math.ceil(crossings[k + 1] - 0.5));
+                for (int x = x0; x < x1; x++) {
+                    layer[offset + x] = tile[tileOffset + x % tileSize];
+                }
+            }
+        }
+    }
+
+    /**
+     * Outline the polygon within the region of the layer with one pixel wide
+     * lines.
+     *
+     * @param layer ARGB layer pixels
+     * @param width layer width
+     * @param region region to draw within
+     * @param argb line colour
+     */
+    void draw(int[] layer, int width, Rectangle region, int argb) {
+        for (int i = 0; i < count; i++) {
+            int j = i + 1 == count ? 0 : i + 1;
+            line(layer, width, region, argb,
+                    (int) Math.round(xs[i]), (int) Math.round(ys[i]),
+                    (int) Math.round(xs[j]), (int) Math.round(ys[j]));
+        }
+    }
+
+    private void add(double x, double y) {
+        xs[count] = x;
+        ys[count] = y;
+        count++;
+    }
+
+    /**
+     * Find the x positions and directions of the polygon edges crossing the
+     * horizontal line at y, sorted by x.
+     */
+    private int crossings(double y) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int j = i + 1 == count ? 0 : i + 1;
+            double y0 = ys[i];
+            double y1 = ys[j];
+            int direction;
+            if (y0 <= y && y1 > y) {
+                direction = 1;
+            } else if (y1 <= y && y0 > y) {
+                direction = -1;
+            } else {
+                continue;
+            }
+            double x = xs[i] + (y - y0) * (xs[j] - xs[i]) / (y1 - y0);
+            // insertion sort
+            int k = n++;
+            while (k > 0 && crossings[k - 1] > x) {
+                crossings[k] = crossings[k - 1];
+                windings[k] = windings[k - 1];
+                k--;
+            }
+            crossings[k] = x;
+            windings[k] = direction;
+        }
+        return n;
+    }
+
+    /**
+     * Draw a Bresenham line, skipping pixels outside the region.
+     */
+    private static void line(int[] layer, int width, Rectangle region, int argb,
+            int x0, int y0, int x1, int y1) {
+        int dx = Math.abs(x1 - x0);
+        int dy = -Math.abs(y1 - y0);
+        int sx = x0 < x1 ? 1 : -1;
+        int sy = y0 < y1 ? 1 : -1;
+        int error = dx + dy;
+        while (true) {
+            if (region.contains(x0, y0)) {
+                layer[y0 * width + x0] = argb;
+            }
+            if (x0 == x1 && y0 == y1) {
+                return;
+            }
+            int e2 = 2 * error;
+            if (e2 >= dy) {
+                error += dy;
+                x0 += sx;
+            }
+            if (e2 <= dx) {
+                error += dx;
+                y0 += sy;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.freedesktop.gstreamer.ClockTime;
+import org.freedesktop.gstreamer.Element;
+import org.freedesktop.gstreamer.Gst;
+import org.freedesktop.gstreamer.Structure;
+import org.freedesktop.gstreamer.event.Event;
+import org.freedesktop.gstreamer.event.EventType;
+import org.freedesktop.gstreamer.lowlevel.GstEventAPI;
+
+/**
+ * Keeps segment boundaries on a fixed schedule of running time - every
+ * multiple of the segment period - rather than wherever the encoder happens
+ * to produce keyframes, so segment durations do not drift.
+ * <p>
+ * Each time a keyframe leaves the encoder (see EncoderStats), a keyframe is
+ * requested at the next boundary with an upstream GstForceKeyUnit event
+ * carrying its running time. The encoder produces a keyframe on the first
+ * frame at or after that time, and the muxer or splitmuxsink cuts the
+ * segment there. Nothing is done per frame.
+ * <p>
+ * Complete segments are verified against the schedule. A segment is counted
+ * as misaligned if it does not start within the tolerance (one frame) of a
+ * boundary, and the difference between its duration and the period is
+ * recorded as jitter.
+ */
+class SegmentController {
+
+    private final Element encoder;
+    private final long period;
+    private final long tolerance;
+    private final Histogram jitter;
+    private final AtomicLong segments;
+    private final AtomicLong misaligned;
+
+    private long requested;
+
+    /**
+     * Create a SegmentController.
+     *
+     * @param encoder encoder element
+     * @param period segment duration in nanoseconds
+     * @param tolerance allowed boundary error in nanoseconds, eg. one frame
+     */
+    SegmentController(Element encoder, long period, long tolerance) {
+        this.encoder = encoder;
+        this.period = period;
+        this.tolerance = tolerance;
+        jitter = new Histogram();
+        segments = new AtomicLong();
+        misaligned = new AtomicLong();
+        requested = -1;
+    }
+
+    /**
+     * A keyframe has left the encoder. Request one at the next boundary, if
+     * not already requested. The event is sent on the GStreamer executor
+     * rather than the streaming thread.
+     *
+     * @param timestamp keyframe timestamp (running time)
+     */
+    void keyframe(long timestamp) {
+        if (!ClockTime.isValid(timestamp)) {
+            return;
+        }
+        long next = (timestamp / period + 1) * period;
+        synchronized (this) {
+            if (next <= requested) {
+                return;
+            }
+            requested = next;
+        }
+        Gst.invokeLater(() -> forceKeyUnit(encoder, next));
+    }
+
+    /**
+     * Request a keyframe as soon as possible, eg. on resume. The schedule
+     * continues from the following boundary.
+     */
+    void forceNow() {
+        forceKeyUnit(encoder, ClockTime.NONE);
+    }
+
+    /**
+     * Verify a complete segment against the schedule.
+     *
+     * @param start segment start running time, or ClockTime.NONE if not known
+     * @param duration segment duration in nanoseconds, or ClockTime.NONE if
+     * not known
+     */
+    void segment(long start, long duration) {
+        segments.incrementAndGet();
+        if (ClockTime.isValid(start)) {
+            long offset = start % period;
+            if (Math.min(offset, period - offset) > tolerance) {
+                misaligned.incrementAndGet();
+            }
+        }
+        if (ClockTime.isValid(duration) && duration > 0) {
+            jitter.record(Math.abs(duration - period));
+        }
+    }
+
+    /**
+     * The segment period in nanoseconds.
+     */
+    long getPeriod() {
+        return period;
+    }
+
+    /**
+     * The difference between each segment duration and the period.
+     */
+    Histogram getJitter() {
+        return jitter;
+    }
+
+    /**
+     * The number of segments verified.
+     */
+    long getSegments() {
+        return segments.get();
+    }
+
+    /**
+     * The number of segments not starting on a boundary.
+     */
+    long getMisaligned() {
+        return misaligned.get();
+    }
+
+    /**
+     * Format a summary of segment count, misaligned count and jitter.
+     */
+    String report() {
+        return String.format("%d segments, %d misaligned, jitter %s",
+                getSegments(), getMisaligned(), jitter.summary());
+    }
+
+    /**
+     * Request a keyframe at the given running time, or as soon as possible
+     * if ClockTime.NONE, with an upstream GstForceKeyUnit event sent to the
+     * encoder source pad.
+     */
+    private static void forceKeyUnit(Element encoder, long runningTime) {
+        Structure s = Structure.fromString("GstForceKeyUnit, all-headers=(boolean)true"
+                + (ClockTime.isValid(runningTime)
+                ? ", running-time=(guint64)" + runningTime : ""));
+        Event event = GstEventAPI.GSTEVENT_API.gst_event_new_custom(
+                EventType.CUSTOM_UPSTREAM, s);
+        encoder.getStaticPad("src").sendEvent(event);
+    }
+
+}
@@ -0,0 +1,441 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Library;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import io.javalin.http.Context;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.freedesktop.gstreamer.Bus;
+import org.freedesktop.gstreamer.ClockTime;
+import org.freedesktop.gstreamer.Element;
+import org.freedesktop.gstreamer.GstObject;
+import org.freedesktop.gstreamer.Structure;
+import org.freedesktop.gstreamer.lowlevel.GNative;
+
+/**
+ * Keeps the playlist and segments written by an hlssink2 element in memory,
+ * and serves them over HTTP, without writing anything to disk.
+ * <p>
+ * The hlssink2 get-playlist-stream and get-fragment-stream signals (GStreamer
+ * 1.18+) are used to provide a GIO memory output stream for each file. Once a
+ * fragment is complete (signalled by the splitmuxsink-fragment-closed element
+ * message) its data, and that of the playlist updated for it, is copied into a
+ * Java byte array and the native stream released. Only complete files are ever
+ * served.
+ * <p>
+ * Segments are evicted when hlssink2 would delete the file (the
+ * delete-fragment signal), so the store follows the sink's playlist window
+ * and max-files properties.
+ * <p>
+ * A Listener can be notified of each complete fragment and its timing, eg.
+ * to build a different playlist from them (see LowLatencyPlaylist).
+ * <p>
+ * A discontinuity can be marked before the next fragment, eg. when the
+ * pipeline resumes after being paused. The hlssink2 playlist has no support
+ * for this, so the EXT-X-DISCONTINUITY and EXT-X-DISCONTINUITY-SEQUENCE tags
+ * are added to the playlist as it is harvested.
+ */
+class SegmentStore {
+
+    /**
+     * Notified when a fragment is complete and available in the store.
+     */
+    @FunctionalInterface
+    interface Listener {
+
+        /**
+         * A fragment has been added to the store.
+         *
+         * @param name fragment file name
+         * @param start running time of the start of the fragment in
+         * nanoseconds, or ClockTime.NONE if unknown
+         * @param duration fragment duration in nanoseconds, or
+         * ClockTime.NONE if unknown
+         */
+        void fragmentAdded(String name, long start, long duration);
+
+    }
+
+    private static final GIO GIO_API = GNative.loadLibrary("gio-2.0",
+            GIO.class, Collections.emptyMap());
+    private static final GObject GOBJECT_API = GNative.loadLibrary("gobject-2.0",
+            GObject.class, Collections.emptyMap());
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Map<String, HttpCache.Entry> files;
+    private final Map<String, Pointer> pending;
+    private final Map<String, Long> startTimes;
+    private final StreamCallback fragmentCallback;
+    private final StreamCallback playlistCallback;
+    private final DeleteCallback deleteCallback;
+    private final LongAdder received;
+    private final Map<String, Boolean> discontinuities;
+
+    private String playlistName;
+    private Pointer pendingPlaylist;
+    private volatile Listener listener;
+    private boolean discontinuityPending;
+    private int discontinuitySequence;
+
+    SegmentStore() {
+        files = new ConcurrentHashMap<>();
+        pending = new HashMap<>();
+        startTimes = new HashMap<>();
+        fragmentCallback = (element, location, data) -> openFragment(location);
+        playlistCallback = (element, location, data) -> openPlaylist(location);
+        deleteCallback = (element, location, data) -> {
+            delete(location);
+            return true;
+        };
+        received = new LongAdder();
+        discontinuities = new HashMap<>();
+    }
+
+    /**
+     * Connect to the signals of the hlssink2 element, and to the pipeline bus
+     * for fragment closed messages.
+     *
+     * @param sink hlssink2 element
+     * @param bus pipeline bus
+     */
+    void attach(Element sink, Bus bus) {
+        sink.connect("get-fragment-stream", StreamCallback.class,
+                fragmentCallback, fragmentCallback);
+        sink.connect("get-playlist-stream", StreamCallback.class,
+                playlistCallback, playlistCallback);
+        sink.connect("delete-fragment", DeleteCallback.class,
+                deleteCallback, deleteCallback);
+        bus.connect("element", (b, message) -> {
+            Structure s = message.getStructure();
+            if (s == null || !s.hasField("location")
+                    || !isFrom(message.getSource(), sink)) {
+                return;
+            }
+            if (s.hasName("splitmuxsink-fragment-opened")) {
+                fragmentOpened(s.getString("location"), runningTime(s));
+            } else if (s.hasName("splitmuxsink-fragment-closed")) {
+                fragmentClosed(s.getString("location"), runningTime(s));
+            }
+        });
+        bus.connect((Bus.EOS) source -> harvestPlaylist());
+    }
+
+    /**
+     * Serve the named playlist or segment, or set a 404 status if it is not
+     * available. The playlist is served with a short cache lifetime, and
+     * segments as immutable (see HttpCache).
+     *
+     * @param ctx request context
+     * @param name file name
+     */
+    void serve(Context ctx, String name) {
+        HttpCache.Entry entry = files.get(name);
+        if (entry == null) {
+            ctx.status(404);
+        } else {
+            HttpCache.serve(ctx, entry, HttpCache.contentType(name),
+                    name.endsWith(".m3u8") ? HttpCache.PLAYLIST_CACHE
+                            : HttpCache.SEGMENT_CACHE);
+        }
+    }
+
+    /**
+     * Set the listener to be notified of complete fragments.
+     *
+     * @param listener fragment listener
+     */
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Mark a discontinuity before the next fragment opened.
+     */
+    synchronized void markDiscontinuity() {
+        discontinuityPending = true;
+    }
+
+    /**
+     * Get the data of the named file, or null if not available.
+     *
+     * @param name file name
+     * @return data or null
+     */
+    byte[] get(String name) {
+        HttpCache.Entry entry = files.get(name);
+        return entry == null ? null : entry.data;
+    }
+
+    /**
+     * Add a file to the store, eg. a segment combined from fragments.
+     *
+     * @param name file name
+     * @param data file data
+     */
+    void put(String name, byte[] data) {
+        files.put(name, new HttpCache.Entry(data));
+    }
+
+    /**
+     * Remove a file from the store.
+     *
+     * @param name file name
+     */
+    void remove(String name) {
+        files.remove(name);
+    }
+
+    /**
+     * The total number of fragment bytes received from the sink.
+     */
+    long getReceivedBytes() {
+        return received.sum();
+    }
+
+    /**
+     * The total size in bytes of the files currently held.
+     */
+    long getSize() {
+        long size = 0;
+        for (HttpCache.Entry entry : files.values()) {
+            size += entry.data.length;
+        }
+        return size;
+    }
+
+    /**
+     * Number of files (playlist and segments) currently held.
+     */
+    int getCount() {
+        return files.size();
+    }
+
+    /**
+     * Whether a message source is the given element or one of its children,
+     * eg. the splitmuxsink inside an hlssink2. Fragment messages must be
+     * filtered by source when there are multiple sinks, as the file names
+     * may be the same for each.
+     *
+     * @param source message source
+     * @param element element
+     * @return true if source is element or a descendant
+     */
+    static boolean isFrom(GstObject source, Element element) {
+        for (GstObject obj = source; obj != null; obj = obj.getParent()) {
+            if (obj.equals(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized Pointer openFragment(String location) {
+        Pointer stream = GIO_API.g_memory_output_stream_new_resizable();
+        // keep a reference - the returned one is owned by the sink
+        GOBJECT_API.g_object_ref(stream);
+        Pointer previous = pending.put(nameOf(location), stream);
+        if (previous != null) {
+            GOBJECT_API.g_object_unref(previous);
+        }
+        return stream;
+    }
+
+    private synchronized Pointer openPlaylist(String location) {
+        // harvest the last playlist now if the closed message has not
+        if (pendingPlaylist != null) {
+            harvestPlaylist();
+            if (pendingPlaylist != null) {
+                GOBJECT_API.g_object_unref(pendingPlaylist);
+            }
+        }
+        playlistName = nameOf(location);
+        pendingPlaylist = GIO_API.g_memory_output_stream_new_resizable();
+        GOBJECT_API.g_object_ref(pendingPlaylist);
+        return pendingPlaylist;
+    }
+
+    private synchronized void fragmentOpened(String location, long runningTime) {
+        startTimes.put(nameOf(location), runningTime);
+        if (discontinuityPending) {
+            discontinuities.put(nameOf(location), false);
+            discontinuityPending = false;
+        }
+    }
+
+    private void fragmentClosed(String location, long runningTime) {
+        String name = nameOf(location);
+        boolean added = false;
+        long startTime = ClockTime.NONE;
+        long duration = ClockTime.NONE;
+        synchronized (this) {
+            Pointer stream = pending.remove(name);
+            if (stream != null) {
+                byte[] data = release(stream);
+                received.add(data.length);
+                files.put(name, new HttpCache.Entry(data));
+                added = true;
+            }
+            Long start = startTimes.remove(name);
+            if (start != null) {
+                startTime = start;
+            }
+            if (ClockTime.isValid(startTime) && ClockTime.isValid(runningTime)) {
+                duration = runningTime - startTime;
+            }
+            harvestPlaylist();
+        }
+        Listener l = listener;
+        if (added && l != null) {
+            l.fragmentAdded(name, startTime, duration);
+        }
+    }
+
+    private synchronized void harvestPlaylist() {
+        if (pendingPlaylist == null
+                || GIO_API.g_memory_output_stream_get_data_size(pendingPlaylist)
+                        .longValue() == 0) {
+            return;
+        }
+        byte[] data = release(pendingPlaylist);
+        if (!discontinuities.isEmpty() || discontinuitySequence > 0) {
+            data = addDiscontinuities(data);
+        }
+        files.put(playlistName, new HttpCache.Entry(data));
+        pendingPlaylist = null;
+    }
+
+    /**
+     * Add discontinuity tags to the playlist. The discontinuity sequence is
+     * incremented as each marked fragment leaves the playlist.
+     */
+    private byte[] addDiscontinuities(byte[] playlist) {
+        String[] lines = new String(playlist, StandardCharsets.UTF_8).split("\n");
+        Set<String> uris = new HashSet<>(Arrays.asList(lines));
+        for (Iterator<Map.Entry<String, Boolean>> itr
+                = discontinuities.entrySet().iterator(); itr.hasNext();) {
+            Map.Entry<String, Boolean> entry = itr.next();
+            if (uris.contains(entry.getKey())) {
+                entry.setValue(true);
+            } else if (entry.getValue()) {
+                itr.remove();
+                discontinuitySequence++;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            // the tag goes before the EXTINF of the marked segment uri
+            if (line.startsWith("#EXTINF") && i + 1 < lines.length
+                    && discontinuities.containsKey(lines[i + 1])) {
+                sb.append("#EXT-X-DISCONTINUITY\n");
+            }
+            sb.append(line).append('\n');
+            if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:") && discontinuitySequence > 0) {
+                sb.append("#EXT-X-DISCONTINUITY-SEQUENCE:")
+                        .append(discontinuitySequence).append('\n');
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private synchronized void delete(String location) {
+        String name = nameOf(location);
+        files.remove(name);
+        startTimes.remove(name);
+        // never listed, eg. deleted while the playlist was not harvested
+        discontinuities.remove(name, false);
+        Pointer stream = pending.remove(name);
+        if (stream != null) {
+            GOBJECT_API.g_object_unref(stream);
+        }
+    }
+
+    /**
+     * Copy the data out of the memory stream and release our reference.
+     */
+    private static byte[] release(Pointer stream) {
+        long size = GIO_API.g_memory_output_stream_get_data_size(stream).longValue();
+        byte[] data = size == 0 ? EMPTY
+                : GIO_API.g_memory_output_stream_get_data(stream)
+                        .getByteArray(0, (int) size);
+        GOBJECT_API.g_object_unref(stream);
+        return data;
+    }
+
+    /**
+     * The running-time field of a splitmuxsink fragment message, or
+     * ClockTime.NONE.
+     *
+     * @param s message structure
+     * @return running time
+     */
+    static long runningTime(Structure s) {
+        Object value = s.hasField("running-time") ? s.getValue("running-time") : null;
+        return value instanceof Number ? ((Number) value).longValue() : ClockTime.NONE;
+    }
+
+    private static String nameOf(String location) {
+        int idx = Math.max(location.lastIndexOf('/'), location.lastIndexOf('\\'));
+        return location.substring(idx + 1);
+    }
+
+    /**
+     * Signature of the get-fragment-stream and get-playlist-stream signals.
+     */
+    public static interface StreamCallback extends Callback {
+
+        Pointer callback(Pointer element, String location, Pointer userData);
+
+    }
+
+    /**
+     * Signature of the delete-fragment signal. The signal returns a gboolean
+     * with a true handled accumulator - returning true stops hlssink2 also
+     * trying to delete the (non-existent) file itself.
+     */
+    public static interface DeleteCallback extends Callback {
+
+        boolean callback(Pointer element, String location, Pointer userData);
+
+    }
+
+    private static interface GIO extends Library {
+
+        Pointer g_memory_output_stream_new_resizable();
+
+        Pointer g_memory_output_stream_get_data(Pointer stream);
+
+        NativeLong g_memory_output_stream_get_data_size(Pointer stream);
+
+    }
+
+    private static interface GObject extends Library {
+
+        Pointer g_object_ref(Pointer object);
+
+        void g_object_unref(Pointer object);
+
+    }
+
+}
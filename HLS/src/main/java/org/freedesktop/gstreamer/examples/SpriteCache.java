@@ -0,0 +1,242 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A cache of pre-rasterized, premultiplied ARGB sprites for mostly static
+ * overlays (logos, channel bugs, lower thirds, etc.) so that they can be
+ * blitted on to frames without being rendered with Java2D every time.
+ * <p>
+ * Sprites are keyed by overlay content and size. The least recently used
+ * sprites are evicted when the total size of cached sprites exceeds the memory
+ * budget. Hit, miss and eviction counts are available to help size the budget.
+ * <p>
+ * Keys should be kept and reused by the caller while the content is unchanged,
+ * so that a cache hit does not allocate.
+ * <p>
+ * A cache may be shared by threads. Sprites are rasterized outside the cache
+ * lock, so a miss does not hold up hits on other threads. Only one thread
+ * rasterizes each key - any other thread getting the same key waits for that
+ * sprite. Sprites needed by a streaming thread should be got once beforehand
+ * so that they are not rasterized while streaming.
+ */
+class SpriteCache {
+
+    /**
+     * Rasterizes overlay content into a cleared sprite of the given size.
+     */
+    @FunctionalInterface
+    interface Rasterizer {
+
+        void paint(Graphics2D g2d, Object content, int width, int height);
+
+    }
+
+    /**
+     * Cache key of overlay content and size. The content must have a suitable
+     * equals and hashCode implementation, and should be immutable.
+     */
+    static final class Key {
+
+        private final Object content;
+        private final int width;
+        private final int height;
+
+        Key(Object content, int width, int height) {
+            this.content = Objects.requireNonNull(content);
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public int hashCode() {
+            return (content.hashCode() * 31 + width) * 31 + height;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return width == other.width && height == other.height
+                    && content.equals(other.content);
+        }
+
+        @Override
+        public String toString() {
+            return content + " (" + width + "x" + height + ")";
+        }
+
+    }
+
+    /**
+     * A rasterized sprite.
+     */
+    static final class Sprite {
+
+        final int width;
+        final int height;
+        final int[] data;
+
+        private Sprite(int width, int height, int[] data) {
+            this.width = width;
+            this.height = height;
+            this.data = data;
+        }
+
+        private long bytes() {
+            return data.length * 4L;
+        }
+
+    }
+
+    private final long budget;
+    private final LinkedHashMap<Key, Sprite> sprites;
+    private final Map<Key, CompletableFuture<Sprite>> pending;
+
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create a SpriteCache.
+     *
+     * @param budget maximum total size of cached sprites in bytes
+     */
+    SpriteCache(long budget) {
+        this.budget = budget;
+        this.sprites = new LinkedHashMap<>(16, 0.75f, true);
+        this.pending = new HashMap<>();
+    }
+
+    /**
+     * Get the sprite for the key, rasterizing and caching it if necessary.
+     * Sprites larger than the whole budget are returned but not cached.
+     *
+     * @param key content and size
+     * @param rasterizer used to rasterize the sprite on a cache miss
+     * @return sprite
+     */
+    Sprite get(Key key, Rasterizer rasterizer) {
+        CompletableFuture<Sprite> rasterizing;
+        CompletableFuture<Sprite> future = null;
+        synchronized (this) {
+            Sprite sprite = sprites.get(key);
+            if (sprite != null) {
+                hits++;
+                return sprite;
+            }
+            misses++;
+            rasterizing = pending.get(key);
+            if (rasterizing == null) {
+                future = new CompletableFuture<>();
+                pending.put(key, future);
+            }
+        }
+        if (rasterizing != null) {
+            // another thread is rasterizing the same key
+            return rasterizing.join();
+        }
+        Sprite sprite;
+        try {
+            sprite = rasterize(key, rasterizer);
+        } catch (RuntimeException | Error ex) {
+            synchronized (this) {
+                pending.remove(key);
+            }
+            future.completeExceptionally(ex);
+            throw ex;
+        }
+        synchronized (this) {
+            pending.remove(key);
+            if (sprite.bytes() <= budget) {
+                sprites.put(key, sprite);
+                size += sprite.bytes();
+                evict();
+            }
+        }
+        future.complete(sprite);
+        return sprite;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return total size of cached sprites in bytes
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of cached sprites
+     */
+    synchronized int getCount() {
+        return sprites.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SpriteCache : " + sprites.size() + " sprites, " + (size / 1024)
+                + "KB of " + (budget / 1024) + "KB, hits " + hits + ", misses "
+                + misses + ", evictions " + evictions;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, Sprite>> itr = sprites.entrySet().iterator();
+        while (size > budget && itr.hasNext()) {
+            Sprite sprite = itr.next().getValue();
+            itr.remove();
+            size -= sprite.bytes();
+            evictions++;
+        }
+    }
+
+    private static Sprite rasterize(Key key, Rasterizer rasterizer) {
+        BufferedImage image = new BufferedImage(key.width, key.height,
+                BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g2d = image.createGraphics();
+        try {
+            rasterizer.paint(g2d, key.content, key.width, key.height);
+        } finally {
+            g2d.dispose();
+        }
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        return new Sprite(key.width, key.height, data);
+    }
+
+}
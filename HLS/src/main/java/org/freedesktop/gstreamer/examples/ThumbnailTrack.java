@@ -0,0 +1,281 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import io.javalin.http.Context;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import javax.imageio.ImageIO;
+import org.freedesktop.gstreamer.Buffer;
+import org.freedesktop.gstreamer.ClockTime;
+import org.freedesktop.gstreamer.FlowReturn;
+import org.freedesktop.gstreamer.Sample;
+import org.freedesktop.gstreamer.elements.AppSink;
+
+/**
+ * Thumbnails of a live channel for scrubbing - JPEG sprite sheets, and a
+ * WebVTT track whose cues reference a region of a sheet with a
+ * #xywh=x,y,w,h fragment, served from memory next to the playlist.
+ * <p>
+ * Thumbnails are taken from the raw frames already decoded and overlaid for
+ * the encoders, on a tee branch (see branch()) that drops to one frame per
+ * interval before scaling, so only the frames kept are scaled and converted.
+ * A leaky queue at the start of the branch runs it on its own thread, so
+ * packing and JPEG encoding never hold up the encoders.
+ * <p>
+ * Each thumbnail is copied into the current sheet, which is encoded again so
+ * that the newest thumbnail is available straight away. Complete sheets
+ * never change, and are kept until older than the retained number of sheets.
+ * Cue times are the stream running time, the same timeline as the segment
+ * timestamps and the DVR archive running time ranges.
+ */
+class ThumbnailTrack {
+
+    static final String TRACK = "thumbnails.vtt";
+
+    private static final String SHEET_PREFIX = "thumbnails";
+    private static final String SHEET_EXTENSION = ".jpg";
+    private static final String SHEET_TYPE = "image/jpeg";
+    private static final String TRACK_TYPE = "text/vtt";
+
+    private final int width;
+    private final int height;
+    private final long interval;
+    private final int columns;
+    private final int perSheet;
+    private final int retain;
+    private final BufferedImage sheet;
+    private final int[] sheetData;
+    private final int[] row;
+    private final HttpCache.Entry[] sheets;
+    private final long[] times;
+    private final Histogram encodeTimes;
+    private final LongAdder sheetBytes;
+
+    private long count;
+    private HttpCache.Entry track;
+
+    /**
+     * Create a ThumbnailTrack.
+     *
+     * @param width thumbnail width
+     * @param height thumbnail height
+     * @param interval time between thumbnails in nanoseconds
+     * @param columns thumbnails per sheet row
+     * @param rows thumbnail rows per sheet
+     * @param retain number of sheets to keep, including the current sheet
+     */
+    ThumbnailTrack(int width, int height, long interval, int columns, int rows, int retain) {
+        this.width = width;
+        this.height = height;
+        this.interval = interval;
+        this.columns = columns;
+        this.perSheet = columns * rows;
+        this.retain = retain;
+        sheet = new BufferedImage(width * columns, height * rows, BufferedImage.TYPE_INT_RGB);
+        sheetData = ((DataBufferInt) sheet.getRaster().getDataBuffer()).getData();
+        row = new int[width];
+        sheets = new HttpCache.Entry[retain];
+        times = new long[retain * perSheet];
+        encodeTimes = new Histogram();
+        sheetBytes = new LongAdder();
+        track = new HttpCache.Entry(render());
+    }
+
+    /**
+     * The tee branch description for a thumbnail track, from the raw frames
+     * to the named AppSink.
+     *
+     * @param sinkName name of the AppSink
+     * @param width thumbnail width
+     * @param height thumbnail height
+     * @param seconds time between thumbnails in whole seconds
+     * @return branch description
+     */
+    static String branch(String sinkName, int width, int height, int seconds) {
+        return "queue leaky=downstream max-size-buffers=1 max-size-bytes=0 max-size-time=0 ! "
+                + "videorate drop-only=true ! video/x-raw, framerate=1/" + seconds + " ! "
+                + "videoscale ! videoconvert ! video/x-raw, width=" + width
+                + ", height=" + height + ", pixel-aspect-ratio=1/1, "
+                + (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
+                ? "format=BGRx" : "format=xRGB")
+                + " ! appsink name=" + sinkName;
+    }
+
+    /**
+     * Receive the thumbnail frames from the AppSink.
+     *
+     * @param sink app sink
+     */
+    void attach(AppSink sink) {
+        sink.set("emit-signals", true);
+        sink.set("sync", false);
+        sink.set("max-buffers", 1);
+        sink.set("drop", true);
+        sink.connect((AppSink.NEW_SAMPLE) elem -> {
+            Sample sample = elem.pullSample();
+            Buffer buffer = sample.getBuffer();
+            ByteBuffer bytes = buffer.map(false);
+            if (bytes != null) {
+                try {
+                    add(bytes.asIntBuffer(), buffer.getPresentationTimestamp());
+                } catch (IOException ex) {
+                    System.out.println("Thumbnail error : " + ex);
+                }
+                buffer.unmap();
+            }
+            sample.dispose();
+            return FlowReturn.OK;
+        });
+    }
+
+    /**
+     * Serve the WebVTT track or a sprite sheet.
+     *
+     * @param ctx request context
+     * @param file file name
+     * @return true if the file is a thumbnail file, served or 404
+     */
+    boolean serve(Context ctx, String file) {
+        if (TRACK.equals(file)) {
+            HttpCache.Entry entry;
+            synchronized (this) {
+                entry = track;
+            }
+            HttpCache.serve(ctx, entry, TRACK_TYPE, HttpCache.PLAYLIST_CACHE);
+            return true;
+        }
+        if (!file.startsWith(SHEET_PREFIX) || !file.endsWith(SHEET_EXTENSION)) {
+            return false;
+        }
+        long index;
+        try {
+            index = Long.parseLong(file.substring(SHEET_PREFIX.length(),
+                    file.length() - SHEET_EXTENSION.length()));
+        } catch (NumberFormatException ex) {
+            ctx.status(404);
+            return true;
+        }
+        HttpCache.Entry entry;
+        boolean complete;
+        synchronized (this) {
+            long current = count == 0 ? -1 : (count - 1) / perSheet;
+            if (index < 0 || index > current || index <= current - retain) {
+                ctx.status(404);
+                return true;
+            }
+            entry = sheets[(int) (index % retain)];
+            complete = index < current;
+        }
+        HttpCache.serve(ctx, entry, SHEET_TYPE,
+                complete ? HttpCache.SEGMENT_CACHE : HttpCache.PLAYLIST_CACHE);
+        return true;
+    }
+
+    /**
+     * The number of thumbnails taken.
+     */
+    synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * The time to pack each thumbnail and encode its sheet.
+     */
+    Histogram getEncodeTimes() {
+        return encodeTimes;
+    }
+
+    /**
+     * Estimate of the heap used by the current sheet image and the encoded
+     * sheets.
+     */
+    long getMemory() {
+        return sheetData.length * 4L + sheetBytes.sum();
+    }
+
+    /**
+     * Copy a thumbnail into the current sheet, encode the sheet and update
+     * the track. Called on the thumbnail branch thread only.
+     */
+    private void add(IntBuffer pixels, long timestamp) throws IOException {
+        long start = System.nanoTime();
+        long n;
+        synchronized (this) {
+            n = count;
+        }
+        int cell = (int) (n % perSheet);
+        if (cell == 0) {
+            // new sheet - clear cells left from the previous one
+            Arrays.fill(sheetData, 0);
+        }
+        int x = (cell % columns) * width;
+        int y = (cell / columns) * height;
+        int stride = pixels.remaining() / height;
+        for (int line = 0; line < height; line++) {
+            pixels.position(line * stride);
+            pixels.get(row, 0, width);
+            System.arraycopy(row, 0, sheetData, (y + line) * sheet.getWidth() + x, width);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(sheet, "jpg", out);
+        HttpCache.Entry entry = new HttpCache.Entry(out.toByteArray());
+        synchronized (this) {
+            int slot = (int) ((n / perSheet) % retain);
+            HttpCache.Entry previous = sheets[slot];
+            sheets[slot] = entry;
+            sheetBytes.add(entry.data.length - (previous == null ? 0 : previous.data.length));
+            times[(int) (n % times.length)] = ClockTime.isValid(timestamp) ? timestamp
+                    : n > 0 ? times[(int) ((n - 1) % times.length)] + interval : 0;
+            count = n + 1;
+            track = new HttpCache.Entry(render());
+        }
+        encodeTimes.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Render the WebVTT track for the retained thumbnails. Each cue lasts
+     * until the next thumbnail, or the interval for the newest.
+     */
+    private byte[] render() {
+        StringBuilder sb = new StringBuilder("WEBVTT\n");
+        long current = (count - 1) / perSheet;
+        long first = Math.max(0, (current - retain + 1) * perSheet);
+        for (long n = first; n < count; n++) {
+            long start = times[(int) (n % times.length)];
+            long end = n + 1 < count ? times[(int) ((n + 1) % times.length)]
+                    : start + interval;
+            int cell = (int) (n % perSheet);
+            sb.append('\n').append(timestamp(start)).append(" --> ")
+                    .append(timestamp(end)).append('\n')
+                    .append(String.format("%s%05d%s#xywh=%d,%d,%d,%d\n", SHEET_PREFIX,
+                            n / perSheet, SHEET_EXTENSION, (cell % columns) * width,
+                            (cell / columns) * height, width, height));
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String timestamp(long time) {
+        long millis = time / 1_000_000;
+        return String.format("%02d:%02d:%02d.%03d", millis / 3_600_000,
+                (millis / 60_000) % 60, (millis / 1000) % 60, millis % 1000);
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the active viewers of a channel from its live playlist requests. A
+ * player polls the live playlist at least once per target duration, so a
+ * client (address and user agent) is active until no playlist has been
+ * requested by it for the idle time.
+ */
+class ViewerTracker {
+
+    private final long idleTime;
+    private final Map<String, Long> clients;
+
+    private volatile long lastSeen;
+
+    /**
+     * Create a ViewerTracker. The channel counts as viewed at creation.
+     *
+     * @param idleTime time without playlist requests after which a client is
+     * no longer active, in nanoseconds
+     */
+    ViewerTracker(long idleTime) {
+        this.idleTime = idleTime;
+        clients = new ConcurrentHashMap<>();
+        lastSeen = System.nanoTime();
+    }
+
+    /**
+     * Record a playlist request.
+     *
+     * @param client client identifier, eg. address and user agent
+     */
+    void touch(String client) {
+        long now = System.nanoTime();
+        clients.put(client, now);
+        lastSeen = now;
+    }
+
+    /**
+     * Whether no playlist has been requested for the idle time.
+     *
+     * @return true if idle
+     */
+    boolean isIdle() {
+        return System.nanoTime() - lastSeen > idleTime;
+    }
+
+    /**
+     * The number of active clients. Inactive clients are removed.
+     *
+     * @return active clients
+     */
+    int getViewers() {
+        long now = System.nanoTime();
+        clients.values().removeIf(seen -> now - seen > idleTime);
+        return clients.size();
+    }
+
+}
@@ -0,0 +1,601 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import com.sun.jna.Library;
+import com.sun.jna.Pointer;
+import io.javalin.http.Context;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.freedesktop.gstreamer.Buffer;
+import org.freedesktop.gstreamer.Bus;
+import org.freedesktop.gstreamer.ClockTime;
+import org.freedesktop.gstreamer.FlowReturn;
+import org.freedesktop.gstreamer.Format;
+import org.freedesktop.gstreamer.Gst;
+import org.freedesktop.gstreamer.Pipeline;
+import org.freedesktop.gstreamer.Sample;
+import org.freedesktop.gstreamer.State;
+import org.freedesktop.gstreamer.elements.AppSink;
+import org.freedesktop.gstreamer.event.SeekFlags;
+import org.freedesktop.gstreamer.event.SeekType;
+import org.freedesktop.gstreamer.glib.Natives;
+import org.freedesktop.gstreamer.lowlevel.GNative;
+
+/**
+ * Serves a library of local MP4 files as VOD HLS, packaging each segment
+ * only when it is first requested.
+ * <p>
+ * The playlist of a file is generated from a keyframe scan - the demuxer is
+ * seeked to every segment duration with KEY_UNIT and SNAP_AFTER flags, and
+ * the timestamp of the keyframe prerolled read. This only reads the sample
+ * index and one frame per segment, not the whole file. Each segment runs from
+ * one of these keyframes to the next.
+ * <p>
+ * A segment is produced by a short pipeline seeked to its start and stop
+ * times. H.264 video is remuxed to MPEG-TS, anything else transcoded. The
+ * timestamps of every segment continue from the previous one, so the
+ * segments play as a single stream. Only the video track is packaged.
+ * <p>
+ * Produced segments are kept in a DiskCache. Pipelines run on a small pool
+ * of worker threads, requested segments ahead of prefetches. Concurrent
+ * requests for a segment share a single pipeline. Every segment request also
+ * prefetches the following few segments if not cached, so playback does not
+ * wait on a pipeline for each segment.
+ * <p>
+ * Files are served at /vod/{file}/playlist.m3u8 and
+ * /vod/{file}/segment{index}.ts. A file that is modified is scanned again.
+ */
+class VodPackager {
+
+    static final String PLAYLIST = "playlist.m3u8";
+
+    private static final GstApi GST_API = GNative.loadLibrary("gstreamer-1.0",
+            GstApi.class, Collections.emptyMap());
+    private static final String SEGMENT_PREFIX = "segment";
+    private static final String SEGMENT_EXTENSION = ".ts";
+    private static final long TIMEOUT = ClockTime.fromSeconds(60);
+    private static final int REQUEST = 0;
+    private static final int PREFETCH = 1;
+
+    private static final String SCAN
+            = "filesrc name=src ! qtdemux name=demux demux.video_0 ! appsink name=sink sync=false";
+    private static final String REMUX
+            = "filesrc name=src ! qtdemux name=demux demux.video_0 ! "
+            + "h264parse name=parse config-interval=-1 ! mpegtsmux ! appsink name=sink";
+    private static final String TRANSCODE
+            = "filesrc name=src ! qtdemux name=demux demux.video_0 ! decodebin ! "
+            + "videoconvert ! x264enc speed-preset=veryfast ! video/x-h264, profile=baseline ! "
+            + "h264parse name=parse config-interval=-1 ! mpegtsmux ! appsink name=sink";
+
+    private final Path library;
+    private final DiskCache cache;
+    private final long target;
+    private final int prefetch;
+    private final ThreadPoolExecutor workers;
+    private final Map<String, CompletableFuture<Source>> sources;
+    private final Map<String, Task> tasks;
+    private final AtomicLong sequence;
+    private final Histogram produceTimes;
+    private final LongAdder prefetches;
+    private final LongAdder failures;
+
+    /**
+     * Create a VodPackager.
+     *
+     * @param library directory of MP4 files
+     * @param cache cache for produced segments
+     * @param target target segment duration in nanoseconds
+     * @param prefetch number of segments to prefetch ahead of a request
+     * @param threads number of worker threads running pipelines
+     */
+    VodPackager(Path library, DiskCache cache, long target, int prefetch, int threads) {
+        this.library = library.toAbsolutePath().normalize();
+        this.cache = cache;
+        this.target = target;
+        this.prefetch = prefetch;
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "VodPackager");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        sources = new ConcurrentHashMap<>();
+        tasks = new ConcurrentHashMap<>();
+        sequence = new AtomicLong();
+        produceTimes = new Histogram();
+        prefetches = new LongAdder();
+        failures = new LongAdder();
+    }
+
+    /**
+     * List the playable files in the library.
+     *
+     * @return file names
+     * @throws IOException on error reading the library directory
+     */
+    List<String> list() throws IOException {
+        try (Stream<Path> files = Files.list(library)) {
+            return files.filter(Files::isRegularFile)
+                    .map(path -> path.getFileName().toString())
+                    .filter(VodPackager::isPlayable)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Serve the playlist or a segment of a file. The response is completed
+     * asynchronously if the file must be scanned or the segment produced.
+     *
+     * @param ctx request context
+     * @param name file name in the library
+     * @param file playlist or segment file name
+     * @throws IOException on error reading the library or cache
+     */
+    void serve(Context ctx, String name, String file) throws IOException {
+        Path path = library.resolve(name).normalize();
+        if (!isPlayable(name) || !library.equals(path.getParent())
+                || !Files.isRegularFile(path)) {
+            ctx.status(404);
+            return;
+        }
+        CompletableFuture<Source> source = source(name, path);
+        if (PLAYLIST.equals(file)) {
+            ctx.result(source.thenApply(s -> {
+                ctx.header("Cache-Control", HttpCache.REVALIDATE);
+                ctx.contentType(HttpCache.PLAYLIST_TYPE);
+                return new ByteArrayInputStream(s.playlist);
+            }));
+            return;
+        }
+        int index = segmentIndex(file);
+        if (index < 0) {
+            ctx.status(404);
+            return;
+        }
+        Source s = source.getNow(null);
+        if (s == null) {
+            // playlist not yet requested or still scanning
+            ctx.result(source.thenCompose(scanned -> segment(ctx, scanned, index)));
+            return;
+        }
+        byte[] data = index < s.count() ? cache.get(s.key(index)) : null;
+        if (data != null) {
+            prefetch(s, index);
+            ctx.header("Cache-Control", HttpCache.SEGMENT_CACHE);
+            ctx.contentType(HttpCache.SEGMENT_TYPE);
+            ctx.result(data);
+        } else {
+            ctx.result(segment(ctx, s, index));
+        }
+    }
+
+    /**
+     * Add the VOD metrics to a scrape.
+     *
+     * @param metrics metrics to add to
+     */
+    void collect(Metrics metrics) {
+        metrics.gauge("hls_vod_sources", "VOD files scanned.", "", sources.size());
+        metrics.gauge("hls_vod_cache_bytes", "Size of the VOD segment cache.", "",
+                cache.getSize());
+        metrics.gauge("hls_vod_cache_budget_bytes",
+                "Maximum size of the VOD segment cache.", "", cache.getBudget());
+        metrics.counter("hls_vod_cache_hits_total",
+                "VOD segment requests served from the cache.", "", cache.getHits());
+        metrics.counter("hls_vod_cache_misses_total",
+                "VOD segment requests not in the cache.", "", cache.getMisses());
+        metrics.counter("hls_vod_cache_evictions_total",
+                "VOD segments evicted from the cache.", "", cache.getEvictions());
+        metrics.counter("hls_vod_prefetches_total",
+                "VOD segments produced ahead of a request.", "", prefetches.sum());
+        metrics.counter("hls_vod_failures_total",
+                "VOD scans or segments that failed.", "", failures.sum());
+        metrics.gauge("hls_vod_queue_tasks",
+                "VOD pipelines waiting for a worker.", "", workers.getQueue().size());
+        metrics.histogram("hls_vod_pipeline_seconds",
+                "Time to scan a VOD file or produce a segment.", "",
+                produceTimes, Metrics.REQUEST_BUCKETS, 1e9);
+    }
+
+    /**
+     * Stop the worker threads. Running pipelines are left to finish.
+     */
+    void close() {
+        workers.shutdownNow();
+    }
+
+    private CompletableFuture<Source> source(String name, Path path) throws IOException {
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        CompletableFuture<Source> source = sources.compute(name, (n, existing) -> {
+            if (existing != null && !existing.isCompletedExceptionally()
+                    && (!existing.isDone() || existing.join().modified == modified)) {
+                return existing;
+            }
+            CompletableFuture<Source> scan = new CompletableFuture<>();
+            workers.execute(new Job(new Task(() -> {
+                try {
+                    scan.complete(scan(name, path, modified));
+                } catch (Exception ex) {
+                    failures.increment();
+                    System.out.println("VOD scan error " + name + " : " + ex);
+                    scan.completeExceptionally(ex);
+                }
+            }), REQUEST));
+            return scan;
+        });
+        return source;
+    }
+
+    /**
+     * Get the future data of a segment, producing it if not cached, and
+     * prefetch the following segments.
+     */
+    private CompletableFuture<InputStream> segment(Context ctx, Source source, int index) {
+        if (index >= source.count()) {
+            ctx.status(404);
+            return CompletableFuture.completedFuture(new ByteArrayInputStream(new byte[0]));
+        }
+        CompletableFuture<byte[]> data = produce(source, index, REQUEST);
+        prefetch(source, index);
+        return data.thenApply(bytes -> {
+            ctx.header("Cache-Control", HttpCache.SEGMENT_CACHE);
+            ctx.contentType(HttpCache.SEGMENT_TYPE);
+            return new ByteArrayInputStream(bytes);
+        });
+    }
+
+    private void prefetch(Source source, int index) {
+        for (int i = index + 1; i <= index + prefetch && i < source.count(); i++) {
+            if (!cache.contains(source.key(i))) {
+                produce(source, i, PREFETCH);
+            }
+        }
+    }
+
+    /**
+     * Queue a pipeline to produce a segment, or join one already queued or
+     * running. A request for a segment already queued as a prefetch queues it
+     * again ahead of other prefetches - whichever job runs first produces it.
+     */
+    private CompletableFuture<byte[]> produce(Source source, int index, int priority) {
+        String key = source.key(index);
+        Task[] created = new Task[1];
+        Task task = tasks.computeIfAbsent(key, k -> {
+            CompletableFuture<byte[]> result = new CompletableFuture<>();
+            Task t = new Task(result, () -> {
+                try {
+                    byte[] data = cache.get(k);
+                    if (data == null) {
+                        data = segment(source, index);
+                        cache.put(k, data);
+                        if (priority == PREFETCH) {
+                            prefetches.increment();
+                        }
+                    }
+                    result.complete(data);
+                } catch (Exception ex) {
+                    failures.increment();
+                    System.out.println("VOD segment error " + k + " : " + ex);
+                    result.completeExceptionally(ex);
+                } finally {
+                    tasks.remove(k);
+                }
+            });
+            created[0] = t;
+            return t;
+        });
+        if (created[0] != null || (priority == REQUEST && !task.claimed.get())) {
+            workers.execute(new Job(task, priority));
+        }
+        return task.result;
+    }
+
+    private Source scan(String name, Path path, long modified) throws Exception {
+        long start = System.nanoTime();
+        Pipeline pipeline = (Pipeline) Gst.parseLaunch(SCAN);
+        try {
+            pipeline.getElementByName("src").set("location", path.toString());
+            AppSink sink = (AppSink) pipeline.getElementByName("sink");
+            AtomicReference<String> error = new AtomicReference<>();
+            pipeline.getBus().connect((Bus.ERROR) (src, code, message)
+                    -> error.compareAndSet(null, message));
+            pipeline.pause();
+            awaitPreroll(pipeline, error, name);
+            Sample first = sink.pullPreroll();
+            if (first == null) {
+                throw new IOException("No video in " + name);
+            }
+            boolean transcode = !"video/x-h264".equals(
+                    first.getCaps().getStructure(0).getName());
+            first.dispose();
+            long duration = pipeline.queryDuration(Format.TIME);
+            if (duration <= 0) {
+                throw new IOException("Unknown duration of " + name);
+            }
+            long[] keyframes = new long[16];
+            int count = 1;
+            while (true) {
+                long seek = keyframes[count - 1] + target;
+                if (seek >= duration) {
+                    break;
+                }
+                pipeline.seek(1.0, Format.TIME,
+                        EnumSet.of(SeekFlags.FLUSH, SeekFlags.KEY_UNIT, SeekFlags.SNAP_AFTER),
+                        SeekType.SET, seek, SeekType.NONE, -1);
+                awaitPreroll(pipeline, error, name);
+                Sample sample = sink.pullPreroll();
+                if (sample == null) {
+                    break;
+                }
+                long keyframe = sample.getBuffer().getPresentationTimestamp();
+                sample.dispose();
+                // no later keyframe, or too close to the end for a segment
+                if (!ClockTime.isValid(keyframe) || keyframe <= keyframes[count - 1]
+                        || keyframe >= duration - target / 4) {
+                    break;
+                }
+                if (count == keyframes.length) {
+                    keyframes = Arrays.copyOf(keyframes, count * 2);
+                }
+                keyframes[count++] = keyframe;
+            }
+            return new Source(name, modified, transcode,
+                    Arrays.copyOf(keyframes, count), duration);
+        } finally {
+            pipeline.stop();
+            pipeline.dispose();
+            produceTimes.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Wait for the scan pipeline to preroll in PAUSED, after starting or
+     * after a flushing seek, so that pullPreroll() does not block.
+     *
+     * @throws IOException if an error was posted on the bus, or the pipeline
+     * did not reach PAUSED within the timeout
+     */
+    private static void awaitPreroll(Pipeline pipeline, AtomicReference<String> error,
+            String name) throws IOException {
+        State state = pipeline.getState(TIMEOUT);
+        String message = error.get();
+        if (message != null) {
+            throw new IOException("Error scanning " + name + " : " + message);
+        }
+        if (state != State.PAUSED) {
+            throw new IOException("Scanning " + name + " did not preroll, state " + state);
+        }
+    }
+
+    /**
+     * Run a pipeline seeked to the start and stop of a segment, collecting
+     * the muxed output. The output timestamps are offset by the segment
+     * start, so they continue from the previous segment.
+     */
+    private byte[] segment(Source source, int index) throws Exception {
+        long start = System.nanoTime();
+        Pipeline pipeline = (Pipeline) Gst.parseLaunch(source.transcode ? TRANSCODE : REMUX);
+        try {
+            pipeline.getElementByName("src").set("location",
+                    library.resolve(source.name).toString());
+            GST_API.gst_pad_set_offset(Natives.getRawPointer(
+                    pipeline.getElementByName("parse").getStaticPad("src")),
+                    source.start(index));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            AppSink sink = (AppSink) pipeline.getElementByName("sink");
+            sink.set("emit-signals", true);
+            sink.set("sync", false);
+            sink.connect((AppSink.NEW_SAMPLE) elem -> {
+                Sample sample = elem.pullSample();
+                Buffer buffer = sample.getBuffer();
+                ByteBuffer bytes = buffer.map(false);
+                if (bytes != null) {
+                    byte[] data = new byte[bytes.remaining()];
+                    bytes.get(data);
+                    buffer.unmap();
+                    synchronized (out) {
+                        out.write(data, 0, data.length);
+                    }
+                }
+                sample.dispose();
+                return FlowReturn.OK;
+            });
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            pipeline.getBus().connect((Bus.EOS) src -> done.complete(null));
+            pipeline.getBus().connect((Bus.ERROR) (src, code, message)
+                    -> done.completeExceptionally(new IOException(message)));
+            pipeline.pause();
+            pipeline.getState(TIMEOUT);
+            pipeline.seek(1.0, Format.TIME,
+                    EnumSet.of(SeekFlags.FLUSH, SeekFlags.ACCURATE),
+                    SeekType.SET, source.start(index), SeekType.SET, source.end(index));
+            pipeline.play();
+            try {
+                done.get(TIMEOUT, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                throw new IOException("Timeout producing segment " + index
+                        + " of " + source.name);
+            }
+            synchronized (out) {
+                return out.toByteArray();
+            }
+        } finally {
+            pipeline.stop();
+            pipeline.dispose();
+            produceTimes.record(System.nanoTime() - start);
+        }
+    }
+
+    private static boolean isPlayable(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".mp4") || lower.endsWith(".m4v") || lower.endsWith(".mov");
+    }
+
+    private static int segmentIndex(String file) {
+        if (!file.startsWith(SEGMENT_PREFIX) || !file.endsWith(SEGMENT_EXTENSION)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(file.substring(SEGMENT_PREFIX.length(),
+                    file.length() - SEGMENT_EXTENSION.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * A scanned file - the keyframe at the start of each segment, and the
+     * playlist listing them.
+     */
+    private static final class Source {
+
+        private final String name;
+        private final long modified;
+        private final boolean transcode;
+        private final long[] keyframes;
+        private final long duration;
+        private final String prefix;
+        private final byte[] playlist;
+
+        private Source(String name, long modified, boolean transcode,
+                long[] keyframes, long duration) {
+            this.name = name;
+            this.modified = modified;
+            this.transcode = transcode;
+            this.keyframes = keyframes;
+            this.duration = duration;
+            // keys are unique per file version, so a modified file is never
+            // served segments of the previous version
+            prefix = name.replaceAll("[^A-Za-z0-9._-]", "_") + "-"
+                    + Long.toHexString(modified) + "-";
+            double max = 0;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < keyframes.length; i++) {
+                double seconds = (end(i) - start(i)) / 1e9;
+                max = Math.max(max, seconds);
+                sb.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n", seconds));
+                sb.append(String.format("%s%05d%s\n", SEGMENT_PREFIX, i, SEGMENT_EXTENSION));
+            }
+            playlist = ("#EXTM3U\n"
+                    + "#EXT-X-VERSION:3\n"
+                    + "#EXT-X-PLAYLIST-TYPE:VOD\n"
+                    + "#EXT-X-TARGETDURATION:" + (int) Math.ceil(max) + "\n"
+                    + "#EXT-X-MEDIA-SEQUENCE:0\n"
+                    + sb
+                    + "#EXT-X-ENDLIST\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        private int count() {
+            return keyframes.length;
+        }
+
+        private long start(int index) {
+            return keyframes[index];
+        }
+
+        private long end(int index) {
+            return index + 1 < keyframes.length ? keyframes[index + 1] : duration;
+        }
+
+        private String key(int index) {
+            return String.format("%s%05d%s", prefix, index, SEGMENT_EXTENSION);
+        }
+
+    }
+
+    /**
+     * A scan or segment pipeline, run once by whichever of its queued jobs
+     * runs first.
+     */
+    private static final class Task {
+
+        private final CompletableFuture<byte[]> result;
+        private final Runnable work;
+        private final AtomicBoolean claimed;
+
+        private Task(Runnable work) {
+            this(null, work);
+        }
+
+        private Task(CompletableFuture<byte[]> result, Runnable work) {
+            this.result = result;
+            this.work = work;
+            claimed = new AtomicBoolean();
+        }
+
+    }
+
+    /**
+     * A queued task, ordered by priority then order queued.
+     */
+    private final class Job implements Runnable, Comparable<Job> {
+
+        private final Task task;
+        private final int priority;
+        private final long order;
+
+        private Job(Task task, int priority) {
+            this.task = task;
+            this.priority = priority;
+            order = sequence.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            if (task.claimed.compareAndSet(false, true)) {
+                task.work.run();
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            return Long.compare(order, other.order);
+        }
+
+    }
+
+    private static interface GstApi extends Library {
+
+        void gst_pad_set_offset(Pointer pad, long offset);
+
+    }
+
+}
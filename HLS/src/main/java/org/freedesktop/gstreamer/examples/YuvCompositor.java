@@ -0,0 +1,204 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+
+/**
+ * Composites premultiplied ARGB overlay pixels directly on to mapped planar
+ * YUV (I420) or semi-planar (NV12) video buffers, so that an RGB pipeline
+ * format and the colour space conversions to and from it are not required
+ * just to draw with Java2D.
+ * <p>
+ * Overlay pixels are converted using BT.601 limited range coefficients. Luma
+ * is blended per pixel, and chroma per 2x2 block using the average of the
+ * block's (premultiplied) overlay pixels. Plane strides and offsets are the
+ * GStreamer defaults for the format and frame size - buffers with custom
+ * layouts (signalled by GstVideoMeta) are not supported.
+ */
+class YuvCompositor {
+
+    /**
+     * Supported YUV formats.
+     */
+    enum Format {
+        I420, NV12
+    }
+
+    private final Format format;
+    private final int width;
+    private final int height;
+    private final int yStride;
+    private final int uvStride;
+    private final int uOffset;
+    private final int vOffset;
+    private final int uvStep;
+
+    /**
+     * Create a YuvCompositor for the format and frame size.
+     *
+     * @param format YUV format
+     * @param width frame width
+     * @param height frame height
+     */
+    YuvCompositor(Format format, int width, int height) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        yStride = roundUp4(width);
+        int chromaHeight = roundUp2(height) / 2;
+        if (format == Format.I420) {
+            uvStride = roundUp4(roundUp2(width) / 2);
+            uOffset = yStride * roundUp2(height);
+            vOffset = uOffset + uvStride * chromaHeight;
+            uvStep = 1;
+        } else {
+            uvStride = yStride;
+            uOffset = yStride * roundUp2(height);
+            vOffset = uOffset + 1;
+            uvStep = 2;
+        }
+    }
+
+    Format getFormat() {
+        return format;
+    }
+
+    /**
+     * The size in bytes of a frame in the default layout.
+     */
+    int getFrameSize() {
+        return uOffset + (format == Format.I420 ? 2 : 1) * uvStride * (roundUp2(height) / 2);
+    }
+
+    /**
+     * Composite the region of the overlay on to the same region of the frame.
+     * The overlay must be the same width as the frame.
+     *
+     * @param overlay premultiplied ARGB overlay pixels
+     * @param overlayWidth width of overlay (and frame)
+     * @param region region to composite
+     * @param frame mapped frame
+     */
+    void blend(int[] overlay, int overlayWidth, Rectangle region, ByteBuffer frame) {
+        blend(overlay, overlayWidth, region.x, region.y,
+                region.width, region.height, 0, 0, frame);
+    }
+
+    /**
+     * Composite a sprite on to the frame with its top left corner at x, y. The
+     * sprite is clipped to the frame bounds.
+     *
+     * @param sprite premultiplied ARGB sprite pixels
+     * @param spriteWidth sprite width
+     * @param spriteHeight sprite height
+     * @param x frame x position
+     * @param y frame y position
+     * @param frame mapped frame
+     */
+    void blend(int[] sprite, int spriteWidth, int spriteHeight, int x, int y,
+            ByteBuffer frame) {
+        blend(sprite, spriteWidth, 0, 0, spriteWidth, spriteHeight, x, y, frame);
+    }
+
+    /**
+     * Composite the source rectangle sx, sy, w, h of the overlay (with the
+     * given scanline width) on to the frame translated by dx, dy.
+     */
+    private void blend(int[] src, int srcWidth, int sx, int sy, int w, int h,
+            int dx, int dy, ByteBuffer frame) {
+        int x0 = Math.max(0, sx + dx);
+        int y0 = Math.max(0, sy + dy);
+        int x1 = Math.min(width, sx + dx + w);
+        int y1 = Math.min(height, sy + dy + h);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        // luma
+        for (int y = y0; y < y1; y++) {
+            int srcRow = (y - dy) * srcWidth - dx;
+            int dstRow = y * yStride;
+            for (int x = x0; x < x1; x++) {
+                int s = src[srcRow + x];
+                if (s == 0) {
+                    continue;
+                }
+                int a = s >>> 24;
+                int r = (s >> 16) & 0xff;
+                int g = (s >> 8) & 0xff;
+                int b = s & 0xff;
+                int i = dstRow + x;
+                int luma = ((66 * r + 129 * g + 25 * b + 128) >> 8)
+                        + div255(16 * a + (frame.get(i) & 0xff) * (255 - a));
+                frame.put(i, (byte) clamp(luma));
+            }
+        }
+        // chroma, per 2x2 block
+        for (int cy = y0 >> 1; cy < (y1 + 1) >> 1; cy++) {
+            for (int cx = x0 >> 1; cx < (x1 + 1) >> 1; cx++) {
+                int a = 0, r = 0, g = 0, b = 0;
+                for (int y = cy * 2; y < cy * 2 + 2; y++) {
+                    if (y < y0 || y >= y1) {
+                        continue;
+                    }
+                    int srcRow = (y - dy) * srcWidth - dx;
+                    for (int x = cx * 2; x < cx * 2 + 2; x++) {
+                        if (x < x0 || x >= x1) {
+                            continue;
+                        }
+                        int s = src[srcRow + x];
+                        a += s >>> 24;
+                        r += (s >> 16) & 0xff;
+                        g += (s >> 8) & 0xff;
+                        b += s & 0xff;
+                    }
+                }
+                if (a == 0) {
+                    continue;
+                }
+                a = (a + 2) >> 2;
+                r = (r + 2) >> 2;
+                g = (g + 2) >> 2;
+                b = (b + 2) >> 2;
+                int ia = 255 - a;
+                int offset = cy * uvStride + cx * uvStep;
+                int ui = uOffset + offset;
+                int vi = vOffset + offset;
+                int u = ((-38 * r - 74 * g + 112 * b + 128) >> 8)
+                        + div255(128 * a + (frame.get(ui) & 0xff) * ia);
+                int v = ((112 * r - 94 * g - 18 * b + 128) >> 8)
+                        + div255(128 * a + (frame.get(vi) & 0xff) * ia);
+                frame.put(ui, (byte) clamp(u));
+                frame.put(vi, (byte) clamp(v));
+            }
+        }
+    }
+
+    private static int div255(int x) {
+        x += 128;
+        return (x + (x >> 8)) >> 8;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    private static int roundUp2(int value) {
+        return (value + 1) & ~1;
+    }
+
+    private static int roundUp4(int value) {
+        return (value + 3) & ~3;
+    }
+
+}
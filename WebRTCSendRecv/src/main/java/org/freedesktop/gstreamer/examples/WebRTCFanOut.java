@@ -0,0 +1,387 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2021 Neil C Smith - Codelerity Ltd.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved. This file is offered as-is,
+ * without any warranty.
+ *
+ */
+package org.freedesktop.gstreamer.examples;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.ws.WebSocket;
+import org.asynchttpclient.ws.WebSocketListener;
+import org.asynchttpclient.ws.WebSocketUpgradeHandler;
+import org.freedesktop.gstreamer.*;
+import org.freedesktop.gstreamer.Element.PAD_ADDED;
+import org.freedesktop.gstreamer.webrtc.WebRTCBin;
+import org.freedesktop.gstreamer.webrtc.WebRTCBin.CREATE_OFFER;
+import org.freedesktop.gstreamer.webrtc.WebRTCBin.ON_ICE_CANDIDATE;
+import org.freedesktop.gstreamer.webrtc.WebRTCBin.ON_NEGOTIATION_NEEDED;
+import org.freedesktop.gstreamer.webrtc.WebRTCSDPType;
+import org.freedesktop.gstreamer.webrtc.WebRTCSessionDescription;
+
+import static org.asynchttpclient.Dsl.asyncHttpClient;
+
+/**
+ * Streams a single encode to many WebRTC peers - the fan-out mode of
+ * WebRTCSendRecv, enabled with -Dwebrtc.fanout=true.
+ * <p>
+ * The test sources are encoded and payloaded once, ending in a tee for each
+ * of video and audio. Each peer is a bin with a webrtcbin and a leaky queue
+ * per stream, attached to request pads of the tees while the pipeline is
+ * playing, so adding a peer only adds the cost of encrypting and sending the
+ * RTP packets. A slow peer drops packets in its own queue rather than
+ * holding up the tees. A peer is detached from idle tee pads, so removing it
+ * never blocks or interrupts the others. Streams received from peers are
+ * discarded rather than decoded.
+ * <p>
+ * Session IDs are read from the console, one per line, each connected as a
+ * new peer with its own signalling connection. Enter -ID to remove a peer,
+ * or an empty line to quit. A peer is also removed if its signalling
+ * connection closes or its webrtcbin posts an error. If running with Gradle
+ * in a terminal, use ./gradlew --console=plain run -Pfanout
+ */
+class WebRTCFanOut {
+
+    private static final Logger LOG = Logger.getLogger(WebRTCFanOut.class.getName());
+
+    private static final String SOURCE_DESCRIPTION
+            = "videotestsrc is-live=true pattern=ball ! videoconvert ! queue ! vp8enc deadline=1 ! rtpvp8pay"
+            + " ! application/x-rtp,media=video,encoding-name=VP8,payload=97"
+            + " ! tee name=videotee allow-not-linked=true "
+            + "audiotestsrc is-live=true wave=sine ! audioconvert ! audioresample ! queue ! opusenc ! rtpopuspay"
+            + " ! application/x-rtp,media=audio,encoding-name=OPUS,payload=96"
+            + " ! tee name=audiotee allow-not-linked=true ";
+
+    private static final String PEER_DESCRIPTION
+            = "queue name=video leaky=downstream max-size-buffers=200 max-size-bytes=0 max-size-time=0 ! webrtcbin. "
+            + "queue name=audio leaky=downstream max-size-buffers=200 max-size-bytes=0 max-size-time=0 ! webrtcbin. "
+            + "webrtcbin name=webrtcbin bundle-policy=max-bundle stun-server=stun://stun.l.google.com:19302 ";
+
+    private final String serverUrl;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final AtomicInteger peerCount = new AtomicInteger();
+
+    private final Pipeline pipe;
+    private final Element videoTee;
+    private final Element audioTee;
+    private final AsyncHttpClient httpClient;
+
+    WebRTCFanOut(String serverUrl) {
+        this.serverUrl = serverUrl;
+        pipe = (Pipeline) Gst.parseLaunch(SOURCE_DESCRIPTION);
+        videoTee = pipe.getElementByName("videotee");
+        audioTee = pipe.getElementByName("audiotee");
+        httpClient = asyncHttpClient();
+        setupPipeLogging(pipe);
+    }
+
+    /**
+     * Start the encoders, then connect a peer for each session ID read from
+     * the console until an empty line or end of input. A peer that fails to
+     * connect to the signalling server is logged and forgotten, and the
+     * console keeps reading.
+     */
+    void run() throws Exception {
+        pipe.play();
+        Thread console = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+                System.out.println("Enter session ID to add a peer, -ID to remove, or empty line to quit");
+                String line;
+                while ((line = reader.readLine()) != null && !line.trim().isEmpty()) {
+                    String session = line.trim();
+                    if (session.startsWith("-")) {
+                        Peer peer = peers.get(session.substring(1));
+                        if (peer != null) {
+                            Gst.invokeLater(peer::close);
+                        }
+                    } else if (!peers.containsKey(session)) {
+                        Peer peer = new Peer(session);
+                        peers.put(session, peer);
+                        try {
+                            peer.connect();
+                        } catch (Exception ex) {
+                            // a failed peer must not stop the others being added
+                            peers.remove(session, peer);
+                            LOG.log(Level.WARNING, "Failed to connect peer " + session, ex);
+                        }
+                    }
+                }
+            } catch (Exception ex) {
+                LOG.log(Level.SEVERE, "Console error", ex);
+            }
+            Gst.invokeLater(this::shutdown);
+        }, "WebRTCFanOut console");
+        console.setDaemon(true);
+        console.start();
+        Gst.main();
+    }
+
+    private void shutdown() {
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+        pipe.setState(State.NULL);
+        try {
+            httpClient.close();
+        } catch (IOException ex) {
+        }
+        Gst.quit();
+    }
+
+    private void setupPipeLogging(Pipeline pipe) {
+        Bus bus = pipe.getBus();
+        bus.connect((Bus.EOS) source -> {
+            LOG.info(() -> "Reached end of stream : " + source.toString());
+            shutdown();
+        });
+
+        bus.connect((Bus.ERROR) (source, code, message) -> {
+            LOG.severe(() -> "Error from source : " + source
+                    + ", with code : " + code + ", and message : " + message);
+            // an error within a peer only ends that peer
+            for (GstObject obj = source; obj != null; obj = obj.getParent()) {
+                Peer peer = obj instanceof Bin ? peers.get(obj.getName()) : null;
+                if (peer != null) {
+                    peer.close();
+                    return;
+                }
+            }
+            shutdown();
+        });
+
+        bus.connect((source, old, current, pending) -> {
+            if (source instanceof Pipeline) {
+                LOG.info(() -> "Pipe state changed from " + old + " to " + current);
+            }
+        });
+    }
+
+    /**
+     * A receiver - its signalling connection, and a bin with its webrtcbin
+     * attached to the tees once the session is established. The bin is named
+     * with the session ID.
+     */
+    private class Peer {
+
+        private final String sessionId;
+        private final String peerId;
+
+        private WebSocket websocket;
+        private Bin bin;
+        private WebRTCBin webRTCBin;
+        private Pad videoPad;
+        private Pad audioPad;
+        private boolean closed;
+
+        private Peer(String sessionId) {
+            this.sessionId = sessionId;
+            this.peerId = String.valueOf(ThreadLocalRandom.current().nextInt(100000, 1000000));
+        }
+
+        private void connect() throws Exception {
+            websocket = httpClient
+                    .prepareGet(serverUrl)
+                    .execute(
+                            new WebSocketUpgradeHandler.Builder()
+                                    .addWebSocketListener(webSocketListener)
+                                    .build())
+                    .get();
+        }
+
+        /**
+         * Create the peer bin and attach it to the tees. Elements are brought
+         * to the pipeline state before the tee pads are linked, so data only
+         * flows into a playing branch.
+         */
+        private void attach() {
+            synchronized (this) {
+                if (closed || bin != null) {
+                    return;
+                }
+                bin = Gst.parseBinFromDescription(PEER_DESCRIPTION, false);
+                bin.setName(sessionId);
+            }
+            webRTCBin = (WebRTCBin) bin.getElementByName("webrtcbin");
+            webRTCBin.connect(onNegotiationNeeded);
+            webRTCBin.connect(onIceCandidate);
+            webRTCBin.connect(onIncomingStream);
+            bin.addPad(new GhostPad("video", bin.getElementByName("video").getStaticPad("sink")));
+            bin.addPad(new GhostPad("audio", bin.getElementByName("audio").getStaticPad("sink")));
+            pipe.add(bin);
+            bin.syncStateWithParent();
+            videoPad = videoTee.getRequestPad("src_%u");
+            audioPad = audioTee.getRequestPad("src_%u");
+            videoPad.link(bin.getStaticPad("video"));
+            audioPad.link(bin.getStaticPad("audio"));
+            int count = peerCount.incrementAndGet();
+            LOG.info(() -> "Peer " + sessionId + " attached, " + count + " peers");
+        }
+
+        /**
+         * Close the signalling connection and detach the bin. Called on the
+         * GStreamer executor. Each tee pad is
+         * unlinked from an idle probe, when no buffer is being pushed through
+         * it, then released, and the bin stopped once both are detached.
+         */
+        private void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            peers.remove(sessionId, this);
+            if (websocket != null && websocket.isOpen()) {
+                websocket.sendCloseFrame();
+            }
+            if (bin == null) {
+                return;
+            }
+            AtomicInteger remaining = new AtomicInteger(2);
+            for (Pad teePad : new Pad[]{videoPad, audioPad}) {
+                teePad.addProbe(PadProbeType.IDLE, (pad, info) -> {
+                    Pad peerPad = pad.getPeer();
+                    if (peerPad != null) {
+                        pad.unlink(peerPad);
+                    }
+                    Gst.invokeLater(() -> {
+                        ((Element) pad.getParent()).releaseRequestPad(pad);
+                        if (remaining.decrementAndGet() == 0) {
+                            bin.setState(State.NULL);
+                            pipe.remove(bin);
+                            int count = peerCount.decrementAndGet();
+                            LOG.info(() -> "Peer " + sessionId + " removed, " + count + " peers");
+                        }
+                    });
+                    return PadProbeReturn.REMOVE;
+                });
+            }
+        }
+
+        private final WebSocketListener webSocketListener = new WebSocketListener() {
+
+            @Override
+            public void onOpen(WebSocket websocket) {
+                LOG.info(() -> "websocket onOpen : " + sessionId);
+                websocket.sendTextFrame("HELLO " + peerId);
+            }
+
+            @Override
+            public void onClose(WebSocket websocket, int code, String reason) {
+                LOG.info(() -> "WebSocket onClose : " + sessionId + " : " + code + " : " + reason);
+                Gst.invokeLater(Peer.this::close);
+            }
+
+            @Override
+            public void onTextFrame(String payload, boolean finalFragment, int rsv) {
+                if (payload.equals("HELLO")) {
+                    websocket.sendTextFrame("SESSION " + sessionId);
+                } else if (payload.equals("SESSION_OK")) {
+                    Gst.invokeLater(Peer.this::attach);
+                } else if (payload.startsWith("ERROR")) {
+                    LOG.severe(payload);
+                    Gst.invokeLater(Peer.this::close);
+                } else {
+                    handleSdp(payload);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                LOG.log(Level.SEVERE, "onError", t);
+            }
+        };
+
+        private void handleSdp(String payload) {
+            try {
+                JsonNode answer = mapper.readTree(payload);
+                if (answer.has("sdp")) {
+                    String sdpStr = answer.get("sdp").get("sdp").textValue();
+                    LOG.info(() -> "Answer SDP from " + sessionId + ":\n" + sdpStr);
+                    SDPMessage sdpMessage = new SDPMessage();
+                    sdpMessage.parseBuffer(sdpStr);
+                    WebRTCSessionDescription description = new WebRTCSessionDescription(WebRTCSDPType.ANSWER, sdpMessage);
+                    webRTCBin.setRemoteDescription(description);
+                } else if (answer.has("ice")) {
+                    String candidate = answer.get("ice").get("candidate").textValue();
+                    int sdpMLineIndex = answer.get("ice").get("sdpMLineIndex").intValue();
+                    webRTCBin.addIceCandidate(sdpMLineIndex, candidate);
+                }
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "Problem reading payload", e);
+            }
+        }
+
+        private final CREATE_OFFER onOfferCreated = offer -> {
+            webRTCBin.setLocalDescription(offer);
+            try {
+                ObjectNode rootNode = mapper.createObjectNode();
+                ObjectNode sdpNode = mapper.createObjectNode();
+                sdpNode.put("type", "offer");
+                sdpNode.put("sdp", offer.getSDPMessage().toString());
+                rootNode.set("sdp", sdpNode);
+                String json = mapper.writeValueAsString(rootNode);
+                LOG.info(() -> "Sending offer to " + Peer.this.sessionId + ":\n" + json);
+                websocket.sendTextFrame(json);
+            } catch (JsonProcessingException e) {
+                LOG.log(Level.SEVERE, "Couldn't write JSON", e);
+            }
+        };
+
+        private final ON_NEGOTIATION_NEEDED onNegotiationNeeded = elem -> {
+            LOG.info(() -> "onNegotiationNeeded: " + Peer.this.sessionId);
+            webRTCBin.createOffer(onOfferCreated);
+        };
+
+        private final ON_ICE_CANDIDATE onIceCandidate = (sdpMLineIndex, candidate) -> {
+            ObjectNode rootNode = mapper.createObjectNode();
+            ObjectNode iceNode = mapper.createObjectNode();
+            iceNode.put("candidate", candidate);
+            iceNode.put("sdpMLineIndex", sdpMLineIndex);
+            rootNode.set("ice", iceNode);
+
+            try {
+                websocket.sendTextFrame(mapper.writeValueAsString(rootNode));
+            } catch (JsonProcessingException e) {
+                LOG.log(Level.SEVERE, "Couldn't write JSON", e);
+            }
+        };
+
+        /**
+         * Discard a stream received from the peer, without decoding it.
+         */
+        private final PAD_ADDED onIncomingStream = (element, pad) -> {
+            if (pad.getDirection() != PadDirection.SRC) {
+                return;
+            }
+            LOG.info(() -> "Discarding stream from " + Peer.this.sessionId + " : " + pad.getName());
+            Element sink = ElementFactory.make("fakesink", null);
+            sink.set("async", false);
+            sink.set("sync", false);
+            bin.add(sink);
+            sink.syncStateWithParent();
+            pad.link(sink.getStaticPad("sink"));
+        };
+
+    }
+
+}
@@ -87,6 +87,12 @@ public class WebRTCSendRecv {
             System.out.println("Open a web browser at : " + REMOTE_WEBPAGE_URL);
         }
 
+        // Stream one encode to many peers - see WebRTCFanOut
+        if (Boolean.getBoolean("webrtc.fanout")) {
+            new WebRTCFanOut(REMOTE_SERVER_URL).run();
+            return;
+        }
+
         // Enter session ID from webpage in CLI
         // If running with Gradle in a terminal, use ./gradlew --console=plain run
         String session;